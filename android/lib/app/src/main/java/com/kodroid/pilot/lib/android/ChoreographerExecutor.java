@@ -0,0 +1,53 @@
+package com.kodroid.pilot.lib.android;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} that runs tasks on the main thread at the start of the next display frame, in
+ * order. Useful for {@link StateStackFrame#setObserverNotificationExecutor(Executor)} so views
+ * re-bind at most once per frame.
+ *
+ * Requires API 16 (Choreographer), below the lib's minSdk, so check Build.VERSION.SDK_INT before
+ * creating one. {@link #execute(Runnable)} throws if the main Looper is quitting.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class ChoreographerExecutor implements Executor
+{
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(final Runnable runnable)
+    {
+        if(Looper.myLooper() == Looper.getMainLooper())
+            postFrameCallback(runnable);
+        else if(!handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                postFrameCallback(runnable);
+            }
+        }))
+            throw new IllegalStateException("Main Looper is shutting down");
+    }
+
+    private void postFrameCallback(final Runnable runnable)
+    {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback()
+        {
+            @Override
+            public void doFrame(long frameTimeNanos)
+            {
+                runnable.run();
+            }
+        });
+    }
+}
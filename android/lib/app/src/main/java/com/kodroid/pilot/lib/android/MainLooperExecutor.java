@@ -0,0 +1,25 @@
+package com.kodroid.pilot.lib.android;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.kodroid.pilot.lib.statestack.StateStack;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} that runs tasks on the main thread, in order. Useful for
+ * {@link StateStack#setMutationExecutor(Executor)} so stack edits can be posted from background threads
+ * while all listener callbacks still happen on the main thread.
+ */
+public class MainLooperExecutor implements Executor
+{
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable runnable)
+    {
+        if(!handler.post(runnable))
+            throw new IllegalStateException("Main Looper is shutting down");
+    }
+}
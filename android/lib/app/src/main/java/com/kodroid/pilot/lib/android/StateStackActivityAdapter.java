@@ -4,15 +4,18 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.kodroid.pilot.lib.statestack.StateStackCodec;
 import com.kodroid.pilot.lib.statestack.StateStackFrame;
 import com.kodroid.pilot.lib.statestack.StateStack;
 
 /**
  * This classes SRP is to bridge between the hosting Activities lifecycle events (and death / recreation) and a longer-lived StateStack instance.
  *
- * onCreate will instantiate the passed launch frame class if the stack is empty.
+ * onCreate will instantiate the passed launch frame class if the stack is empty, unless the stack was
+ * saved via onSaveInstanceState (i.e. before process death) in which case it is restored.
  *
- * onStart and onStop will route visibility events to the {@link StateStackRenderer}
+ * onStart and onStop will move the stack between its STARTED and STOPPED states, which the
+ * {@link StateStackRenderer} routes to frames as visibility events
  *
  * onDestroy will remove listeners attached by this instance
  *
@@ -28,6 +31,9 @@ public class StateStackActivityAdapter
     private StateStackRenderer stateStackRenderer;
     private StateStackFrame launchState;
     private final StateStack.StackEmptyListener stackEmptyListener;
+    private StateStackCodec stateStackCodec = new StateStackCodec();
+
+    private static final String SAVED_STATE_STACK_KEY = StateStackActivityAdapter.class.getName()+".STATE_STACK";
 
     //==================================================================//
     // Constructor
@@ -51,10 +57,38 @@ public class StateStackActivityAdapter
         this.stackEmptyListener = stackEmptyListener;
     }
 
+    /**
+     * @param stateStackCodec used to save and restore the stack, i.e. to register aliases for
+     *                        renamed frame classes
+     */
+    public StateStackActivityAdapter setStateStackCodec(StateStackCodec stateStackCodec)
+    {
+        this.stateStackCodec = stateStackCodec;
+        return this;
+    }
+
     //==================================================================//
     // Delegate methods
     //==================================================================//
 
+    /**
+     * As {@link #onCreateDelegate()} but will first restore the stack from the passed state if the
+     * stack is empty, i.e. the process was killed. The stack must have been saved via
+     * {@link #onSaveInstanceStateDelegate(Bundle)}.
+     *
+     * @param savedInstanceState can be null
+     */
+    public void onCreateDelegate(Bundle savedInstanceState)
+    {
+        if(savedInstanceState != null && stateStack.isEmpty())
+        {
+            byte[] savedStack = savedInstanceState.getByteArray(SAVED_STATE_STACK_KEY);
+            if(savedStack != null)
+                restoreStateStack(savedStack);
+        }
+        onCreateDelegate();
+    }
+
     /**
      * This must be called from your {@link Activity#onCreate(Bundle)}.
      *
@@ -70,6 +104,7 @@ public class StateStackActivityAdapter
 
         //hookup all event listeners to stack
         stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.addStartedStateListener(stateStackRenderer);
         stateStack.setStackEmptyListener(stackEmptyListener);
 
         //render everything that should be currently seen on screen
@@ -79,19 +114,54 @@ public class StateStackActivityAdapter
     /**
      * Activity must call
      */
-    //TODO C-54: StateStack should support START/STOP meta-states instread of hostActivity* approach
     public void onStartDelegate()
     {
-        stateStackRenderer.hostActivityOnStarted();
+        stateStack.setStarted(true);
     }
 
     /**
      * Activity must call
      */
-    //TODO C-54: StateStack should support START/STOP meta-states instread of hostActivity* approach
     public void onStopDelegate()
     {
-        stateStackRenderer.hostActivityOnStopped();
+        stateStack.setStarted(false);
+    }
+
+    /**
+     * Call from {@link Activity#onSaveInstanceState(Bundle)} to have the stack restored by
+     * {@link #onCreateDelegate(Bundle)} after process death
+     */
+    public void onSaveInstanceStateDelegate(Bundle outState)
+    {
+        outState.putByteArray(SAVED_STATE_STACK_KEY, saveStateStack());
+    }
+
+    /**
+     * Call from {@link Activity#onTrimMemory(int)} to hibernate deep frames under memory pressure,
+     * see {@link StateStack#onTrimMemory(int)}
+     */
+    public void onTrimMemoryDelegate(int level)
+    {
+        stateStack.onTrimMemory(level);
+    }
+
+    /**
+     * @return the whole stack encoded via the set {@link StateStackCodec}, for integrators that
+     * persist the stack themselves
+     */
+    public byte[] saveStateStack()
+    {
+        return stateStackCodec.encode(stateStack);
+    }
+
+    /**
+     * Restores a stack saved via {@link #saveStateStack()}. Must be called before
+     * {@link #onCreateDelegate()}, on an empty stack.
+     */
+    public void restoreStateStack(byte[] savedStack)
+    {
+        Log.d(getClass().getCanonicalName(), "Restoring StateStack from "+savedStack.length+" bytes");
+        stateStackCodec.decode(savedStack, stateStack);
     }
 
     /**
@@ -103,6 +173,7 @@ public class StateStackActivityAdapter
     {
         //remove listeners so callbacks are not triggered when Activity in destroy state
         stateStack.deleteListeners(stateStackRenderer, stackEmptyListener);
+        stateStack.removeStartedStateListener(stateStackRenderer);
     }
 
     /**
@@ -1,21 +1,90 @@
 package com.kodroid.pilot.lib.android;
 
 import com.kodroid.pilot.lib.android.uiTypeHandler.StateStackFrameSetRenderer;
+import com.kodroid.pilot.lib.statestack.FrameTypeDescriptor;
 import com.kodroid.pilot.lib.statestack.StateStackFrame;
 import com.kodroid.pilot.lib.statestack.StateStack;
+import com.kodroid.pilot.lib.statestack.StateStackSnapshot;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 
 /**
  * This class holds the {@link StateStackFrameSetRenderer} collection that is queried upon {@link StateStack}
  * changes.
+ *
+ * Stack changes are reconciled incrementally. The renderer remembers the window of frames drawn on
+ * screen after the last change, and which frame each {@link StateStackFrameSetRenderer} last
+ * rendered. On a change only frames that are not already rendered get rendered, only renderers
+ * that are showing a frame which has left the window get cleared, and frame view visibility
+ * callbacks are only made for frames entering or leaving the window.
+ *
+ * Frames are told their view is visible while in the window and the stack is started (see
+ * {@link StateStack#setStarted(boolean)}). Each frame tracks its own visibility (see
+ * {@link StateStackFrame#notifyFrameViewVisible(boolean)}), so only real transitions reach
+ * {@link StateStackFrame#frameViewVisible(boolean)}, i.e. not after a config change or a repeated start.
+ *
+ * The renderer for each frame class is resolved once and then looked up by
+ * {@link FrameTypeDescriptor#getTypeId()}, see {@link #registerFrameClasses(Class[])}. The window is
+ * computed in one top down pass into reused lists, and the opacity of each frame is memoized, see
+ * {@link #invalidateFrameOpacity(StateStackFrame)}.
  */
-public class StateStackRenderer implements StateStack.TopFrameChangedListener
+public class StateStackRenderer implements StateStack.TopFrameChangedListener, StateStack.StartedStateListener
 {
-    private StateStackFrameSetRenderer[] stateStackFrameSetRenderers;
+    private final StateStackFrameSetRenderer[] stateStackFrameSetRenderers;
     private StateStack stateStack;
-    private boolean hostActivityStarted;
+
+    /**
+     * Frame last rendered by the {@link StateStackFrameSetRenderer} at the same index, null if that
+     * renderer is not currently showing anything
+     */
+    private final StateStackFrame[] renderedFrames;
+
+    /**
+     * Window index of the top frame of each renderer in the current reconcile, -1 if none
+     */
+    private final int[] topWindowIndexByRenderer;
+
+    /**
+     * Frames drawn on screen after the last reconcile. Top frame index 0. Swapped with
+     * {@link #visibleFrames} on each reconcile so computing the window does not allocate.
+     */
+    private ArrayList<StateStackFrame> previousVisibleFrames = new ArrayList<>();
+    private ArrayList<StateStackFrame> visibleFrames = new ArrayList<>();
+
+    /**
+     * Window for the started state callbacks, separate as these callbacks may trigger a reconcile
+     */
+    private final ArrayList<StateStackFrame> hostVisibleFrames = new ArrayList<>();
+
+    private boolean reconciling;
+    private boolean reconcilePending;
+
+    /**
+     * Memoized {@link StateStackFrameSetRenderer#isFrameOpaque(StateStackFrame)} by frame instance.
+     * Entries are dropped once their frame has left the stack.
+     */
+    private final IdentityHashMap<StateStackFrame, Boolean> frameOpacity = new IdentityHashMap<>();
+
+    private List<StateStackFrame> windowTarget;
+    private final StateStack.VisibleFrameVisitor windowCollector = new StateStack.VisibleFrameVisitor()
+    {
+        @Override
+        public boolean visitFrame(StateStackFrame frame)
+        {
+            windowTarget.add(frame);
+            return !isFrameOpaque(frame);
+        }
+    };
+
+    /**
+     * Index of the {@link StateStackFrameSetRenderer} for a frame class + 1, by frame type id. 0 if
+     * not resolved yet.
+     */
+    private int[] rendererIndexByTypeId = new int[0];
 
     //==================================================================//
     // Constructor
@@ -29,26 +98,65 @@ public class StateStackRenderer implements StateStack.TopFrameChangedListener
     {
         this.stateStack = stateStack;
         this.stateStackFrameSetRenderers = stateStackFrameSetRenderers;
+        this.renderedFrames = new StateStackFrame[stateStackFrameSetRenderers.length];
+        this.topWindowIndexByRenderer = new int[stateStackFrameSetRenderers.length];
     }
 
     //==================================================================//
-    // Hosting Activity Visibility Events
+    // Frame Registration
     //==================================================================//
 
-    public void hostActivityOnStarted()
+    /**
+     * Resolves the renderer for each of the passed frame classes up front, so a frame class without
+     * a renderer fails here rather than on the first navigation to it. Hidden frame classes are
+     * skipped as they are never rendered.
+     *
+     * @throws IllegalStateException if a passed visible frame class has no renderer
+     */
+    @SafeVarargs
+    public final StateStackRenderer registerFrameClasses(Class<? extends StateStackFrame>... frameClasses)
+    {
+        for(Class<? extends StateStackFrame> frameClass : frameClasses)
+        {
+            FrameTypeDescriptor descriptor = FrameTypeDescriptor.forClass(frameClass);
+            if(!descriptor.isHidden())
+                getRendererIndex(descriptor);
+        }
+        return this;
+    }
+
+    //==================================================================//
+    // Stack Started State Events
+    //==================================================================//
+
+    @Override
+    public void stackStartedStateChanged(boolean started)
     {
-        hostActivityStarted = true;
         //notify all frames represented by views being drawn to the screen
-        for(StateStackFrame frame : getCurrentlyVisibleFrames(stateStack, false))
-            frame.frameViewVisible(true);
+        collectVisibleFrames(stateStack, hostVisibleFrames);
+        for(int i = 0; i < hostVisibleFrames.size(); i++)
+            hostVisibleFrames.get(i).notifyFrameViewVisible(started);
+        hostVisibleFrames.clear();
     }
 
+    /**
+     * @deprecated start the stack instead, see {@link StateStack#setStarted(boolean)}
+     */
+    @Deprecated
+    public void hostActivityOnStarted()
+    {
+        stateStack.setStarted(true);
+        stackStartedStateChanged(true); //in case this renderer is not a started state listener
+    }
+
+    /**
+     * @deprecated stop the stack instead, see {@link StateStack#setStarted(boolean)}
+     */
+    @Deprecated
     public void hostActivityOnStopped()
     {
-        hostActivityStarted= false;
-        //notify all frames represented by views being drawn to the screen
-        for(StateStackFrame frame : getCurrentlyVisibleFrames(stateStack, false))
-            frame.frameViewVisible(false);
+        stateStack.setStarted(false);
+        stackStartedStateChanged(false);
     }
 
     //==================================================================//
@@ -56,46 +164,100 @@ public class StateStackRenderer implements StateStack.TopFrameChangedListener
     //==================================================================//
 
     /**
-     * Will iterate the stack top down, and return a list of frames that are all represented by
-     * Views that are currently being drawn to screen (Views behind not full screen opaque view are
-     * treated as visible in this context).
+     * Will iterate the stack top down, and collect the frames that are all represented by Views that
+     * are currently being drawn to screen (Views behind not full screen opaque view are treated as
+     * visible in this context) into the passed list.
      *
      * Top frame index 0
-     *
-     * @param stateStack
-     * @return
      */
-    private List<StateStackFrame> getCurrentlyVisibleFrames(StateStack stateStack, boolean ignoreTop)
+    private void collectVisibleFrames(StateStack stateStack, List<StateStackFrame> target)
     {
-        List<StateStackFrame> currentlyVisibleFrames = new LinkedList<>();
-
-        int count = 1; //1 is top of stack for below method call
-        if(ignoreTop)
-            count++; //2 is second from top of stack for below method call
-        while(true)
+        target.clear();
+        windowTarget = target;
+        try
+        {
+            stateStack.forEachVisibleFrameFromTopDown(windowCollector);
+        }
+        finally
         {
-            StateStackFrame frame = stateStack.getVisibleFrameFromTopDown(count);
-            if(frame == null) //EOL
-                return currentlyVisibleFrames;
-            currentlyVisibleFrames.add(frame);
-            if(isFrameOpaque(frame))
-                return currentlyVisibleFrames;
-            count++;
+            windowTarget = null;
         }
     }
 
     private boolean isFrameOpaque(StateStackFrame stateStackFrame)
+    {
+        Boolean opaque = frameOpacity.get(stateStackFrame);
+        if(opaque == null)
+        {
+            opaque = stateStackFrameSetRenderers[getRendererIndex(stateStackFrame)].isFrameOpaque(stateStackFrame);
+            frameOpacity.put(stateStackFrame, opaque);
+        }
+        return opaque;
+    }
+
+    /**
+     * Drops the memoized opacity of the passed frame, for frames whose views change opacity at
+     * runtime (i.e. a dialog expanding to full screen). If the frame is on the stack the visible
+     * window is reconciled straight away.
+     */
+    public void invalidateFrameOpacity(StateStackFrame frame)
+    {
+        frameOpacity.remove(frame);
+        if(stateStack.getSnapshot().indexOf(frame) != -1)
+            reconcileVisibleWindow();
+    }
+
+    /**
+     * Drops all memoized opacities, i.e. when opacity depends on something that has changed for all
+     * frames, and reconciles the visible window
+     */
+    public void invalidateAllFrameOpacity()
+    {
+        frameOpacity.clear();
+        reconcileVisibleWindow();
+    }
+
+    private void reconcileVisibleWindow()
+    {
+        if(previousVisibleFrames.isEmpty())
+            return; //nothing rendered yet
+        if(reconciling)
+        {
+            reconcilePending = true;
+            return;
+        }
+        collectVisibleFrames(stateStack, visibleFrames);
+        reconcile();
+    }
+
+    private int getRendererIndex(StateStackFrame stateStackFrame)
+    {
+        return getRendererIndex(stateStackFrame.getTypeDescriptor());
+    }
+
+    private int getRendererIndex(FrameTypeDescriptor descriptor)
+    {
+        int typeId = descriptor.getTypeId();
+        if(typeId < rendererIndexByTypeId.length && rendererIndexByTypeId[typeId] != 0)
+            return rendererIndexByTypeId[typeId] - 1;
+
+        int rendererIndex = findRendererIndex(descriptor.getFrameClass());
+        if(typeId >= rendererIndexByTypeId.length)
+            rendererIndexByTypeId = Arrays.copyOf(rendererIndexByTypeId, Math.max(typeId + 1, rendererIndexByTypeId.length * 2));
+        rendererIndexByTypeId[typeId] = rendererIndex + 1;
+        return rendererIndex;
+    }
+
+    private int findRendererIndex(Class<? extends StateStackFrame> frameClass)
     {
         //find the typeHandler that handles this frame
-        for(StateStackFrameSetRenderer stateStackFrameSetRenderer : stateStackFrameSetRenderers)
+        for(int i = 0; i < stateStackFrameSetRenderers.length; i++)
         {
-            if (stateStackFrameSetRenderer.isFrameSupported(stateStackFrame.getClass()))
-            {
-                return stateStackFrameSetRenderer.isFrameOpaque(stateStackFrame);
-            }
+            if(stateStackFrameSetRenderers[i].isFrameSupported(frameClass))
+                return i;
         }
 
-        throw new IllegalStateException("No StateStackFrameSetRenderer registered for StateStackFrame of type "+ stateStackFrame.getClass().getName());
+        throw new IllegalStateException("No StateStackFrameSetRenderer registered for StateStackFrame of type "+ frameClass.getName());
     }
 
     //==================================================================//
@@ -103,62 +265,153 @@ public class StateStackRenderer implements StateStack.TopFrameChangedListener
     //==================================================================//
 
     /**
-     * Will render all passed frames, bottom up. Should be used after a config change.
+     * Will render all passed frames, bottom up. Should be used after a config change, as nothing
+     * previously rendered is assumed to still be shown and opacities are resolved again.
      */
     public void renderAllCurrentlyVisibleFrames(StateStack stateStack)
     {
-        List<StateStackFrame> framesToRender = getCurrentlyVisibleFrames(stateStack, false);
-        for(int i = framesToRender.size() - 1; i >= 0; i--)
-            topVisibleFrameUpdated(framesToRender.get(i), Direction.FORWARD);
+        Arrays.fill(renderedFrames, null);
+        previousVisibleFrames.clear();
+        frameOpacity.clear();
+        if(reconciling)
+        {
+            reconcilePending = true;
+            return;
+        }
+        collectVisibleFrames(stateStack, visibleFrames);
+        reconcile();
     }
 
     @Override
     public void topVisibleFrameUpdated(StateStackFrame topVisibleFrame, Direction direction)
     {
-        StateStackFrameSetRenderer handlingTypeHandler = null;
+        if(reconciling)
+        {
+            //i.e. a frame visibility callback changed the stack, the window is recomputed once done
+            reconcilePending = true;
+            return;
+        }
 
-        //find the typeHandler that handles this frame
-        for(StateStackFrameSetRenderer stateStackFrameSetRenderer : stateStackFrameSetRenderers) {
-            if (stateStackFrameSetRenderer.isFrameSupported(topVisibleFrame.getClass()))
+        collectVisibleFrames(stateStack, visibleFrames);
+        if(visibleFrames.isEmpty() || visibleFrames.get(0) != topVisibleFrame)
+        {
+            //stack does not (yet) reflect this change i.e. called directly, just show the passed frame
+            visibleFrames.clear();
+            visibleFrames.add(topVisibleFrame);
+        }
+        reconcile();
+    }
+
+    /**
+     * Reconciles against {@link #visibleFrames}, then again against the recomputed window for as
+     * long as the stack changed while doing so
+     */
+    private void reconcile()
+    {
+        reconciling = true;
+        try
+        {
+            applyVisibleFrames();
+            while(reconcilePending)
             {
-                stateStackFrameSetRenderer.renderFrame(topVisibleFrame);
-                handlingTypeHandler = stateStackFrameSetRenderer;
-                break;
+                reconcilePending = false;
+                collectVisibleFrames(stateStack, visibleFrames);
+                applyVisibleFrames();
             }
         }
+        finally
+        {
+            reconciling = false;
+            reconcilePending = false;
+        }
+    }
 
-        //throw if nothing to handle this frame
-        if(handlingTypeHandler == null)
-            throw new IllegalStateException("No StateStackFrameSetRenderer registered for StateStackFrame of type "+topVisibleFrame.getClass().getName());
+    /**
+     * Frames that should now be drawn on screen are in {@link #visibleFrames}, top frame index 0
+     */
+    private void applyVisibleFrames()
+    {
+        Arrays.fill(topWindowIndexByRenderer, -1);
+        for(int i = 0; i < visibleFrames.size(); i++)
+        {
+            int rendererIndex = getRendererIndex(visibleFrames.get(i));
+            if(topWindowIndexByRenderer[rendererIndex] == -1)
+                topWindowIndexByRenderer[rendererIndex] = i;
+        }
 
-        //clear all other handlers IF the new frame is opaque
-        if(handlingTypeHandler.isFrameOpaque(topVisibleFrame))
+        //render frames bottom up that are new to the window, or that are the top frame of a renderer
+        //last showing another (i.e. revealed by a pop). Frames that share a renderer with one above
+        //them and were already in the window are left as is
+        for(int i = visibleFrames.size() - 1; i >= 0; i--)
         {
-            for(StateStackFrameSetRenderer stateStackFrameSetRenderer : stateStackFrameSetRenderers) {
-                if (stateStackFrameSetRenderer != handlingTypeHandler) {
-                    stateStackFrameSetRenderer.clearAllUI();
-                }
+            StateStackFrame frame = visibleFrames.get(i);
+            int rendererIndex = getRendererIndex(frame);
+            boolean revealed = topWindowIndexByRenderer[rendererIndex] == i && renderedFrames[rendererIndex] != frame;
+            if(revealed || !containsInstance(previousVisibleFrames, frame))
+            {
+                stateStackFrameSetRenderers[rendererIndex].renderFrame(frame);
+                renderedFrames[rendererIndex] = frame;
             }
         }
 
-        //View Frame visibility callbacks
-        //first set all old visible frames to invis
-        if(direction == Direction.FORWARD)
+        //clear renderers still showing a frame that has left the screen. Renderers showing nothing are skipped
+        for(int i = 0; i < stateStackFrameSetRenderers.length; i++)
         {
-            if(!hostActivityStarted)
-                return; //i.e. don't bother calling false when added
+            if(renderedFrames[i] != null && !containsInstance(visibleFrames, renderedFrames[i]))
+            {
+                stateStackFrameSetRenderers[i].clearAllUI();
+                renderedFrames[i] = null;
+            }
+        }
 
-            //get all the vis frame stack ignoring the top frame and call false
-            for(StateStackFrame frame : getCurrentlyVisibleFrames(stateStack, true))
-                frame.frameViewVisible(false);
+        //swap the window buffers, the previous window is reused for the next reconcile
+        ArrayList<StateStackFrame> previousFrames = previousVisibleFrames;
+        previousVisibleFrames = visibleFrames;
+        visibleFrames = previousFrames;
 
-            //call started state on top frame
-            topVisibleFrame.frameViewVisible(hostActivityStarted);
+        //View Frame visibility callbacks for the delta only, frames drop any repeats
+        StateStackSnapshot snapshot = stateStack.getSnapshot();
+        for(int i = 0; i < previousFrames.size(); i++)
+        {
+            StateStackFrame frame = previousFrames.get(i);
+            if(containsInstance(previousVisibleFrames, frame))
+                continue;
+            //frames that have left the stack have been popped so are not notified
+            if(snapshot.indexOf(frame) == -1)
+                frameOpacity.remove(frame);
+            else
+                frame.notifyFrameViewVisible(false);
+        }
+        if(stateStack.isStarted()) //i.e. don't bother calling when added, starting the stack will
+        {
+            for(int i = 0; i < previousVisibleFrames.size(); i++)
+                previousVisibleFrames.get(i).notifyFrameViewVisible(true);
+        }
+
+        if(frameOpacity.size() > snapshot.getSize())
+            dropOpacityOfFramesOffStack(snapshot);
+    }
+
+    /**
+     * For frames that left the stack without passing through the visible window
+     */
+    private void dropOpacityOfFramesOffStack(StateStackSnapshot snapshot)
+    {
+        Iterator<StateStackFrame> iterator = frameOpacity.keySet().iterator();
+        while(iterator.hasNext())
+        {
+            if(snapshot.indexOf(iterator.next()) == -1)
+                iterator.remove();
         }
-        else if(direction == Direction.BACK)
+    }
+
+    private static boolean containsInstance(List<StateStackFrame> frames, StateStackFrame frame)
+    {
+        for(int i = 0; i < frames.size(); i++)
         {
-            for(StateStackFrame frame : getCurrentlyVisibleFrames(stateStack, false))
-                frame.frameViewVisible(true);
+            if(frames.get(i) == frame)
+                return true;
         }
+        return false;
     }
 }
@@ -7,7 +7,7 @@ import android.widget.FrameLayout;
 
 import com.kodroid.pilot.lib.statestack.StateStackFrame;
 
-public abstract class StateStackFrameBackedFrameLayout<P extends StateStackFrame> extends FrameLayout implements StateStackFrameBackedUI<P>, StateStackFrame.Observer
+public abstract class StateStackFrameBackedFrameLayout<P extends StateStackFrame> extends FrameLayout implements StateStackFrameBackedUI<P>, StateStackFrame.KeyedObserver
 {
     private P backingPilotFrame;
 
@@ -53,16 +53,36 @@ public abstract class StateStackFrameBackedFrameLayout<P extends StateStackFrame
     protected void onAttachedToWindow()
     {
         super.onAttachedToWindow();
-        getBackingPilotFrame().addObserver(this, true);
+        getBackingPilotFrame().addKeyedObserver(this, getObservedKeys(), true);
     }
 
     @Override
     protected void onDetachedFromWindow()
     {
         super.onDetachedFromWindow();
-        getBackingPilotFrame().removeObserver(this);
+        getBackingPilotFrame().removeKeyedObserver(this);
     }
 
+    /**
+     * Override to only be notified of changes to the frame keys this view renders
+     *
+     * @return bitmask of the backing frames change keys, see {@link StateStackFrame.KeyedObserver}
+     */
+    protected long getObservedKeys()
+    {
+        return StateStackFrame.ALL_KEYS;
+    }
+
+    /**
+     * Override to re-bind just the sub-views for the changed keys. Calls {@link #updated()} by default.
+     *
+     * @param changedKeys never 0
+     */
     @Override
+    public void updated(long changedKeys)
+    {
+        updated();
+    }
+
     public void updated(){};
 }
\ No newline at end of file
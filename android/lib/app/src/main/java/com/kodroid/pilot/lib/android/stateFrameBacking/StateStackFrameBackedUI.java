@@ -4,6 +4,9 @@ import android.view.View;
 
 public interface StateStackFrameBackedUI<P>
 {
+    /**
+     * Also called to rebind a recycled view to another frame of the same class, see {@link Recyclable}
+     */
     View setBackingStateFrame(P backingStateFrame);
 
     /**
@@ -11,4 +14,18 @@ public interface StateStackFrameBackedUI<P>
      * @return True if has any backing frame set
      */
     boolean hasBackingStateFrameSet();
+
+    /**
+     * Implemented by views that can be reused for another frame of the same class once no longer
+     * needed for their own, see {@link com.kodroid.pilot.lib.android.uiTypeHandler.FrameViewCache}
+     */
+    interface Recyclable
+    {
+        /**
+         * Called once the view has been detached and is about to be pooled. Clear anything bound
+         * from the old frame (i.e. input, scroll position, loaded images). The view is then rebound
+         * via {@link StateStackFrameBackedUI#setBackingStateFrame(Object)} before being shown again.
+         */
+        void resetForReuse();
+    }
 }
@@ -0,0 +1,27 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.view.View;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds the annotated frame class to a View class, for the generated {@link FrameViewRegistry}. The
+ * View needs a public constructor taking only a Context. Can instead be declared on the View via
+ * {@link ViewForFrame}.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface FrameView
+{
+    Class<? extends View> value();
+
+    /**
+     * See {@link StateStackFrameSetRenderer#isFrameOpaque(com.kodroid.pilot.lib.statestack.StateStackFrame)}
+     */
+    boolean opaque() default true;
+}
@@ -0,0 +1,261 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.view.View;
+
+import com.kodroid.pilot.lib.android.stateFrameBacking.StateStackFrameBackedUI;
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the views a {@link StateStackFrameSetRendererView} stops showing, so they do not have to be
+ * rebuilt.
+ *
+ * - Retained views: the views of the last <code>maxRetainedViews</code> frames shown, by frame
+ *   instance (by identity, as the stack compares frames). Navigating back to one of these frames
+ *   reattaches its view as-is.
+ * - Recycled views: views evicted from the above, or whose frame has left the stack, are pooled per
+ *   view class and rebound to the next frame of the same class via
+ *   {@link StateStackFrameBackedUI#setBackingStateFrame(Object)}. Only views implementing
+ *   {@link StateStackFrameBackedUI.Recyclable} are pooled.
+ *
+ * Views hold a ref to their Context, so a cache must not outlive the Activity its views were created
+ * for. Not thread safe, use from the main thread only.
+ */
+public class FrameViewCache
+{
+    private final int maxRetainedViews;
+    private final int maxRecycledViewsPerClass;
+
+    /**
+     * Parallel lists, least recently shown first. Searched by identity, which is cheap as only a few
+     * views are retained.
+     */
+    private final ArrayList<StateStackFrame> retainedFrames = new ArrayList<>();
+    private final ArrayList<View> retainedViews = new ArrayList<>();
+    private final Map<Class<? extends View>, ArrayDeque<View>> recycledViews = new HashMap<>();
+
+    private int retainedHitCount;
+    private int recycledHitCount;
+    private int prewarmedHitCount;
+    private int missCount;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    /**
+     * @param maxRetainedViews         count of frames whose views are kept for reattaching, 0 to only recycle
+     * @param maxRecycledViewsPerClass count of views pooled per view class, 0 to only retain
+     */
+    public FrameViewCache(int maxRetainedViews, int maxRecycledViewsPerClass)
+    {
+        if(maxRetainedViews < 0 || maxRecycledViewsPerClass < 0)
+            throw new IllegalArgumentException("Cache sizes must be >= 0");
+        this.maxRetainedViews = maxRetainedViews;
+        this.maxRecycledViewsPerClass = maxRecycledViewsPerClass;
+    }
+
+    //==================================================================//
+    // Retaining
+    //==================================================================//
+
+    /**
+     * Called once the passed view is no longer shown for the passed frame
+     */
+    public void retainView(StateStackFrame frame, View view)
+    {
+        if(!frame.isOnStack())
+        {
+            recycleView(view);
+            return;
+        }
+        int index = indexOfRetainedFrame(frame);
+        if(index != -1)
+        {
+            View previousView = removeRetainedAt(index);
+            if(previousView != view)
+                recycleView(previousView);
+        }
+        retainedFrames.add(frame);
+        retainedViews.add(view);
+        recycleViewsOfFramesOffStack();
+        trimRetainedViews(maxRetainedViews);
+    }
+
+    /**
+     * @return the view last shown for the passed frame instance, removed from the cache. Null if none,
+     * or if that view is still attached (i.e. animating out), in which case it stays retained.
+     */
+    public View takeRetainedView(StateStackFrame frame)
+    {
+        int index = indexOfRetainedFrame(frame);
+        if(index == -1 || isAttached(retainedViews.get(index)))
+            return null;
+        retainedHitCount++;
+        return removeRetainedAt(index);
+    }
+
+    private int indexOfRetainedFrame(StateStackFrame frame)
+    {
+        for(int i = 0; i < retainedFrames.size(); i++)
+        {
+            if(retainedFrames.get(i) == frame)
+                return i;
+        }
+        return -1;
+    }
+
+    private View removeRetainedAt(int index)
+    {
+        retainedFrames.remove(index);
+        return retainedViews.remove(index);
+    }
+
+    //==================================================================//
+    // Recycling
+    //==================================================================//
+
+    /**
+     * @return a reset view of the passed class, removed from the cache, which needs binding to its
+     * new frame. Null if none pooled, see {@link #countMiss()}.
+     */
+    public View takeRecycledView(Class<? extends View> viewClass)
+    {
+        ArrayDeque<View> pool = recycledViews.get(viewClass);
+        View view = pool == null ? null : pool.poll();
+        if(view != null)
+            recycledHitCount++;
+        return view;
+    }
+
+    private void recycleView(View view)
+    {
+        if(maxRecycledViewsPerClass == 0 || !(view instanceof StateStackFrameBackedUI.Recyclable) || isAttached(view))
+            return; //dropped
+
+        ArrayDeque<View> pool = recycledViews.get(view.getClass());
+        if(pool == null)
+            recycledViews.put(view.getClass(), pool = new ArrayDeque<>());
+        if(pool.size() >= maxRecycledViewsPerClass)
+            return;
+
+        ((StateStackFrameBackedUI.Recyclable) view).resetForReuse();
+        pool.add(view);
+    }
+
+    private void recycleViewsOfFramesOffStack()
+    {
+        for(int i = retainedFrames.size() - 1; i >= 0; i--)
+        {
+            if(!retainedFrames.get(i).isOnStack())
+                recycleView(removeRetainedAt(i));
+        }
+    }
+
+    /**
+     * Attached views are still in use by a displayer (i.e. animating out) so can not be reused
+     */
+    boolean isAttached(View view)
+    {
+        return view.getParent() != null;
+    }
+
+    //==================================================================//
+    // Eviction
+    //==================================================================//
+
+    /**
+     * Evicts the least recently shown retained views (to the recycle pool) until at most
+     * <code>maxSize</code> are left, i.e. on memory pressure
+     */
+    public void trimRetainedViews(int maxSize)
+    {
+        while(retainedViews.size() > maxSize)
+            recycleView(removeRetainedAt(0));
+    }
+
+    /**
+     * Drops all retained and recycled views
+     */
+    public void evictAll()
+    {
+        retainedFrames.clear();
+        retainedViews.clear();
+        recycledViews.clear();
+    }
+
+    //==================================================================//
+    // Metrics
+    //==================================================================//
+
+    /**
+     * @return count of views reattached for the frame they were last shown for
+     */
+    public int getRetainedHitCount()
+    {
+        return retainedHitCount;
+    }
+
+    /**
+     * @return count of pooled views rebound to another frame
+     */
+    public int getRecycledHitCount()
+    {
+        return recycledHitCount;
+    }
+
+    /**
+     * @return count of views taken from a {@link FrameViewPrewarmer} as the cache had none
+     */
+    public int getPrewarmedHitCount()
+    {
+        return prewarmedHitCount;
+    }
+
+    /**
+     * @return count of views that had to be created
+     */
+    public int getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Called by the renderer once a view was found neither here nor in its prewarmer, so the miss
+     * count is only of views actually created.
+     */
+    void countMiss()
+    {
+        missCount++;
+    }
+
+    void countPrewarmedHit()
+    {
+        prewarmedHitCount++;
+    }
+
+    public int getRetainedViewCount()
+    {
+        return retainedViews.size();
+    }
+
+    public int getRecycledViewCount()
+    {
+        int count = 0;
+        for(ArrayDeque<View> pool : recycledViews.values())
+            count += pool.size();
+        return count;
+    }
+
+    public void resetCounts()
+    {
+        retainedHitCount = 0;
+        recycledHitCount = 0;
+        prewarmedHitCount = 0;
+        missCount = 0;
+    }
+}
@@ -0,0 +1,200 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.View;
+
+import com.kodroid.pilot.lib.statestack.FrameTypeDescriptor;
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the views of the frames likely to be pushed next while the main thread is idle, so a
+ * {@link StateStackFrameSetRendererView} can hand one over on push instead of creating it then.
+ *
+ * After each frame is shown the likely next frame classes are collected from the frame itself (if it
+ * implements {@link NextFramePredictor}) and then the predictor passed in here. Prewarmed views for
+ * frame classes no longer predicted are dropped, and at most <code>maxPrewarmedViews</code> are held.
+ * One view is built per main thread idle callback.
+ *
+ * Views hold a ref to their Context, so a prewarmer must not outlive the Activity its views were
+ * created for. Not thread safe, use from the main thread only.
+ */
+public class FrameViewPrewarmer
+{
+    private final int maxPrewarmedViews;
+    private final NextFramePredictor predictor;
+
+    private final Map<FrameTypeDescriptor, View> prewarmedViews = new HashMap<>();
+    private final ArrayDeque<FrameTypeDescriptor> pendingFrameTypes = new ArrayDeque<>();
+    private final List<Class<? extends StateStackFrame>> likelyNextFrames = new ArrayList<>();
+
+    private StateStackFrameSetRendererView.ViewCreator viewCreator;
+    private Context context;
+    private boolean idleScheduled;
+
+    private int hitCount;
+    private int prewarmedCount;
+    private int droppedCount;
+
+    private final MessageQueue.IdleHandler idleHandler = new MessageQueue.IdleHandler()
+    {
+        @Override
+        public boolean queueIdle()
+        {
+            idleScheduled = prewarmNext();
+            return idleScheduled;
+        }
+    };
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    /**
+     * @param maxPrewarmedViews count of views held, across all frame classes
+     * @param predictor         null to only use predictions declared by frames
+     */
+    public FrameViewPrewarmer(int maxPrewarmedViews, NextFramePredictor predictor)
+    {
+        if(maxPrewarmedViews < 1)
+            throw new IllegalArgumentException("maxPrewarmedViews must be >= 1");
+        this.maxPrewarmedViews = maxPrewarmedViews;
+        this.predictor = predictor;
+    }
+
+    //==================================================================//
+    // Prewarming
+    //==================================================================//
+
+    /**
+     * Called once the passed frame is shown, to prewarm the views of its likely next frames
+     */
+    void frameShown(StateStackFrame frame, StateStackFrameSetRendererView.ViewCreator viewCreator, Context context)
+    {
+        this.viewCreator = viewCreator;
+        this.context = context;
+
+        likelyNextFrames.clear();
+        if(frame instanceof NextFramePredictor)
+            ((NextFramePredictor) frame).predictNextFrames(frame, likelyNextFrames);
+        if(predictor != null)
+            predictor.predictNextFrames(frame, likelyNextFrames);
+
+        pendingFrameTypes.clear();
+        for(int i = 0; i < likelyNextFrames.size() && pendingFrameTypes.size() < maxPrewarmedViews; i++)
+        {
+            FrameTypeDescriptor descriptor = FrameTypeDescriptor.forClass(likelyNextFrames.get(i));
+            if(!pendingFrameTypes.contains(descriptor) && viewCreator.isFrameHandled(descriptor))
+                pendingFrameTypes.add(descriptor);
+        }
+
+        //drop views no longer likely, keeping those still likely
+        Iterator<FrameTypeDescriptor> iterator = prewarmedViews.keySet().iterator();
+        while(iterator.hasNext())
+        {
+            if(!pendingFrameTypes.contains(iterator.next()))
+            {
+                iterator.remove();
+                droppedCount++;
+            }
+        }
+        pendingFrameTypes.removeAll(prewarmedViews.keySet());
+
+        if(!pendingFrameTypes.isEmpty() && !idleScheduled)
+        {
+            idleScheduled = true;
+            scheduleIdle(idleHandler);
+        }
+    }
+
+    /**
+     * Builds the view of the next pending frame class
+     *
+     * @return true if more are pending
+     */
+    boolean prewarmNext()
+    {
+        FrameTypeDescriptor descriptor = pendingFrameTypes.poll();
+        if(descriptor != null)
+        {
+            prewarmedViews.put(descriptor, viewCreator.createUnboundView(context, descriptor));
+            prewarmedCount++;
+        }
+        return !pendingFrameTypes.isEmpty();
+    }
+
+    void scheduleIdle(MessageQueue.IdleHandler idleHandler)
+    {
+        Looper.myQueue().addIdleHandler(idleHandler);
+    }
+
+    /**
+     * @return a prewarmed view for the passed frames class, removed from the prewarmer, which needs
+     * binding to the frame. Null if none.
+     */
+    View takePrewarmedView(StateStackFrame frame)
+    {
+        View view = prewarmedViews.remove(frame.getTypeDescriptor());
+        if(view != null)
+            hitCount++;
+        return view;
+    }
+
+    /**
+     * Drops all prewarmed and pending views, i.e. on memory pressure
+     */
+    public void evictAll()
+    {
+        droppedCount += prewarmedViews.size();
+        prewarmedViews.clear();
+        pendingFrameTypes.clear();
+    }
+
+    //==================================================================//
+    // Metrics
+    //==================================================================//
+
+    /**
+     * @return count of prewarmed views handed over for a pushed frame
+     */
+    public int getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return count of views built ahead of time
+     */
+    public int getPrewarmedCount()
+    {
+        return prewarmedCount;
+    }
+
+    /**
+     * @return count of prewarmed views dropped without being used
+     */
+    public int getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    public int getPrewarmedViewCount()
+    {
+        return prewarmedViews.size();
+    }
+
+    public void resetCounts()
+    {
+        hitCount = 0;
+        prewarmedCount = 0;
+        droppedCount = 0;
+    }
+}
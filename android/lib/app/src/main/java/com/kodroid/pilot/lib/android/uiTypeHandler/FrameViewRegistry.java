@@ -0,0 +1,42 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.content.Context;
+import android.view.View;
+
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+/**
+ * Table of frame classes and the Views that render them, generated at compile time (as
+ * <code>PilotFrameViewRegistry</code>) from {@link ViewForFrame} and {@link FrameView} declarations by
+ * the Pilot compiler module. Views are created with direct constructor calls, so need no reflection or
+ * Proguard keep rules.
+ *
+ * Frames are identified by a dense type id, assigned at compile time. Hidden frames (see
+ * {@link com.kodroid.pilot.lib.statestack.HiddenStateStackFrame}) get a type id but no View.
+ */
+public interface FrameViewRegistry
+{
+    /**
+     * @return the type id of the passed frame class, or -1 if not in this registry
+     */
+    int getTypeId(Class<? extends StateStackFrame> frameClass);
+
+    /**
+     * @return count of frame classes, all type ids are less than this
+     */
+    int getTypeCount();
+
+    /**
+     * @return null if no View is bound for the type (i.e. a hidden frame)
+     */
+    Class<? extends View> getViewClass(int typeId);
+
+    /**
+     * @throws IllegalArgumentException if no View is bound for the type
+     */
+    View createView(int typeId, Context context);
+
+    boolean isHidden(int typeId);
+
+    boolean isOpaque(int typeId);
+}
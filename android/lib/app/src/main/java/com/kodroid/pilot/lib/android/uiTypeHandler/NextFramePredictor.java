@@ -0,0 +1,19 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.util.List;
+
+/**
+ * Predicts which frame classes are likely to be pushed after a given frame, so a
+ * {@link FrameViewPrewarmer} can build their views ahead of time. Can be implemented by a frame itself
+ * (declaring its own likely next frames) or by a navigation model shared by all frames.
+ */
+public interface NextFramePredictor
+{
+    /**
+     * @param topFrame         the frame just shown
+     * @param likelyNextFrames to add to, most likely first
+     */
+    void predictNextFrames(StateStackFrame topFrame, List<Class<? extends StateStackFrame>> likelyNextFrames);
+}
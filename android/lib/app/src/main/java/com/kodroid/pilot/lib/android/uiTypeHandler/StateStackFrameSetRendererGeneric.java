@@ -1,10 +1,9 @@
 package com.kodroid.pilot.lib.android.uiTypeHandler;
 
+import com.kodroid.pilot.lib.statestack.FrameTypeDescriptor;
 import com.kodroid.pilot.lib.statestack.StateStackFrame;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
  * This can be used for anything i.e. show old school Dialogs etc.
@@ -13,22 +12,31 @@ import java.util.Set;
  */
 public abstract class StateStackFrameSetRendererGeneric implements StateStackFrameSetRenderer
 {
-    private Set<Class<? extends StateStackFrame>> handledFrames = new HashSet<>();
+    /**
+     * By {@link FrameTypeDescriptor#getTypeId()}
+     */
+    private boolean[] handledTypeIds = new boolean[0];
 
     public StateStackFrameSetRendererGeneric(Class<? extends StateStackFrame>[] handledFrames)
     {
-        this.handledFrames.addAll(Arrays.asList(handledFrames));
+        for(Class<? extends StateStackFrame> frameClass : handledFrames)
+        {
+            int typeId = FrameTypeDescriptor.forClass(frameClass).getTypeId();
+            if(typeId >= handledTypeIds.length)
+                handledTypeIds = Arrays.copyOf(handledTypeIds, typeId + 1);
+            handledTypeIds[typeId] = true;
+        }
     }
 
     @Override
     public boolean isFrameSupported(Class<? extends StateStackFrame> frameClass) {
-        return handledFrames.contains(frameClass);
+        return isHandled(FrameTypeDescriptor.forClass(frameClass));
     }
 
     @Override
     public void renderFrame(StateStackFrame frame)
     {
-        if(handledFrames.contains(frame.getClass()))
+        if(isHandled(frame.getTypeDescriptor()))
         {
             showUiForFrame(frame);
             return;
@@ -56,5 +64,10 @@ public abstract class StateStackFrameSetRendererGeneric implements StateStackFra
      */
     protected abstract void showUiForFrame(StateStackFrame frame);
 
+    private boolean isHandled(FrameTypeDescriptor descriptor)
+    {
+        int typeId = descriptor.getTypeId();
+        return typeId < handledTypeIds.length && handledTypeIds[typeId];
+    }
 
 }
@@ -8,9 +8,11 @@ import android.view.View;
 import android.widget.FrameLayout;
 
 import com.kodroid.pilot.lib.android.stateFrameBacking.StateStackFrameBackedUI;
+import com.kodroid.pilot.lib.statestack.FrameTypeDescriptor;
 import com.kodroid.pilot.lib.statestack.StateStackFrame;
 
-import java.util.HashMap;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -22,8 +24,17 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
 {
     private final ViewCreator viewCreator;
     private final Displayer displayer;
+    private final FrameViewCache viewCache;
+    private final FrameViewPrewarmer prewarmer;
     private final boolean enableLogging;
 
+    /**
+     * Last view made visible by this renderer and its frame, handed to the {@link FrameViewCache}
+     * once replaced or cleared
+     */
+    private StateStackFrame shownFrame;
+    private View shownView;
+
     //==================================================================//
     // Constructor
     //==================================================================//
@@ -37,9 +48,38 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
             ViewCreator viewCreator,
             Displayer displayer,
             boolean enableLogging)
+    {
+        this(viewCreator, displayer, null, enableLogging);
+    }
+
+    /**
+     * @param viewCache keeps views no longer shown for reuse, null to create a new view every time.
+     *                  Must not be shared between renderers.
+     */
+    public StateStackFrameSetRendererView(
+            ViewCreator viewCreator,
+            Displayer displayer,
+            FrameViewCache viewCache,
+            boolean enableLogging)
+    {
+        this(viewCreator, displayer, viewCache, null, enableLogging);
+    }
+
+    /**
+     * @param prewarmer builds the views of likely next frames ahead of time, null to not prewarm.
+     *                  Must not be shared between renderers.
+     */
+    public StateStackFrameSetRendererView(
+            ViewCreator viewCreator,
+            Displayer displayer,
+            FrameViewCache viewCache,
+            FrameViewPrewarmer prewarmer,
+            boolean enableLogging)
     {
         this.viewCreator = viewCreator;
         this.displayer = displayer;
+        this.viewCache = viewCache;
+        this.prewarmer = prewarmer;
         this.enableLogging = enableLogging;
     }
 
@@ -59,8 +99,7 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
     {
         log("UITypeViewHandler:renderFrame(%s)", frame.toString());
 
-        Class<? extends StateStackFrame> frameClass = frame.getClass();
-        if(isFrameSupported(frameClass))
+        if(viewCreator.isFrameHandled(frame))
         {
             if(displayer.isViewAddedForFrameInstance(frame, viewCreator))
             {
@@ -68,8 +107,14 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
             }
             else //view is not visible
             {
-                log("UITypeViewHandler:renderFrame(%s) not added, adding new view", frame.toString());
-                displayer.makeVisible(viewCreator.createViewForFrame(displayer.getDisplayConext(), frame));
+                log("UITypeViewHandler:renderFrame(%s) not added, adding view", frame.toString());
+                View view = obtainViewForFrame(frame);
+                displayer.makeVisible(view);
+                releaseShownView(); //after, so a displayer that removes it straight away has detached it
+                shownFrame = frame;
+                shownView = view;
+                if(prewarmer != null)
+                    prewarmer.frameShown(frame, viewCreator, displayer.getDisplayConext());
             }
         }
         else
@@ -77,19 +122,66 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
     }
 
     /**
-     * Will return true for all views by default. Subclasses should override and return false for any non-opaque, non-fullscreen views.
+     * Will return true for all views by default, or the declared opacity if the {@link ViewCreator} uses
+     * a {@link FrameViewRegistry}. Subclasses can override and return false for any non-opaque,
+     * non-fullscreen views.
      *
      * @param frame the frame being queried
      * @return true if the passed Frame is opaque
      */
     @Override
     public boolean isFrameOpaque(StateStackFrame frame) {
-        return true;
+        return viewCreator.isFrameOpaque(frame);
     }
 
     @Override
     public void clearAllUI() {
         displayer.clearAllUI();
+        releaseShownView();
+    }
+
+    //==================================================================//
+    // View reuse
+    //==================================================================//
+
+    /**
+     * @return the retained view for this frame, else a recycled or prewarmed view bound to it, else a
+     * new view
+     */
+    @SuppressWarnings("unchecked")
+    private View obtainViewForFrame(StateStackFrame frame)
+    {
+        View view = null;
+        if(viewCache != null)
+        {
+            view = viewCache.takeRetainedView(frame);
+            if(view != null)
+                return view;
+            view = viewCache.takeRecycledView(viewCreator.getViewClassForFrame(frame));
+        }
+        if(view == null && prewarmer != null)
+        {
+            view = prewarmer.takePrewarmedView(frame);
+            if(view != null && viewCache != null)
+                viewCache.countPrewarmedHit();
+        }
+        if(view == null)
+        {
+            if(viewCache != null)
+                viewCache.countMiss();
+            return viewCreator.createViewForFrame(displayer.getDisplayConext(), frame);
+        }
+
+        ((StateStackFrameBackedUI) view).setBackingStateFrame(frame);
+        return view;
+    }
+
+    private void releaseShownView()
+    {
+        if(viewCache != null && shownView != null)
+            viewCache.retainView(shownFrame, shownView);
+        shownFrame = null;
+        shownView = null;
     }
 
     //==================================================================//
@@ -108,18 +200,61 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
     // Displayer Delegation
     //==================================================================//
 
+    /**
+     * Creates the View for a frame. The View class (and how to create it) for each frame class is
+     * resolved once and then looked up by {@link FrameTypeDescriptor#getTypeId()}.
+     */
     public static class ViewCreator
     {
-        private Map<Class<? extends StateStackFrame>, Class<? extends View>> mappings = new HashMap<>();
+        private final FrameViewRegistry registry;
+
+        /**
+         * By frame type id, null if unmapped (or, with a registry, not resolved yet)
+         */
+        private ViewBinding[] bindings = new ViewBinding[0];
 
+        /**
+         * Views are created reflectively, so need Proguard keep rules for their Context constructor
+         *
+         * @throws IllegalArgumentException if a mapped View class does not implement
+         * {@link StateStackFrameBackedUI} or has no public Context constructor
+         */
         public ViewCreator(Map<Class<? extends StateStackFrame>, Class<? extends View>> mappings)
         {
-            this.mappings = mappings;
+            this.registry = null;
+            for(Map.Entry<Class<? extends StateStackFrame>, Class<? extends View>> mapping : mappings.entrySet())
+            {
+                Class<? extends View> viewClass = mapping.getValue();
+                putBinding(FrameTypeDescriptor.forClass(mapping.getKey()), new ViewBinding(viewClass, resolveConstructor(viewClass), -1, true));
+            }
+        }
+
+        /**
+         * Views are created by the passed (generated) registry, without reflection
+         */
+        public ViewCreator(FrameViewRegistry registry)
+        {
+            this.registry = registry;
         }
 
         private boolean isFrameHandled(Class<? extends StateStackFrame> pilotFrame)
         {
-            return mappings.containsKey(pilotFrame);
+            return getBinding(FrameTypeDescriptor.forClass(pilotFrame)) != null;
+        }
+
+        private boolean isFrameHandled(StateStackFrame stateStackFrame)
+        {
+            return isFrameHandled(stateStackFrame.getTypeDescriptor());
+        }
+
+        boolean isFrameHandled(FrameTypeDescriptor descriptor)
+        {
+            return getBinding(descriptor) != null;
+        }
+
+        private boolean isFrameOpaque(StateStackFrame stateStackFrame)
+        {
+            return registry == null || requireBinding(stateStackFrame).opaque;
         }
 
         /**
@@ -128,12 +263,7 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
          */
         private Class<? extends View> getViewClassForFrame(StateStackFrame stateStackFrame)
         {
-            for(Class<? extends StateStackFrame> forFrame: mappings.keySet())
-            {
-                if(forFrame.equals(stateStackFrame.getClass())) return mappings.get(forFrame);
-            }
-
-            throw new IllegalArgumentException(stateStackFrame.getClass()+" not supported");
+            return requireBinding(stateStackFrame).viewClass;
         }
 
         /**
@@ -144,22 +274,108 @@ public class StateStackFrameSetRendererView implements StateStackFrameSetRendere
         @SuppressWarnings("unchecked")
         private View createViewForFrame(Context context, StateStackFrame stateStackFrame)
         {
-            View view = createView(context, getViewClassForFrame(stateStackFrame));
+            View view = createUnboundView(context, stateStackFrame.getTypeDescriptor());
             ((StateStackFrameBackedUI)view).setBackingStateFrame(stateStackFrame);
             return view;
         }
 
-        private <T extends View> T createView(Context context, Class<T> viewClass)
+        /**
+         * @return a new View instance for frames of the passed type, with no frame set yet
+         */
+        View createUnboundView(Context context, FrameTypeDescriptor descriptor)
+        {
+            ViewBinding binding = getBinding(descriptor);
+            if(binding == null)
+                throw new IllegalArgumentException(descriptor.getFrameClass()+" not supported");
+            return binding.constructor == null
+                    ? registry.createView(binding.registryTypeId, context)
+                    : createView(context, binding.constructor);
+        }
+
+        //==================================================================//
+        // Bindings
+        //==================================================================//
+
+        private ViewBinding requireBinding(StateStackFrame stateStackFrame)
+        {
+            ViewBinding binding = getBinding(stateStackFrame.getTypeDescriptor());
+            if(binding == null)
+                throw new IllegalArgumentException(stateStackFrame.getClass()+" not supported");
+            return binding;
+        }
+
+        /**
+         * @return null if no View is mapped for the passed frame class
+         */
+        private ViewBinding getBinding(FrameTypeDescriptor descriptor)
+        {
+            int typeId = descriptor.getTypeId();
+            if(typeId < bindings.length && bindings[typeId] != null)
+                return bindings[typeId];
+            if(registry == null)
+                return null;
+
+            int registryTypeId = registry.getTypeId(descriptor.getFrameClass());
+            Class<? extends View> viewClass = registryTypeId == -1 ? null : registry.getViewClass(registryTypeId);
+            if(viewClass == null)
+                return null;
+            ViewBinding binding = new ViewBinding(viewClass, null, registryTypeId, registry.isOpaque(registryTypeId));
+            putBinding(descriptor, binding);
+            return binding;
+        }
+
+        private void putBinding(FrameTypeDescriptor descriptor, ViewBinding binding)
+        {
+            int typeId = descriptor.getTypeId();
+            if(typeId >= bindings.length)
+                bindings = Arrays.copyOf(bindings, Math.max(typeId + 1, bindings.length * 2));
+            bindings[typeId] = binding;
+        }
+
+        private static <T extends View> Constructor<T> resolveConstructor(Class<T> viewClass)
+        {
+            if(!StateStackFrameBackedUI.class.isAssignableFrom(viewClass))
+                throw new IllegalArgumentException(viewClass+" must implement StateStackFrameBackedUI");
+            try
+            {
+                return viewClass.getConstructor(Context.class);
+            }
+            catch(NoSuchMethodException e)
+            {
+                throw new IllegalArgumentException(viewClass+" must have a public constructor taking only a Context", e);
+            }
+        }
+
+        private static <T extends View> T createView(Context context, Constructor<T> constructor)
         {
             try
             {
-                return viewClass.getConstructor(Context.class).newInstance(context);
+                return constructor.newInstance(context);
             }
             catch (Exception e)
             {
                 throw new RuntimeException(e);
             }
         }
+
+        private static class ViewBinding
+        {
+            final Class<? extends View> viewClass;
+            /**
+             * Null if created by the registry
+             */
+            final Constructor<? extends View> constructor;
+            final int registryTypeId;
+            final boolean opaque;
+
+            ViewBinding(Class<? extends View> viewClass, Constructor<? extends View> constructor, int registryTypeId, boolean opaque)
+            {
+                this.viewClass = viewClass;
+                this.constructor = constructor;
+                this.registryTypeId = registryTypeId;
+                this.opaque = opaque;
+            }
+        }
     }
 
     /**
@@ -0,0 +1,28 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import com.kodroid.pilot.lib.statestack.FrameTransitionModel;
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.util.List;
+
+/**
+ * {@link NextFramePredictor} backed by a learned {@link FrameTransitionModel}, i.e. to prewarm the
+ * views of the frames a user usually navigates to next via a {@link FrameViewPrewarmer}
+ */
+public class TransitionModelPredictor implements NextFramePredictor
+{
+    private final FrameTransitionModel transitionModel;
+    private final int maxPredictions;
+
+    public TransitionModelPredictor(FrameTransitionModel transitionModel, int maxPredictions)
+    {
+        this.transitionModel = transitionModel;
+        this.maxPredictions = maxPredictions;
+    }
+
+    @Override
+    public void predictNextFrames(StateStackFrame topFrame, List<Class<? extends StateStackFrame>> likelyNextFrames)
+    {
+        transitionModel.getLikelyNextFrames(topFrame.getTypeDescriptor(), maxPredictions, likelyNextFrames);
+    }
+}
@@ -0,0 +1,27 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds the annotated View class to a frame class, for the generated {@link FrameViewRegistry}. The
+ * View needs a public constructor taking only a Context. Can instead be declared on the frame
+ * via {@link FrameView}.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface ViewForFrame
+{
+    Class<? extends StateStackFrame> value();
+
+    /**
+     * See {@link StateStackFrameSetRenderer#isFrameOpaque(StateStackFrame)}
+     */
+    boolean opaque() default true;
+}
@@ -0,0 +1,69 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses repeated {@link StateStackFrame#notifyObservers(long)} calls into one delivery on an
+ * {@link Executor}, with the union of their change keys. Marking dirty is lock free so can happen
+ * from any thread, at most one delivery is scheduled at a time. See
+ * {@link StateStackFrame#setObserverNotificationExecutor(Executor)}.
+ */
+final class CoalescingObserverNotifier implements Runnable
+{
+    private final StateStackFrame frame;
+    private final Executor executor;
+    /**
+     * Keys changed since the last delivery, 0 when clean
+     */
+    private final AtomicLong pendingKeys = new AtomicLong();
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    CoalescingObserverNotifier(StateStackFrame frame, Executor executor)
+    {
+        this.frame = frame;
+        this.executor = executor;
+    }
+
+    //==================================================================//
+    // Producer side (any thread)
+    //==================================================================//
+
+    void markDirty(long changedKeys)
+    {
+        long previousKeys;
+        do
+        {
+            previousKeys = pendingKeys.get();
+        }
+        while(!pendingKeys.compareAndSet(previousKeys, previousKeys | changedKeys));
+
+        if(previousKeys == 0)
+        {
+            try
+            {
+                executor.execute(this);
+            }
+            catch(RuntimeException e)
+            {
+                //not scheduled, so clear for the next notify to schedule a delivery rather than wedge
+                pendingKeys.set(0);
+                throw e;
+            }
+        }
+    }
+
+    //==================================================================//
+    // Consumer side (executor thread)
+    //==================================================================//
+
+    @Override
+    public void run()
+    {
+        //reset first so a notify made during delivery schedules another
+        frame.deliverToObservers(pendingKeys.getAndSet(0));
+    }
+}
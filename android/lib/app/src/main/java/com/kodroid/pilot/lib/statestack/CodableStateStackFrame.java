@@ -0,0 +1,32 @@
+package com.kodroid.pilot.lib.statestack;
+
+/**
+ * Implemented by {@link StateStackFrame}s that write their own state for {@link StateStackCodec},
+ * which is far more compact than the Java serialization used for other frames.
+ *
+ * Implementations must have a no-arg constructor (any visibility). State is written as key / value
+ * pairs, so fields can be added or removed freely, and renamed via
+ * {@link StateStackCodec#registerKeyAlias(Class, String, String)}. Bump {@link #getStateVersion()} if
+ * the meaning of a key changes.
+ */
+public interface CodableStateStackFrame
+{
+    /**
+     * @return version of the state written by {@link #saveState(FrameStateWriter)}, passed back to
+     * {@link #restoreState(FrameStateReader, int)}
+     */
+    int getStateVersion();
+
+    void saveState(FrameStateWriter out);
+
+    /**
+     * Called on a new instance, before the frame is restored onto a stack. {@link StateStackFrame#pushed()}
+     * is not called again.
+     *
+     * With lazy decoding this runs when the frame is first read, which can be on a background reader
+     * thread of a {@link ConcurrentStateStack}. Must not touch the stack or the main thread.
+     *
+     * @param version the {@link #getStateVersion()} the state was written with
+     */
+    void restoreState(FrameStateReader in, int version);
+}
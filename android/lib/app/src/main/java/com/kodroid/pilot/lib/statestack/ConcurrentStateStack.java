@@ -0,0 +1,517 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.List;
+
+/**
+ * A {@link StateStack} that can be read from any thread.
+ *
+ * - Mutations (and listener / frame callbacks they trigger) are serialized on a single lock.
+ * - After each outermost mutation an immutable {@link StateStackSnapshot} is published.
+ * - Reads made from a thread that is not currently mutating the stack are served from the last
+ *   published snapshot, so never block and never see a half-applied mutation. Reads made from inside
+ *   a mutation (i.e. from {@link StateStackFrame#pushed()} or a listener) see the live stack.
+ *
+ * Background readers (i.e. presenters loading data that need a scoped frame via
+ * {@link #getFrameOfType(Class)}) should therefore be wired to an instance of this class.
+ */
+public class ConcurrentStateStack extends StateStack
+{
+    private final Object mutationLock = new Object();
+    private int mutationDepth; //guarded by mutationLock
+    private volatile StateStackSnapshot snapshot = StateStackSnapshot.empty();
+
+    //==================================================================//
+    // Snapshot
+    //==================================================================//
+
+    /**
+     * @return the last published snapshot, or the live state if called from inside a mutation
+     */
+    @Override
+    public StateStackSnapshot getSnapshot()
+    {
+        if(isMutatingThread())
+            return super.getSnapshot();
+        return snapshot;
+    }
+
+    //==================================================================//
+    // Mutations
+    //==================================================================//
+
+    @Override
+    public StateStack clearStack(boolean notifyListeners)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.clearStack(notifyListeners);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack pushFrame(StateStackFrame frameToPush, LaunchMode launchMode)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.pushFrame(frameToPush, launchMode);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack setDuplicatePushWindow(long windowMillis)
+    {
+        synchronized(mutationLock)
+        {
+            return super.setDuplicatePushWindow(windowMillis);
+        }
+    }
+
+    @Override
+    public StateStack setTransitionModel(FrameTransitionModel transitionModel)
+    {
+        synchronized(mutationLock)
+        {
+            return super.setTransitionModel(transitionModel);
+        }
+    }
+
+    @Override
+    public StateStack setHibernationDepth(int visibleFramesKept)
+    {
+        synchronized(mutationLock)
+        {
+            return super.setHibernationDepth(visibleFramesKept);
+        }
+    }
+
+    @Override
+    public StateStack setMaxVisibleDepth(int maxVisibleDepth)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.setMaxVisibleDepth(maxVisibleDepth);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack setStarted(boolean started)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.setStarted(started);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack popToNextVisibleFrame()
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.popToNextVisibleFrame();
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack popTopFrameInstance(StateStackFrame frameToPop)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.popTopFrameInstance(frameToPop);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack removeFrame(StateStackFrame frameToRemove)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.removeFrame(frameToRemove);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack popAtFrameInstance(StateStackFrame stateStackFrame, PopType popType, boolean notifyListeners)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.popAtFrameInstance(stateStackFrame, popType, notifyListeners);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack popAtFrameType(Class<? extends StateStackFrame> clazz, PopType popType, boolean notifyListeners)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.popAtFrameType(clazz, popType, notifyListeners);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public StateStack registerIndexedType(Class<?> type)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.registerIndexedType(type);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    public int onTrimMemory(int level)
+    {
+        synchronized(mutationLock)
+        {
+            return super.onTrimMemory(level); //reads the hibernation depth under the lock
+        }
+    }
+
+    @Override
+    public int hibernateFramesBelow(int visibleFramesKept)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.hibernateFramesBelow(visibleFramesKept);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    @Override
+    void restoreFrames(List<StateStackFrame> frames)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                super.restoreFrames(frames);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    /**
+     * The lock is held for the whole of the passed edit, so other threads see the result of the
+     * edit published in one go.
+     */
+    @Override
+    public StateStack edit(Edit edit)
+    {
+        synchronized(mutationLock)
+        {
+            enterMutation();
+            try
+            {
+                return super.edit(edit);
+            }
+            finally
+            {
+                exitMutation();
+            }
+        }
+    }
+
+    /**
+     * Only supported from within {@link #edit(Edit)} on this class, as the mutation lock can not be
+     * held across separate begin / commit calls. Throws otherwise.
+     */
+    @Override
+    public StateStack beginTransaction()
+    {
+        assertMutatingThread("beginTransaction");
+        return super.beginTransaction();
+    }
+
+    @Override
+    public StateStack commitTransaction()
+    {
+        assertMutatingThread("commitTransaction");
+        return super.commitTransaction();
+    }
+
+    @Override
+    public StateStack rollbackTransaction()
+    {
+        assertMutatingThread("rollbackTransaction");
+        return super.rollbackTransaction();
+    }
+
+    //==================================================================//
+    // Reads
+    //==================================================================//
+
+    @Override
+    public StateStackFrame getTopVisibleFrame()
+    {
+        if(isMutatingThread())
+            return super.getTopVisibleFrame();
+        return snapshot.getTopVisibleFrame();
+    }
+
+    @Override
+    public StateStackFrame getVisibleFrameFromTopDown(int positionFromTop)
+    {
+        if(isMutatingThread())
+            return super.getVisibleFrameFromTopDown(positionFromTop);
+        return snapshot.getVisibleFrameFromTopDown(positionFromTop);
+    }
+
+    @Override
+    public void forEachVisibleFrameFromTopDown(VisibleFrameVisitor visitor)
+    {
+        if(isMutatingThread())
+            super.forEachVisibleFrameFromTopDown(visitor);
+        else
+            snapshot.forEachVisibleFrameFromTopDown(visitor);
+    }
+
+    @Override
+    public int getVisibleFrameCount()
+    {
+        if(isMutatingThread())
+            return super.getVisibleFrameCount();
+        return snapshot.getVisibleFrameCount();
+    }
+
+    @Override
+    public boolean doesContainVisibleFrame()
+    {
+        if(isMutatingThread())
+            return super.doesContainVisibleFrame();
+        return snapshot.doesContainVisibleFrame();
+    }
+
+    @Override
+    public <T extends StateStackFrame> T getFrameOfType(Class<T> clazz)
+    {
+        if(isMutatingThread())
+            return super.getFrameOfType(clazz);
+        return snapshot.getFrameOfType(clazz);
+    }
+
+    @Override
+    public <T> T getBottomFrameOfType(Class<T> clazz)
+    {
+        if(isMutatingThread())
+            return super.getBottomFrameOfType(clazz);
+        return snapshot.getBottomFrameOfType(clazz);
+    }
+
+    @Override
+    public <T> T getTopFrameOfType(Class<T> clazz)
+    {
+        if(isMutatingThread())
+            return super.getTopFrameOfType(clazz);
+        return snapshot.getTopFrameOfType(clazz);
+    }
+
+    @Override
+    public int getFrameCountOfType(Class<?> clazz)
+    {
+        if(isMutatingThread())
+            return super.getFrameCountOfType(clazz);
+        return snapshot.getFrameCountOfType(clazz);
+    }
+
+    @Override
+    public <T> List<T> getFramesOfType(Class<T> clazz)
+    {
+        if(isMutatingThread())
+            return super.getFramesOfType(clazz);
+        return snapshot.getFramesOfType(clazz);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        if(isMutatingThread())
+            return super.isEmpty();
+        return snapshot.isEmpty();
+    }
+
+    @Override
+    public int getSize()
+    {
+        if(isMutatingThread())
+            return super.getSize();
+        return snapshot.getSize();
+    }
+
+    @Override
+    StateStackFrame getFrameAtIndex(int index)
+    {
+        if(isMutatingThread())
+            return super.getFrameAtIndex(index);
+        return snapshot.getFrameAtIndex(index);
+    }
+
+    //==================================================================//
+    // Listeners
+    //==================================================================//
+
+    @Override
+    public void addTopFrameChangedListener(TopFrameChangedListener topFrameChangedListener)
+    {
+        synchronized(mutationLock)
+        {
+            super.addTopFrameChangedListener(topFrameChangedListener);
+        }
+    }
+
+    @Override
+    public void setStackEmptyListener(StackEmptyListener stackEmptyListener)
+    {
+        synchronized(mutationLock)
+        {
+            super.setStackEmptyListener(stackEmptyListener);
+        }
+    }
+
+    @Override
+    public void deleteListeners(TopFrameChangedListener topFrameChangedListener, StackEmptyListener stackEmptyListener)
+    {
+        synchronized(mutationLock)
+        {
+            super.deleteListeners(topFrameChangedListener, stackEmptyListener);
+        }
+    }
+
+    @Override
+    public void addStartedStateListener(StartedStateListener startedStateListener)
+    {
+        synchronized(mutationLock)
+        {
+            super.addStartedStateListener(startedStateListener);
+        }
+    }
+
+    @Override
+    public void removeStartedStateListener(StartedStateListener startedStateListener)
+    {
+        synchronized(mutationLock)
+        {
+            super.removeStartedStateListener(startedStateListener);
+        }
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private boolean isMutatingThread()
+    {
+        return Thread.holdsLock(mutationLock);
+    }
+
+    private void assertMutatingThread(String methodName)
+    {
+        if(!isMutatingThread())
+            throw new IllegalStateException(methodName + "() must be called from within edit() on a ConcurrentStateStack");
+    }
+
+    /**
+     * Must hold mutationLock
+     */
+    private void enterMutation()
+    {
+        mutationDepth++;
+    }
+
+    /**
+     * Must hold mutationLock. Publishes a new snapshot once the outermost mutation completes.
+     */
+    private void exitMutation()
+    {
+        if(--mutationDepth == 0)
+            snapshot = super.getSnapshot();
+    }
+}
@@ -0,0 +1,146 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Arrays;
+
+/**
+ * Growable, unsynchronized array of {@link StateStackFrame}s used as the backing store of a
+ * {@link StateStack}. Index 0 is the bottom of the stack.
+ *
+ * Frames are compared by identity only. Iterate via {@link #get(int)} / {@link #size()} to avoid
+ * iterator allocation.
+ *
+ * Not thread safe.
+ */
+final class FrameArray
+{
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private StateStackFrame[] frames;
+    private int size;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    FrameArray()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FrameArray(int initialCapacity)
+    {
+        frames = new StateStackFrame[Math.max(1, initialCapacity)];
+    }
+
+    //==================================================================//
+    // Access
+    //==================================================================//
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @param index 0 is the bottom of the stack
+     */
+    StateStackFrame get(int index)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        return frames[index];
+    }
+
+    void set(int index, StateStackFrame frame)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        frames[index] = frame;
+    }
+
+    /**
+     * @return top frame or null if empty
+     */
+    StateStackFrame peek()
+    {
+        return size == 0 ? null : frames[size - 1];
+    }
+
+    /**
+     * Searches top down. Matches an {@link UndecodedStateStackFrame} that has been decoded to the
+     * passed instance.
+     *
+     * @return the index of the passed instance or -1 if not present
+     */
+    int lastIndexOf(StateStackFrame frame)
+    {
+        for(int i = size - 1; i >= 0; i--)
+        {
+            if(frames[i] == frame || UndecodedStateStackFrame.resolveIfDecoded(frames[i]) == frame)
+                return i;
+        }
+        return -1;
+    }
+
+    //==================================================================//
+    // Mutation
+    //==================================================================//
+
+    void push(StateStackFrame frame)
+    {
+        if(size == frames.length)
+            frames = Arrays.copyOf(frames, size * 2);
+        frames[size++] = frame;
+    }
+
+    /**
+     * @return the removed top frame
+     */
+    StateStackFrame pop()
+    {
+        if(size == 0)
+            throw new IllegalStateException("Cannot pop an empty FrameArray");
+        StateStackFrame frame = frames[--size];
+        frames[size] = null;
+        return frame;
+    }
+
+    /**
+     * Removes all frames at and above the passed index in one go. No-op if the index is >= size.
+     */
+    void truncate(int newSize)
+    {
+        if(newSize < 0)
+            throw new IndexOutOfBoundsException("newSize: " + newSize);
+        if(newSize >= size)
+            return;
+        Arrays.fill(frames, newSize, size, null);
+        size = newSize;
+    }
+
+    /**
+     * Removes the passed instance (searching top down) and shifts all frames above it down one.
+     *
+     * @return the index the frame was removed from, or -1 if not present
+     */
+    int removeByIdentity(StateStackFrame frame)
+    {
+        int index = lastIndexOf(frame);
+        if(index != -1)
+            removeAt(index);
+        return index;
+    }
+
+    StateStackFrame removeAt(int index)
+    {
+        StateStackFrame removed = get(index);
+        System.arraycopy(frames, index + 1, frames, index, size - index - 1);
+        frames[--size] = null;
+        return removed;
+    }
+}
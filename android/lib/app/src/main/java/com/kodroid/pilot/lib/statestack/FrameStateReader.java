@@ -0,0 +1,88 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Map;
+
+/**
+ * Reads state written via {@link FrameStateWriter}. Keys that are missing (i.e. written by an older
+ * version of the frame) return the passed default. Keys renamed via
+ * {@link StateStackCodec#registerKeyAlias(Class, String, String)} are found under their new name.
+ */
+public final class FrameStateReader
+{
+    private final Map<String, Object> values;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    FrameStateReader(Map<String, Object> values)
+    {
+        this.values = values;
+    }
+
+    //==================================================================//
+    // Values
+    //==================================================================//
+
+    public boolean contains(String key)
+    {
+        return values.containsKey(key);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * Also reads values written with {@link FrameStateWriter#putLong(String, long)} if in range
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        Object value = values.get(key);
+        if(!(value instanceof Long))
+            return defaultValue;
+        long longValue = (Long) value;
+        if(longValue != (int) longValue)
+            throw new IllegalStateException("Value for '"+key+"' does not fit in an int: "+longValue);
+        return (int) longValue;
+    }
+
+    /**
+     * Also reads values written with {@link FrameStateWriter#putInt(String, int)}
+     */
+    public long getLong(String key, long defaultValue)
+    {
+        Object value = values.get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue)
+    {
+        Object value = values.get(key);
+        return value instanceof Double ? (Double) value : defaultValue;
+    }
+
+    /**
+     * @return the value, null if written as null, or the default if missing
+     */
+    public String getString(String key, String defaultValue)
+    {
+        if(!values.containsKey(key))
+            return defaultValue;
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return the value, null if written as null, or the default if missing
+     */
+    public byte[] getBytes(String key, byte[] defaultValue)
+    {
+        if(!values.containsKey(key))
+            return defaultValue;
+        Object value = values.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+}
@@ -0,0 +1,186 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Key / value state of a {@link CodableStateStackFrame}. Keys are written once per stack, not per
+ * frame, so short descriptive names cost nothing extra.
+ */
+public final class FrameStateWriter
+{
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_BYTES = 6;
+
+    private final StateStackCodec.StringTable keyTable;
+    private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(entryBytes);
+    private final Set<String> writtenKeys = new HashSet<>();
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    FrameStateWriter(StateStackCodec.StringTable keyTable)
+    {
+        this.keyTable = keyTable;
+    }
+
+    //==================================================================//
+    // Values
+    //==================================================================//
+
+    public FrameStateWriter putBoolean(String key, boolean value)
+    {
+        try
+        {
+            writeKey(key, TYPE_BOOLEAN);
+            out.writeBoolean(value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    public FrameStateWriter putInt(String key, int value)
+    {
+        try
+        {
+            writeKey(key, TYPE_INT);
+            StateStackCodec.writeVarLong(out, value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    public FrameStateWriter putLong(String key, long value)
+    {
+        try
+        {
+            writeKey(key, TYPE_LONG);
+            StateStackCodec.writeVarLong(out, value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    public FrameStateWriter putDouble(String key, double value)
+    {
+        try
+        {
+            writeKey(key, TYPE_DOUBLE);
+            out.writeDouble(value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * @param value can be null
+     */
+    public FrameStateWriter putString(String key, String value)
+    {
+        try
+        {
+            if(value == null)
+            {
+                writeKey(key, TYPE_NULL);
+                return this;
+            }
+            writeKey(key, TYPE_STRING);
+            StateStackCodec.writeString(out, value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * @param value can be null
+     */
+    public FrameStateWriter putBytes(String key, byte[] value)
+    {
+        try
+        {
+            if(value == null)
+            {
+                writeKey(key, TYPE_NULL);
+                return this;
+            }
+            writeKey(key, TYPE_BYTES);
+            StateStackCodec.writeVarInt(out, value.length);
+            out.write(value);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    //==================================================================//
+    // Package
+    //==================================================================//
+
+    /**
+     * @param value as read by {@link StateStackCodec}, for re-encoding an undecoded frame
+     */
+    void putValue(String key, Object value)
+    {
+        if(value == null || value instanceof String)
+            putString(key, (String) value);
+        else if(value instanceof Boolean)
+            putBoolean(key, (Boolean) value);
+        else if(value instanceof Long)
+            putLong(key, (Long) value);
+        else if(value instanceof Double)
+            putDouble(key, (Double) value);
+        else if(value instanceof byte[])
+            putBytes(key, (byte[]) value);
+        else
+            throw new IllegalArgumentException("Unsupported value type "+value.getClass().getName());
+    }
+
+    int getEntryCount()
+    {
+        return writtenKeys.size();
+    }
+
+    byte[] getEntryBytes()
+    {
+        return entryBytes.toByteArray();
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private void writeKey(String key, byte type) throws IOException
+    {
+        if(!writtenKeys.add(key))
+            throw new IllegalArgumentException("Key '"+key+"' already written");
+        StateStackCodec.writeVarInt(out, keyTable.idOf(key));
+        out.writeByte(type);
+    }
+}
@@ -0,0 +1,229 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Learns which frame classes usually follow which, from the visible frame pushes of the
+ * {@link StateStack}s it is set on (see {@link StateStack#setTransitionModel(FrameTransitionModel)}).
+ *
+ * Counts are held in a square matrix indexed by {@link FrameTypeDescriptor#getTypeId()}, so recording
+ * a push is an array increment and only allocates when a frame class is seen for the first time.
+ * Type ids are not stable across processes, so the model is persisted by class name via
+ * {@link #writeTo(File)} / {@link #readFrom(File)}.
+ *
+ * Thread safe.
+ */
+public final class FrameTransitionModel
+{
+    private static final int MAGIC = 0x504C544D; //PLTM
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Row major, <code>counts[fromTypeId * capacity + toTypeId]</code>
+     */
+    private int[] counts = new int[0];
+    private FrameTypeDescriptor[] descriptors = new FrameTypeDescriptor[0];
+    private int capacity;
+
+    //==================================================================//
+    // Recording
+    //==================================================================//
+
+    /**
+     * Counts a push of a <code>to</code> frame while a <code>from</code> frame was the top visible
+     * frame
+     */
+    public synchronized void recordTransition(FrameTypeDescriptor from, FrameTypeDescriptor to)
+    {
+        ensureCapacity(Math.max(from.getTypeId(), to.getTypeId()) + 1);
+        descriptors[from.getTypeId()] = from;
+        descriptors[to.getTypeId()] = to;
+        int index = from.getTypeId() * capacity + to.getTypeId();
+        if(counts[index] != Integer.MAX_VALUE)
+            counts[index]++;
+    }
+
+    public synchronized int getTransitionCount(Class<? extends StateStackFrame> from, Class<? extends StateStackFrame> to)
+    {
+        int fromTypeId = FrameTypeDescriptor.forClass(from).getTypeId();
+        int toTypeId = FrameTypeDescriptor.forClass(to).getTypeId();
+        if(fromTypeId >= capacity || toTypeId >= capacity)
+            return 0;
+        return counts[fromTypeId * capacity + toTypeId];
+    }
+
+    /**
+     * Adds the frame classes most often pushed after the passed one to the passed list, most likely
+     * first (ties by first seen). Does not allocate.
+     *
+     * @param max max count of frame classes added
+     */
+    public synchronized void getLikelyNextFrames(FrameTypeDescriptor from, int max, List<Class<? extends StateStackFrame>> likelyNextFrames)
+    {
+        int fromTypeId = from.getTypeId();
+        if(fromTypeId >= capacity)
+            return;
+
+        //selection of the top max by (count desc, type id asc)
+        int rowStart = fromTypeId * capacity;
+        int previousCount = Integer.MAX_VALUE;
+        int previousTypeId = -1;
+        for(int added = 0; added < max; added++)
+        {
+            int bestTypeId = -1;
+            int bestCount = 0;
+            for(int toTypeId = 0; toTypeId < capacity; toTypeId++)
+            {
+                int count = counts[rowStart + toTypeId];
+                boolean afterPrevious = count < previousCount || (count == previousCount && toTypeId > previousTypeId);
+                if(count > bestCount && afterPrevious)
+                {
+                    bestTypeId = toTypeId;
+                    bestCount = count;
+                }
+            }
+            if(bestTypeId == -1)
+                return;
+            likelyNextFrames.add(descriptors[bestTypeId].getFrameClass());
+            previousCount = bestCount;
+            previousTypeId = bestTypeId;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        Arrays.fill(counts, 0);
+    }
+
+    private void ensureCapacity(int minCapacity)
+    {
+        if(minCapacity <= capacity)
+            return;
+
+        int newCapacity = Math.max(minCapacity, capacity * 2);
+        int[] newCounts = new int[newCapacity * newCapacity];
+        for(int row = 0; row < capacity; row++)
+            System.arraycopy(counts, row * capacity, newCounts, row * newCapacity, capacity);
+        counts = newCounts;
+        descriptors = Arrays.copyOf(descriptors, newCapacity);
+        capacity = newCapacity;
+    }
+
+    //==================================================================//
+    // Persistence
+    //==================================================================//
+
+    /**
+     * Writes the model to the passed file, replacing it atomically. Only non zero counts are written.
+     */
+    public synchronized void writeTo(File file) throws IOException
+    {
+        File tempFile = new File(file.getPath()+".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            //class name table, by type id
+            out.writeInt(capacity);
+            for(FrameTypeDescriptor descriptor : descriptors)
+                out.writeUTF(descriptor == null ? "" : descriptor.getFrameClass().getName());
+
+            int entryCount = 0;
+            for(int count : counts)
+            {
+                if(count != 0)
+                    entryCount++;
+            }
+            out.writeInt(entryCount);
+            for(int i = 0; i < counts.length; i++)
+            {
+                if(counts[i] == 0)
+                    continue;
+                out.writeInt(i / capacity);
+                out.writeInt(i % capacity);
+                out.writeInt(counts[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tempFile.renameTo(file))
+            throw new IOException("Unable to replace "+file);
+    }
+
+    /**
+     * @return the model last written to the passed file, or an empty model if there is none.
+     * Counts for frame classes that no longer exist are dropped.
+     * @throws IOException if the file is malformed
+     */
+    public static FrameTransitionModel readFrom(File file) throws IOException
+    {
+        FrameTransitionModel model = new FrameTransitionModel();
+        if(!file.exists())
+            return model;
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Malformed frame transition model "+file);
+
+            FrameTypeDescriptor[] savedDescriptors = new FrameTypeDescriptor[in.readInt()];
+            for(int i = 0; i < savedDescriptors.length; i++)
+                savedDescriptors[i] = resolveDescriptor(in.readUTF());
+
+            int entryCount = in.readInt();
+            for(int i = 0; i < entryCount; i++)
+            {
+                int fromIndex = in.readInt();
+                int toIndex = in.readInt();
+                int count = in.readInt();
+                if(fromIndex < 0 || fromIndex >= savedDescriptors.length || toIndex < 0 || toIndex >= savedDescriptors.length)
+                    throw new IOException("Malformed frame transition model "+file);
+                FrameTypeDescriptor from = savedDescriptors[fromIndex];
+                FrameTypeDescriptor to = savedDescriptors[toIndex];
+                if(from != null && to != null)
+                {
+                    model.recordTransition(from, to);
+                    model.counts[from.getTypeId() * model.capacity + to.getTypeId()] = count;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return model;
+    }
+
+    /**
+     * @return null if the class no longer exists (or is no longer a frame)
+     */
+    @SuppressWarnings("unchecked")
+    private static FrameTypeDescriptor resolveDescriptor(String className)
+    {
+        if(className.isEmpty())
+            return null;
+        try
+        {
+            Class<?> frameClass = Class.forName(className, false, FrameTransitionModel.class.getClassLoader());
+            if(!StateStackFrame.class.isAssignableFrom(frameClass))
+                return null;
+            return FrameTypeDescriptor.forClass((Class<? extends StateStackFrame>) frameClass);
+        }
+        catch(ClassNotFoundException e)
+        {
+            return null;
+        }
+    }
+}
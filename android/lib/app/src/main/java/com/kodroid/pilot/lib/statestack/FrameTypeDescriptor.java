@@ -0,0 +1,207 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.lang.annotation.Annotation;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metadata for a {@link StateStackFrame} class that is resolved once (via reflection) and then cached
+ * for the lifetime of the process, so stack operations do not need to reflect on every call.
+ *
+ * Lookups are lock free. The backing registry is copy-on-write, which is fine as the number of frame
+ * classes in an app is small and only grows when a class is seen for the first time.
+ */
+public final class FrameTypeDescriptor
+{
+    private static final Object REGISTRY_LOCK = new Object();
+    private static volatile Map<Class<?>, FrameTypeDescriptor> registry = new HashMap<>();
+    private static int nextTypeId;
+
+    //==================================================================//
+    // Registry
+    //==================================================================//
+
+    /**
+     * @param frameClass not null
+     * @return the cached descriptor for the passed class, creating it on first use
+     */
+    public static FrameTypeDescriptor forClass(Class<? extends StateStackFrame> frameClass)
+    {
+        FrameTypeDescriptor descriptor = registry.get(frameClass);
+        if(descriptor != null)
+            return descriptor;
+
+        synchronized(REGISTRY_LOCK)
+        {
+            descriptor = registry.get(frameClass);
+            if(descriptor != null)
+                return descriptor;
+
+            descriptor = new FrameTypeDescriptor(frameClass, nextTypeId++,
+                    isAnnotated(frameClass, HiddenStateStackFrame.class),
+                    isAnnotated(frameClass, HibernatableStateStackFrame.class),
+                    TombstonableStateStackFrame.class.isAssignableFrom(frameClass),
+                    overrides(frameClass, "popped"),
+                    overrides(frameClass, "likelyNextFrames", List.class));
+            Map<Class<?>, FrameTypeDescriptor> newRegistry = new HashMap<>(registry);
+            newRegistry.put(frameClass, descriptor);
+            registry = newRegistry;
+            return descriptor;
+        }
+    }
+
+    /**
+     * @return the cached descriptor for the passed class, or null if none has been created. Unlike
+     * {@link #forClass(Class)} this never creates one, so no type id is taken for classes that are
+     * only queried (i.e. an abstract base or an interface).
+     */
+    static FrameTypeDescriptor peek(Class<?> frameClass)
+    {
+        return registry.get(frameClass);
+    }
+
+    /**
+     * @return count of descriptors created so far. All type ids are less than this value.
+     */
+    public static int getRegisteredTypeCount()
+    {
+        synchronized(REGISTRY_LOCK)
+        {
+            return nextTypeId;
+        }
+    }
+
+    //==================================================================//
+    // Fields
+    //==================================================================//
+
+    private final Class<? extends StateStackFrame> frameClass;
+    private final int typeId;
+    private final boolean hidden;
+    private final boolean hibernatable;
+    private final boolean tombstonable;
+    private final boolean overridesPopped;
+    private final boolean overridesLikelyNextFrames;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    private FrameTypeDescriptor(Class<? extends StateStackFrame> frameClass, int typeId, boolean hidden, boolean hibernatable, boolean tombstonable, boolean overridesPopped, boolean overridesLikelyNextFrames)
+    {
+        this.frameClass = frameClass;
+        this.typeId = typeId;
+        this.hidden = hidden;
+        this.hibernatable = hibernatable && !hidden;
+        this.tombstonable = tombstonable && !hidden;
+        this.overridesPopped = overridesPopped;
+        this.overridesLikelyNextFrames = overridesLikelyNextFrames;
+    }
+
+    //==================================================================//
+    // Accessors
+    //==================================================================//
+
+    public Class<? extends StateStackFrame> getFrameClass()
+    {
+        return frameClass;
+    }
+
+    /**
+     * @return a dense id (starting at 0) that is unique to this frame class for the life of the
+     * process. Not stable across processes so should not be persisted.
+     */
+    public int getTypeId()
+    {
+        return typeId;
+    }
+
+    /**
+     * @return true if frames of this class are marked with {@link HiddenStateStackFrame}
+     */
+    public boolean isHidden()
+    {
+        return hidden;
+    }
+
+    /**
+     * @return true if frames of this class are marked with {@link HibernatableStateStackFrame} (and
+     * are not hidden)
+     */
+    public boolean isHibernatable()
+    {
+        return hibernatable;
+    }
+
+    /**
+     * @return true if frames of this class implement {@link TombstonableStateStackFrame} (and are not
+     * hidden)
+     */
+    public boolean isTombstonable()
+    {
+        return tombstonable;
+    }
+
+    /**
+     * @return true if frames of this class override {@link StateStackFrame#popped()}, so an
+     * undecoded frame of this class has to be decoded to be popped
+     */
+    public boolean overridesPopped()
+    {
+        return overridesPopped;
+    }
+
+    /**
+     * @return true if frames of this class override {@link StateStackFrame#likelyNextFrames(List)}, so
+     * predictions only need computing for these
+     */
+    public boolean overridesLikelyNextFrames()
+    {
+        return overridesLikelyNextFrames;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FrameTypeDescriptor{" + frameClass.getName() + ", typeId=" + typeId + ", hidden=" + hidden + ", hibernatable=" + hibernatable + ", tombstonable=" + tombstonable + "}";
+    }
+
+    //==================================================================//
+    // Resolution
+    //==================================================================//
+
+    /**
+     * A class is marked if it, or any superclass, is annotated with the marker (i.e.
+     * {@link HiddenStateStackFrame}) directly or with an annotation that is itself annotated with
+     * the marker.
+     */
+    private static boolean isAnnotated(Class<?> frameClass, Class<? extends Annotation> marker)
+    {
+        for(Class<?> clazz = frameClass; clazz != null && clazz != StateStackFrame.class; clazz = clazz.getSuperclass())
+        {
+            if(clazz.isAnnotationPresent(marker))
+                return true;
+
+            for(Annotation annotation : clazz.getDeclaredAnnotations())
+            {
+                if(annotation.annotationType().isAnnotationPresent(marker))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean overrides(Class<?> frameClass, String methodName, Class<?>... parameterTypes)
+    {
+        try
+        {
+            return frameClass.getMethod(methodName, parameterTypes).getDeclaringClass() != StateStackFrame.class;
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps frame types to the stack indexes of the frames of that type, bottom up. Always indexes the
+ * exact class of each frame (by {@link FrameTypeDescriptor#getTypeId()}) and optionally any
+ * registered supertype or interface.
+ *
+ * Must be told about every push / pop / remove of the owning {@link StateStack}.
+ *
+ * Not thread safe.
+ */
+final class FrameTypeIndex
+{
+    private static final PositionList EMPTY = new PositionList();
+
+    private PositionList[] exactTypeBuckets = new PositionList[16];
+    private final Map<Class<?>, PositionList> registeredTypeBuckets = new HashMap<>();
+    private final List<Class<?>> registeredTypes = new ArrayList<>();
+
+    //==================================================================//
+    // Registration
+    //==================================================================//
+
+    /**
+     * Start indexing frames that are assignable to the passed type. Any frames already in the
+     * passed array are indexed straight away.
+     *
+     * @return false if already registered
+     */
+    boolean registerType(Class<?> type, FrameArray frames)
+    {
+        if(registeredTypeBuckets.containsKey(type))
+            return false;
+
+        PositionList bucket = new PositionList();
+        for(int i = 0; i < frames.size(); i++)
+        {
+            if(isOfType(frames.get(i), type))
+                bucket.add(i);
+        }
+        registeredTypes.add(type);
+        registeredTypeBuckets.put(type, bucket);
+        return true;
+    }
+
+    boolean isRegisteredType(Class<?> type)
+    {
+        return registeredTypeBuckets.containsKey(type);
+    }
+
+    /**
+     * @return a copy of all registered types
+     */
+    Class<?>[] getRegisteredTypes()
+    {
+        return registeredTypes.toArray(new Class<?>[registeredTypes.size()]);
+    }
+
+    //==================================================================//
+    // Stack events
+    //==================================================================//
+
+    void framePushed(StateStackFrame frame, int index)
+    {
+        exactTypeBucketFor(frame.getTypeDescriptor().getTypeId(), true).add(index);
+        for(int i = 0; i < registeredTypes.size(); i++)
+        {
+            Class<?> type = registeredTypes.get(i);
+            if(isOfType(frame, type))
+                registeredTypeBuckets.get(type).add(index);
+        }
+    }
+
+    /**
+     * The passed frame must have been the top of the stack.
+     */
+    void topFramePopped(StateStackFrame frame)
+    {
+        exactTypeBucketFor(frame.getTypeDescriptor().getTypeId(), true).removeLast();
+        for(int i = 0; i < registeredTypes.size(); i++)
+        {
+            Class<?> type = registeredTypes.get(i);
+            if(isOfType(frame, type))
+                registeredTypeBuckets.get(type).removeLast();
+        }
+    }
+
+    /**
+     * The passed frame has been removed from the passed index and all frames above shifted down one.
+     */
+    void frameRemoved(int index)
+    {
+        for(PositionList bucket : exactTypeBuckets)
+        {
+            if(bucket != null)
+                bucket.removeAndShift(index);
+        }
+        for(PositionList bucket : registeredTypeBuckets.values())
+            bucket.removeAndShift(index);
+    }
+
+    /**
+     * Drop all positions, keeping type registrations, and re-index the passed frames.
+     */
+    void rebuild(FrameArray frames)
+    {
+        for(PositionList bucket : exactTypeBuckets)
+        {
+            if(bucket != null)
+                bucket.clear();
+        }
+        for(PositionList bucket : registeredTypeBuckets.values())
+            bucket.clear();
+        for(int i = 0; i < frames.size(); i++)
+            framePushed(frames.get(i), i);
+    }
+
+    //==================================================================//
+    // Queries
+    //==================================================================//
+
+    /**
+     * By descriptor rather than instanceof, so undecoded frames are indexed as their real class
+     */
+    private static boolean isOfType(StateStackFrame frame, Class<?> type)
+    {
+        return type.isAssignableFrom(frame.getTypeDescriptor().getFrameClass());
+    }
+
+    /**
+     * @return the stack indexes, bottom up, of frames matching the passed type. If the type is
+     * registered this is all frames assignable to it, otherwise frames of exactly this class.
+     */
+    PositionList positionsOf(Class<?> type)
+    {
+        PositionList registered = registeredTypeBuckets.get(type);
+        if(registered != null)
+            return registered;
+
+        //a class without a descriptor has never been pushed, so there is nothing to find
+        FrameTypeDescriptor descriptor = FrameTypeDescriptor.peek(type);
+        if(descriptor == null)
+            return EMPTY;
+        PositionList bucket = exactTypeBucketFor(descriptor.getTypeId(), false);
+        return bucket == null ? EMPTY : bucket;
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private PositionList exactTypeBucketFor(int typeId, boolean create)
+    {
+        if(typeId >= exactTypeBuckets.length)
+        {
+            if(!create)
+                return null;
+            exactTypeBuckets = Arrays.copyOf(exactTypeBuckets, Math.max(typeId + 1, exactTypeBuckets.length * 2));
+        }
+
+        PositionList bucket = exactTypeBuckets[typeId];
+        if(bucket == null && create)
+            bucket = exactTypeBuckets[typeId] = new PositionList();
+        return bucket;
+    }
+}
@@ -0,0 +1,27 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that can be applied to a {@link StateStackFrame} subclass which allows the stack to
+ * drop it from the heap under memory pressure while it is far below the visible window. See
+ * {@link StateStack#onTrimMemory(int)}.
+ *
+ * A hibernated frame is encoded via {@link StateStackCodec} (so should implement
+ * {@link CodableStateStackFrame}, or else be Java serializable) and is rebuilt as a new instance when
+ * next returned from the stack. Transient state (caches, loaded models) is therefore lost, and
+ * references to the old instance are no longer on the stack.
+ *
+ * Subclasses of an annotated frame are also hibernatable, as are frames annotated with an
+ * annotation that is itself annotated with this one. {@link HiddenStateStackFrame}s are never
+ * hibernated.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HibernatableStateStackFrame
+{}
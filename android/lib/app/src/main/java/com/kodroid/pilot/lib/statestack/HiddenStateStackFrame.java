@@ -9,6 +9,9 @@ import java.lang.annotation.Target;
 /**
  * Annotation that can be applied to a {@link StateStackFrame} subclass which signifies that it should be
  * ignored for all stack callback operations. Very useful for handling scoped data within the stack
+ *
+ * Subclasses of an annotated frame are also hidden, as are frames annotated with an annotation that is
+ * itself annotated with this one. See {@link FrameTypeDescriptor#isHidden()}.
  */
 @Documented
 @Target(ElementType.TYPE)
@@ -0,0 +1,116 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multi-producer, single-consumer queue of {@link StateStack.Edit}s that are applied to a
+ * {@link StateStack} on a given {@link Executor}. Posting is lock free and can happen from any thread.
+ *
+ * All edits taken from the queue in the same drain are applied inside one transaction, so
+ * listeners receive (at most) one notification per drain. Each edit is applied nested within it, so
+ * one that throws only rolls back its own changes. See {@link StateStack#post(StateStack.Edit)}.
+ */
+final class MutationDispatcher implements Runnable
+{
+    private final StateStack stateStack;
+    private final Executor executor;
+    private final Queue<StateStack.Edit> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * First exception thrown by an edit in the current drain, rethrown once the drain commits
+     */
+    private RuntimeException drainFailure;
+
+    private final StateStack.Edit drainEdit = new StateStack.Edit()
+    {
+        @Override
+        public void apply(StateStack stateStack)
+        {
+            StateStack.Edit edit;
+            while((edit = queue.poll()) != null)
+            {
+                try
+                {
+                    stateStack.applyNested(edit);
+                }
+                catch(RuntimeException e)
+                {
+                    if(drainFailure == null)
+                        drainFailure = e;
+                }
+            }
+        }
+    };
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    MutationDispatcher(StateStack stateStack, Executor executor)
+    {
+        this.stateStack = stateStack;
+        this.executor = executor;
+    }
+
+    //==================================================================//
+    // Producer side (any thread)
+    //==================================================================//
+
+    void post(StateStack.Edit edit)
+    {
+        if(edit == null)
+            throw new NullPointerException("edit");
+        queue.offer(edit);
+        scheduleDrain();
+    }
+
+    //==================================================================//
+    // Consumer side (executor thread)
+    //==================================================================//
+
+    @Override
+    public void run()
+    {
+        RuntimeException failure;
+        try
+        {
+            stateStack.edit(drainEdit);
+        }
+        finally
+        {
+            failure = drainFailure;
+            drainFailure = null;
+            drainScheduled.set(false);
+            //an edit may have been posted after the queue was emptied but before the flag was reset
+            if(!queue.isEmpty())
+                scheduleDrain();
+        }
+        if(failure != null)
+            throw failure;
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private void scheduleDrain()
+    {
+        if(drainScheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                executor.execute(this);
+            }
+            catch(RuntimeException e)
+            {
+                //not scheduled, so let the next post try again rather than queue forever
+                drainScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kodroid.pilot.lib.statestack;
+
+/**
+ * Immutable sparse array keyed by a non negative int, used by {@link StateStackSnapshot} to index its
+ * frames. Held as a 16 way trie, so {@link #set(int, Object)} copies only the path to the key
+ * (O(log16 key)) and shares everything else with the array it was derived from.
+ *
+ * Unset keys read as null.
+ */
+final class PersistentArray<T>
+{
+    private static final int BITS = 4;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentArray<Object> EMPTY = new PersistentArray<>(0, new Object[WIDTH]);
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentArray<T> empty()
+    {
+        return (PersistentArray<T>) EMPTY;
+    }
+
+    /**
+     * Bit shift of the root level, 0 if the root holds values
+     */
+    private final int shift;
+    private final Object[] root;
+
+    private PersistentArray(int shift, Object[] root)
+    {
+        this.shift = shift;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int key)
+    {
+        if(key < 0 || (key >>> shift) >= WIDTH)
+            return null;
+        Object[] level = root;
+        for(int levelShift = shift; levelShift > 0; levelShift -= BITS)
+        {
+            level = (Object[]) level[(key >>> levelShift) & MASK];
+            if(level == null)
+                return null;
+        }
+        return (T) level[key & MASK];
+    }
+
+    /**
+     * @param value null to unset
+     * @return an array with the passed key set, this array is unchanged
+     */
+    PersistentArray<T> set(int key, T value)
+    {
+        if(key < 0)
+            throw new IndexOutOfBoundsException("key: " + key);
+
+        int newShift = shift;
+        Object[] newRoot = root;
+        while((key >>> newShift) >= WIDTH)
+        {
+            if(value == null)
+                return this; //out of range so already unset
+            Object[] grownRoot = new Object[WIDTH];
+            grownRoot[0] = newRoot;
+            newRoot = grownRoot;
+            newShift += BITS;
+        }
+        return new PersistentArray<>(newShift, set(newRoot, newShift, key, value));
+    }
+
+    private static Object[] set(Object[] level, int levelShift, int key, Object value)
+    {
+        Object[] copy = level == null ? new Object[WIDTH] : level.clone();
+        if(levelShift == 0)
+        {
+            copy[key & MASK] = value;
+            return copy;
+        }
+        int slot = (key >>> levelShift) & MASK;
+        copy[slot] = set((Object[]) copy[slot], levelShift - BITS, key, value);
+        return copy;
+    }
+}
@@ -0,0 +1,84 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Arrays;
+
+/**
+ * Ascending list of {@link StateStack} indexes, used to index subsets of the stack (i.e. visible
+ * frames or frames of a given type) without scanning it.
+ *
+ * Not thread safe.
+ */
+final class PositionList
+{
+    private int[] positions = new int[4];
+    private int size;
+
+    int size()
+    {
+        return size;
+    }
+
+    int get(int i)
+    {
+        return positions[i];
+    }
+
+    /**
+     * @return highest stack index or -1 if empty
+     */
+    int last()
+    {
+        return size == 0 ? -1 : positions[size - 1];
+    }
+
+    /**
+     * @return lowest stack index or -1 if empty
+     */
+    int first()
+    {
+        return size == 0 ? -1 : positions[0];
+    }
+
+    /**
+     * @param position must be higher than all current positions
+     */
+    void add(int position)
+    {
+        if(size == positions.length)
+            positions = Arrays.copyOf(positions, size * 2);
+        positions[size++] = position;
+    }
+
+    void removeLast()
+    {
+        size--;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * To be called after the frame at the passed stack index has been removed from the stack. Drops
+     * the position if present and shifts all positions above it down by one.
+     */
+    void removeAndShift(int removedPosition)
+    {
+        int insertionPoint = Arrays.binarySearch(positions, 0, size, removedPosition);
+        int shiftFrom;
+        if(insertionPoint >= 0)
+        {
+            System.arraycopy(positions, insertionPoint + 1, positions, insertionPoint, size - insertionPoint - 1);
+            size--;
+            shiftFrom = insertionPoint;
+        }
+        else
+        {
+            shiftFrom = -insertionPoint - 1;
+        }
+
+        for(int i = shiftFrom; i < size; i++)
+            positions[i]--;
+    }
+}
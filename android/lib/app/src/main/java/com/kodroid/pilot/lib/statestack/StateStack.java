@@ -1,10 +1,13 @@
 package com.kodroid.pilot.lib.statestack;
 
+import android.content.ComponentCallbacks2;
 import android.util.Log;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.Executor;
 
 /**
  * A simple abstraction of a stack of objects which have:
@@ -15,227 +18,1337 @@ import java.util.Stack;
  *
  * plus the stack provides listeners which are notified of VISIBLE frame stack change events. See {@link TopFrameChangedListener}.
  *
- * Not thread safe.
+ * Stack mutations made from inside a listener or frame callback (i.e. a frame that redirects from
+ * {@link StateStackFrame#pushed()}) are not applied recursively. They are queued and applied, in
+ * order, once the outermost mutation has finished dispatching, as one batch with a single
+ * notification. So listeners always see events in stack order and never re-entrantly. Inside a
+ * transaction callbacks mutate the stack directly, as listeners are not dispatched until commit.
+ *
+ * Not thread safe. See {@link ConcurrentStateStack} if frames need to be read from other threads.
  */
 public class StateStack
 {
-    private Stack<StateStackFrame> stack = new Stack<>();
+    private final FrameArray stack = new FrameArray();
+
+    /**
+     * Stack indexes of all frames not marked with {@link HiddenStateStackFrame}, bottom up. Kept in
+     * sync with {@link #stack} on every push / pop / remove so visible frame lookups do not need to
+     * scan the stack.
+     */
+    private final PositionList visibleFrameIndexes = new PositionList();
+
+    /**
+     * Stack indexes of frames by type. See {@link #registerIndexedType(Class)}.
+     */
+    private final FrameTypeIndex typeIndex = new FrameTypeIndex();
+
+    /**
+     * Persistent copy of the stack, kept in step with {@link #stack} so {@link #getSnapshot()} is O(1)
+     */
+    private StateStackSnapshot snapshot = StateStackSnapshot.empty();
+
+    /**
+     * Transaction state. See {@link #beginTransaction()}.
+     */
+    private int transactionDepth;
+    private StateStackSnapshot transactionStartSnapshot;
+    private boolean transactionNotificationPending;
+    private final FrameArray transactionPoppedFrames = new FrameArray();
+
+    /**
+     * Point within the transaction that {@link #rollback(StateStackFrame)} returns to, if set. See
+     * {@link #applyNested(Edit)}.
+     */
+    private StateStackSnapshot savepointSnapshot;
+    private int savepointDepth;
+    private int savepointPoppedCount;
+    private final FrameArray savepointRepushedFrames = new FrameArray();
+
+    /**
+     * Duplicate push guard. See {@link #setDuplicatePushWindow(long)}. The last pushed frame is only
+     * compared while still on this stack, so is held weakly to not keep it alive once popped.
+     */
+    private long duplicatePushWindowMillis;
+    private WeakReference<StateStackFrame> lastPushedFrame;
+    private long lastPushTimeMillis;
+
+    /**
+     * Mutations made from listener or frame callbacks. See {@link #isInCallback()}.
+     */
+    private int mutationDepth;
+    private int callbackDepth;
+    private boolean runningDeferredMutations;
+    private final ArrayDeque<Edit> deferredMutations = new ArrayDeque<>();
+    private final Edit deferredMutationBatch = new Edit()
+    {
+        @Override
+        public void apply(StateStack stateStack)
+        {
+            Edit edit;
+            while((edit = deferredMutations.poll()) != null)
+                edit.apply(stateStack);
+        }
+    };
+
+    /**
+     * See {@link #setMutationExecutor(Executor)}
+     */
+    private volatile MutationDispatcher mutationDispatcher;
+
+    /**
+     * See {@link StateStackJournal#attachTo(StateStack)}
+     */
+    private StateStackJournal journal;
+
+    /**
+     * See {@link #setHibernationDepth(int)}
+     */
+    private static final StateStackCodec HIBERNATION_CODEC = new StateStackCodec().setLazyDecoding(true);
+    private int hibernationDepth = 3;
+
+    /**
+     * See {@link #setMaxVisibleDepth(int)}. Frames below tombstonedUpToIndex have already been
+     * considered for tombstoning, as of tombstonedSnapshot.
+     */
+    private int maxVisibleDepth;
+    private int tombstonedUpToIndex;
+    private StateStackSnapshot tombstonedSnapshot = StateStackSnapshot.empty();
+
+    /**
+     * See {@link #setTransitionModel(FrameTransitionModel)}
+     */
+    private static final int LIKELY_NEXT_FRAME_COUNT = 3;
+    private volatile FrameTransitionModel transitionModel;
+    private final List<Class<? extends StateStackFrame>> likelyNextFrames = new ArrayList<>();
+
+    /**
+     * See {@link #setStarted(boolean)}
+     */
+    private volatile boolean started;
 
     private List<StackEmptyListener> stackEmptyListeners = new ArrayList<>();
     private List<TopFrameChangedListener> topFrameChangedListeners = new ArrayList<>();
+    private List<StartedStateListener> startedStateListeners = new ArrayList<>();
+
+    //==================================================================//
+    // Stack Operations (public)
+    //==================================================================//
+
+    /**
+     * Clears whole stack. If the caller wants to perform any more stack operations after this point
+     * then they will need to use the returned StateStack as the calling
+     * {@link StateStackFrame#getParentStack()} will be null after this call.
+     *
+     * @param notifyListeners
+     * @return
+     */
+    public StateStack clearStack(final boolean notifyListeners)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.clearStack(notifyListeners);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            popAllFramesAboveIndex(0);
+
+            if(!notifyListeners)
+                return this;
+
+            notifyListenersNoVisibleFramesLeft();
+
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * @return top frame of the stack ignoring {@link HiddenStateStackFrame} or null
+     */
+    public StateStackFrame getTopVisibleFrame()
+    {
+        return getVisibleFrameFromTopDown(1);
+    }
+
+    public StateStack pushFrame(StateStackFrame frameToPush)
+    {
+        return pushFrame(frameToPush, LaunchMode.STANDARD);
+    }
+
+    /**
+     * Push a frame, resolving any existing frames of the same class as per the passed
+     * {@link LaunchMode}. All lookups are served by the stacks indexes so are constant time.
+     *
+     * If a duplicate push window is set (see {@link #setDuplicatePushWindow(long)}) and this frame
+     * {@link StateStackFrame#isDuplicatePushOf(StateStackFrame)} the previously pushed frame, which
+     * was pushed within that window and is still on the stack, this call is ignored.
+     */
+    public StateStack pushFrame(final StateStackFrame frameToPush, final LaunchMode launchMode)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.pushFrame(frameToPush, launchMode);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            if(isDuplicatePush(frameToPush))
+                return this;
+
+            final Class<? extends StateStackFrame> frameClass = frameToPush.getClass();
+            switch(launchMode)
+            {
+                case SINGLE_TOP:
+                {
+                    StateStackFrame currentTop = isInvisibleFrame(frameToPush) ? UndecodedStateStackFrame.resolve(stack.peek()) : getTopVisibleFrame();
+                    if(currentTop != null && currentTop.getClass() == frameClass)
+                    {
+                        frameRedelivered(currentTop, frameToPush);
+                        return this;
+                    }
+                    break;
+                }
+                case CLEAR_TOP:
+                {
+                    if(typeIndex.positionsOf(frameClass).size() > 0)
+                    {
+                        return edit(new Edit()
+                        {
+                            @Override
+                            public void apply(StateStack stateStack)
+                            {
+                                popAtFrameType(frameClass, PopType.INCLUSIVE, true);
+                                pushFrameInternal(frameToPush);
+                            }
+                        });
+                    }
+                    break;
+                }
+                case SINGLE_TASK:
+                {
+                    StateStackFrame existingFrame = getTopFrameOfType(frameClass);
+                    if(existingFrame != null)
+                    {
+                        popAtFrameType(frameClass, PopType.EXCLUSIVE, true);
+                        frameRedelivered(existingFrame, frameToPush);
+                        return this;
+                    }
+                    break;
+                }
+            }
+
+            return pushFrameInternal(frameToPush);
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * How a pushed frame interacts with existing frames of the same class in the stack. See
+     * {@link #pushFrame(StateStackFrame, LaunchMode)}.
+     */
+    public enum LaunchMode
+    {
+        /**
+         * Always push
+         */
+        STANDARD,
+        /**
+         * If the top visible frame (or top frame, for a {@link HiddenStateStackFrame}) is of the same
+         * class the push is dropped and the existing frame receives {@link StateStackFrame#redelivered(StateStackFrame)}.
+         */
+        SINGLE_TOP,
+        /**
+         * If a frame of the same class exists then it, and all frames above it, are popped before the
+         * new frame is pushed. Listeners receive one notification for the whole operation.
+         */
+        CLEAR_TOP,
+        /**
+         * If a frame of the same class exists anywhere in the stack, all frames above the top-most
+         * one are popped and it receives {@link StateStackFrame#redelivered(StateStackFrame)}
+         * instead of the new frame being pushed.
+         */
+        SINGLE_TASK;
+    }
+
+    /**
+     * Drop pushes of a frame that {@link StateStackFrame#isDuplicatePushOf(StateStackFrame)} the
+     * previously pushed frame if within the passed window (i.e. to guard against double taps).
+     *
+     * @param windowMillis 0 to disable (default)
+     */
+    public StateStack setDuplicatePushWindow(long windowMillis)
+    {
+        if(windowMillis < 0)
+            throw new IllegalArgumentException("windowMillis must be >= 0");
+        this.duplicatePushWindowMillis = windowMillis;
+        return this;
+    }
+
+    private StateStack pushFrameInternal(StateStackFrame frameToPush)
+    {
+        if(duplicatePushWindowMillis > 0)
+        {
+            lastPushedFrame = new WeakReference<>(frameToPush);
+            lastPushTimeMillis = currentTimeMillis();
+        }
+
+        FrameTransitionModel transitionModel = this.transitionModel;
+        boolean visibleFrame = !isInvisibleFrame(frameToPush);
+        if(transitionModel != null && visibleFrame && visibleFrameIndexes.size() > 0)
+        {
+            StateStackFrame topVisibleFrame = stack.get(visibleFrameIndexes.get(visibleFrameIndexes.size() - 1));
+            transitionModel.recordTransition(topVisibleFrame.getTypeDescriptor(), frameToPush.getTypeDescriptor());
+        }
+
+        //a frame popped earlier in this transaction is still parented, it is no longer popped and
+        //has already had its pushed() call
+        boolean restoredFrame = false;
+        if(isInTransaction() && frameToPush.getParentStack() == this)
+        {
+            int poppedIndex = transactionPoppedFrames.removeByIdentity(frameToPush);
+            restoredFrame = poppedIndex != -1;
+            if(poppedIndex != -1 && poppedIndex < savepointPoppedCount)
+            {
+                //popped before the savepoint, so popped again if rolled back to it
+                savepointPoppedCount--;
+                savepointRepushedFrames.push(frameToPush);
+            }
+        }
+
+        //put on stack
+        frameToPush.setParentStack(this);
+        stack.push(frameToPush);
+        indexPushedFrame(frameToPush);
+
+        //notify listeners before making the pushed() call below to avoid possible race-condition #40
+        if(!isInvisibleFrame(frameToPush))
+            notifyListenersTopVisibleFrameUpdated(frameToPush, TopFrameChangedListener.Direction.FORWARD);
+
+        callbackDepth++;
+        try
+        {
+            if(!restoredFrame)
+                frameToPush.pushed();
+            if(transitionModel != null && visibleFrame && frameToPush.getTypeDescriptor().overridesLikelyNextFrames())
+                notifyLikelyNextFrames(transitionModel, frameToPush);
+        }
+        catch(RuntimeException e)
+        {
+            if(isInTransaction())
+                rollback(frameToPush);
+            else
+                deferredMutations.clear(); //don't act on a redirect from a frame that failed
+            throw e;
+        }
+        finally
+        {
+            callbackDepth--;
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes all frames (inc {@link HiddenStateStackFrame} above the 2nd highest visible frame. If only
+     * one visible frame exists in the stack the whole stack will be cleared. This is useful to
+     * simulate back behaviour.
+     */
+    public StateStack popToNextVisibleFrame()
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.popToNextVisibleFrame();
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            StateStackFrame nextVisibleFrame = getVisibleFrameFromTopDown(2);
+            if(nextVisibleFrame == null)
+                clearStack(true);
+            else
+                popAtFrameInstance(nextVisibleFrame, PopType.EXCLUSIVE, true);
+
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * Use this if popping a specific top frame. Will throw unchecked exception if the passed in
+     * frame is not the top of the stack.
+     *
+     * @param frameToPop not null
+     */
+    public StateStack popTopFrameInstance(final StateStackFrame frameToPop)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.popTopFrameInstance(frameToPop);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            if(stack.isEmpty() || UndecodedStateStackFrame.resolveIfDecoded(stack.peek()) != frameToPop)
+                throw new IllegalStateException(frameToPop.getClass().getName()+" instance was not the top of the stack");
+            StateStackFrame poppedFrame = stack.pop();
+            unindexPoppedFrame(poppedFrame);
+
+            //frame callbacks
+            framePopped(poppedFrame);
+
+            notifyListenersNewBackFrame();
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * Use this to remove a frame from the stack. This does not have to be the top frame. Useful as
+     * sometimes frames may be dismissed that are not top of the stack.
+     *
+     * @param frameToRemove if this instance does not exist in the stack this will throw a {@link RuntimeException}.
+     *                      Frames are matched by identity, not {@link Object#equals(Object)}.
+     */
+    public StateStack removeFrame(final StateStackFrame frameToRemove)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.removeFrame(frameToRemove);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            int index = stack.removeByIdentity(frameToRemove);
+            if(index == -1)
+                throw new RuntimeException(frameToRemove.getClass().getName()+ " does not exist in the stack");
+            visibleFrameIndexes.removeAndShift(index);
+            typeIndex.frameRemoved(index);
+            snapshot = snapshot.removeAt(index);
+
+            framePopped(frameToRemove);
+
+            notifyListenersNewBackFrame();
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * Flags to indicate if the passed frame should be included in the pop operation
+     */
+    public enum PopType
+    {
+        /**
+         * Include the passed frame (will be removed from stack)
+         */
+        INCLUSIVE,
+        /**
+         * Don't include the past frame (will remain in stack)
+         */
+        EXCLUSIVE;
+    }
+
+    public StateStack popAtFrameInstance(final StateStackFrame stateStackFrame, final PopType popType, final boolean notifyListeners)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.popAtFrameInstance(stateStackFrame, popType, notifyListeners);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            for(int i = stack.size()-1; i >= 0; i--)
+            {
+                //find the index in the stack that is the class type requested
+                if(UndecodedStateStackFrame.resolveIfDecoded(stack.get(i)) == stateStackFrame)
+                {
+                    //account for INCLUSIVE or EXCLUSIVE removal
+                    int removeFrom = (popType == PopType.INCLUSIVE ? i : i+1);
+                    boolean removedVisibleFrames = popAllFramesAboveIndex(removeFrom);
+
+                    //notify listeners
+                    if(!notifyListeners)
+                        return this;
+
+                    if(!removedVisibleFrames) //no Visible frame change
+                        return this;
+
+                    StateStackFrame topVisibleFrame = getTopVisibleFrame();
+                    if(topVisibleFrame == null)
+                    {
+                        notifyListenersNoVisibleFramesLeft();
+                    }
+                    else
+                    {
+                        notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.BACK);
+                    }
+
+                    //have found and popped at this point so now return
+                    return this;
+                }
+            }
+
+            throw new IllegalStateException("Attempted to pop stack at "+ stateStackFrame.getClass().getCanonicalName()+" instance but was not found in stack");
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * Pops everything in the stack above (and including) the passed in class. Will look from the TOP
+     * of the stack and perform operation for the top-most {@link StateStackFrame} matching the passed
+     * type (see {@link #getTopFrameOfType(Class)} for matching rules).
+     *
+     * @param clazz
+     * @param popType {@link PopType#INCLUSIVE} if should pop the passed frame also, {@link PopType#EXCLUSIVE} if this frame should become the new top
+     * @param notifyListeners true if should notify registered listeners for frame changes
+     */
+    public StateStack popAtFrameType(final Class<? extends StateStackFrame> clazz, final PopType popType, final boolean notifyListeners)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.popAtFrameType(clazz, popType, notifyListeners);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            int index = typeIndex.positionsOf(clazz).last();
+            if(index == -1)
+                throw new IllegalStateException("Attempted to pop stack at "+clazz.getCanonicalName()+" but was not found in stack");
+
+            //account for INCLUSIVE or EXCLUSIVE removal
+            int removeFrom = (popType == PopType.INCLUSIVE ? index : index+1);
+            boolean removedVisibleFrames = popAllFramesAboveIndex(removeFrom);
+
+            //notify listeners
+            if(!notifyListeners)
+                return this;
+
+            if(!removedVisibleFrames) //no Visible frame change
+                return this;
+
+            StateStackFrame topVisibleFrame = getTopVisibleFrame();
+            if(topVisibleFrame == null)
+                notifyListenersNoVisibleFramesLeft();
+            else
+                notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.BACK);
+
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    //==================================================================//
+    // Transactions
+    //==================================================================//
+
+    /**
+     * Starts a transaction. Until the matching {@link #commitTransaction()} all stack operations are
+     * applied straight away but:
+     *
+     * - listeners are not notified. On commit they receive (at most) one notification describing the
+     *   net visible change, so intermediate frames are never rendered.
+     * - {@link StateStackFrame#popped()} callbacks are deferred until commit, so frames removed
+     *   during the transaction can be restored untouched on rollback.
+     *   A frame popped then pushed again within the transaction receives neither popped() nor a
+     *   second {@link StateStackFrame#pushed()}.
+     *
+     * If a frames {@link StateStackFrame#pushed()} throws during a transaction the whole transaction
+     * is rolled back before the exception propagates. Transactions can be nested, only the outermost
+     * commit notifies.
+     *
+     * Prefer {@link #edit(Edit)} which handles commit / rollback for you.
+     */
+    public StateStack beginTransaction()
+    {
+        if(transactionDepth++ == 0)
+        {
+            transactionStartSnapshot = snapshot;
+            transactionNotificationPending = false;
+        }
+        return this;
+    }
+
+    /**
+     * See {@link #beginTransaction()}
+     */
+    public StateStack commitTransaction()
+    {
+        if(!isInTransaction())
+            throw new IllegalStateException("No transaction in progress");
+        if(transactionDepth > 1)
+        {
+            transactionDepth--;
+            return this;
+        }
+
+        //deliver deferred popped() calls while still in the transaction, as these may alter the stack.
+        //Frames re-pushed during the transaction have already been dropped from the list
+        for(int i = 0; i < transactionPoppedFrames.size(); i++)
+        {
+            StateStackFrame poppedFrame = transactionPoppedFrames.get(i);
+            callbackDepth++;
+            try
+            {
+                poppedFrame.popped();
+            }
+            finally
+            {
+                callbackDepth--;
+                poppedFrame.setParentStack(null);
+            }
+        }
+
+        StateStackSnapshot startSnapshot = transactionStartSnapshot;
+        boolean notificationPending = transactionNotificationPending;
+        endTransaction();
+
+        if(notificationPending && !snapshot.hasSameVisibleFramesAs(startSnapshot))
+        {
+            StateStackFrame topVisibleFrame = getTopVisibleFrame();
+            if(topVisibleFrame == null)
+                notifyListenersNoVisibleFramesLeft();
+            else if(startSnapshot.indexOf(topVisibleFrame) == -1)
+                notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.FORWARD);
+            else
+                notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.BACK);
+        }
+
+        if(mutationDepth == 0)
+        {
+            runDeferredMutations(); //committed outside of edit()
+            mutationFinished();
+        }
+        return this;
+    }
+
+    /**
+     * Restores the stack to how it was when the outermost transaction began, without notifying
+     * listeners. Frames pushed during the transaction receive {@link StateStackFrame#popped()}.
+     * No-op if no transaction is in progress (i.e. it has already been rolled back due to a
+     * {@link StateStackFrame#pushed()} exception).
+     */
+    public StateStack rollbackTransaction()
+    {
+        if(isInTransaction())
+        {
+            rollback(null);
+            if(mutationDepth == 0)
+                mutationFinished();
+        }
+        return this;
+    }
+
+    public boolean isInTransaction()
+    {
+        return transactionDepth > 0;
+    }
+
+    /**
+     * Applies the passed edit inside a transaction, committing if it returns normally and rolling
+     * back if it throws. See {@link #beginTransaction()}.
+     */
+    public StateStack edit(final Edit edit)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.edit(edit);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            beginTransaction();
+            try
+            {
+                edit.apply(this);
+            }
+            catch(RuntimeException e)
+            {
+                rollbackTransaction();
+                throw e;
+            }
+            return commitTransaction();
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    /**
+     * A group of stack operations to be applied as one. See {@link #edit(Edit)}
+     */
+    public interface Edit
+    {
+        void apply(StateStack stateStack);
+    }
+
+    /**
+     * Applies the passed edit within the current transaction. If it throws only the changes it made
+     * are rolled back, the transaction carries on. Used by {@link MutationDispatcher} so one failing
+     * posted edit does not discard the others applied in the same batch.
+     */
+    void applyNested(Edit edit)
+    {
+        if(!isInTransaction())
+            throw new IllegalStateException("No transaction in progress");
+        if(savepointSnapshot != null)
+            throw new IllegalStateException("Already applying a nested edit");
+
+        savepointSnapshot = snapshot;
+        savepointDepth = transactionDepth;
+        savepointPoppedCount = transactionPoppedFrames.size();
+        try
+        {
+            edit.apply(this);
+        }
+        catch(RuntimeException e)
+        {
+            rollback(null); //no-op if a pushed() exception already rolled back
+            throw e;
+        }
+        finally
+        {
+            savepointSnapshot = null;
+            savepointPoppedCount = 0;
+            savepointRepushedFrames.truncate(0);
+        }
+    }
+
+    /**
+     * Rolls back to the savepoint if one is set (see {@link #applyNested(Edit)}), else the whole
+     * transaction.
+     *
+     * @param failedFrame a frame whose {@link StateStackFrame#pushed()} threw, which will not
+     *                    receive {@link StateStackFrame#popped()}. Can be null.
+     */
+    private void rollback(StateStackFrame failedFrame)
+    {
+        boolean toSavepoint = savepointSnapshot != null;
+        StateStackSnapshot startSnapshot = toSavepoint ? savepointSnapshot : transactionStartSnapshot;
+
+        //frames pushed since the start that are still present or already removed
+        for(int i = stack.size() - 1; i >= 0; i--)
+        {
+            StateStackFrame frame = stack.get(i);
+            if(savepointRepushedFrames.lastIndexOf(frame) == -1)
+                discardTransactionFrame(frame, startSnapshot, failedFrame);
+        }
+        for(int i = savepointPoppedCount; i < transactionPoppedFrames.size(); i++)
+            discardTransactionFrame(transactionPoppedFrames.get(i), startSnapshot, failedFrame);
+        transactionPoppedFrames.truncate(savepointPoppedCount);
+        for(int i = 0; i < savepointRepushedFrames.size(); i++)
+            transactionPoppedFrames.push(savepointRepushedFrames.get(i));
+        savepointRepushedFrames.truncate(0);
+
+        //restore
+        StateStackFrame[] startFrames = startSnapshot.toArray();
+        stack.truncate(0);
+        visibleFrameIndexes.clear();
+        for(int i = 0; i < startFrames.length; i++)
+        {
+            StateStackFrame frame = startFrames[i];
+            frame.setParentStack(this);
+            stack.push(frame);
+            if(!isInvisibleFrame(frame))
+                visibleFrameIndexes.add(i);
+        }
+        typeIndex.rebuild(stack);
+        snapshot = startSnapshot.withIndexedTypes(typeIndex.getRegisteredTypes());
+
+        if(toSavepoint)
+        {
+            transactionDepth = savepointDepth;
+            savepointPoppedCount = transactionPoppedFrames.size();
+        }
+        else
+            endTransaction();
+    }
+
+    private void discardTransactionFrame(StateStackFrame frame, StateStackSnapshot startSnapshot, StateStackFrame failedFrame)
+    {
+        if(startSnapshot.indexOf(frame) != -1 || frame.getParentStack() != this)
+            return;
+        if(frame != failedFrame)
+            frame.popped();
+        frame.setParentStack(null);
+    }
+
+    private void endTransaction()
+    {
+        transactionDepth = 0;
+        transactionStartSnapshot = null;
+        transactionNotificationPending = false;
+        transactionPoppedFrames.truncate(0);
+    }
+
+    //==================================================================//
+    // Hibernation
+    //==================================================================//
+
+    /**
+     * @param visibleFramesKept count of visible frames, from the top, that are never hibernated by
+     *                          {@link #onTrimMemory(int)}. Should cover the deepest window of frames
+     *                          drawn at once (i.e. a dialog over a screen is 2). Default 3.
+     */
+    public StateStack setHibernationDepth(int visibleFramesKept)
+    {
+        if(visibleFramesKept < 1)
+            throw new IllegalArgumentException("visibleFramesKept must be >= 1");
+        this.hibernationDepth = visibleFramesKept;
+        return this;
+    }
+
+    /**
+     * Forward from {@link ComponentCallbacks2#onTrimMemory(int)}. From
+     * {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} up, hibernates frames below the hibernation
+     * depth, see {@link #hibernateFramesBelow(int)}.
+     *
+     * @return count of frames hibernated
+     */
+    public int onTrimMemory(int level)
+    {
+        if(level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return 0;
+        return hibernateFramesBelow(hibernationDepth);
+    }
+
+    /**
+     * Replaces every {@link HibernatableStateStackFrame} below the top <code>visibleFramesKept</code>
+     * visible frames with its encoded state, so the frame (and everything only it references) can be
+     * garbage collected. Hibernated frames are rebuilt as a new instance when next returned from the
+     * stack, i.e. when navigated back to. Listeners are not notified, as the stack does not change.
+     *
+     * No-op if called during a mutation.
+     *
+     * @return count of frames hibernated
+     */
+    public int hibernateFramesBelow(int visibleFramesKept)
+    {
+        if(visibleFramesKept < 1)
+            throw new IllegalArgumentException("visibleFramesKept must be >= 1");
+        if(mutationDepth > 0 || isInTransaction())
+            return 0;
+        return replaceFrames(0, keptFromIndex(visibleFramesKept), false);
+    }
+
+    private static StateStackFrame hibernate(StateStackFrame frame)
+    {
+        byte[] encoded = HIBERNATION_CODEC.encode(StateStackSnapshot.empty().push(frame));
+        return HIBERNATION_CODEC.decodeFrames(encoded).get(0);
+    }
+
+    //==================================================================//
+    // Max visible depth
+    //==================================================================//
+
+    /**
+     * Bounds the memory used by deep stacks. After each mutation, visible
+     * {@link TombstonableStateStackFrame}s below the top <code>maxVisibleDepth</code> visible frames
+     * are replaced by tombstones, which are recreated when next returned from the stack (i.e. when
+     * navigated back to).
+     *
+     * Visible frame counts (and so {@link #popToNextVisibleFrame()}) are unaffected, a tombstone counts
+     * as the frame it stands in for. Visible frames that are not tombstonable are kept as-is, so only
+     * bound the depth if all deep frames are tombstonable. Hidden frames are never tombstoned.
+     *
+     * @param maxVisibleDepth count of visible frames kept live, or 0 for no limit (the default)
+     */
+    public StateStack setMaxVisibleDepth(int maxVisibleDepth)
+    {
+        if(maxVisibleDepth < 0)
+            throw new IllegalArgumentException("maxVisibleDepth must be >= 0");
+        this.maxVisibleDepth = maxVisibleDepth;
+        if(maxVisibleDepth > 0 && mutationDepth == 0 && !isInTransaction())
+            tombstoneFramesBelowWindow();
+        return this;
+    }
+
+    public int getMaxVisibleDepth()
+    {
+        return maxVisibleDepth;
+    }
+
+    /**
+     * Tombstones the frames that have dropped below the top <code>maxVisibleDepth</code> visible
+     * frames since the last pass, usually one per push. Frames that changed since then (i.e. were
+     * popped and pushed again) are considered again.
+     */
+    private void tombstoneFramesBelowWindow()
+    {
+        int fromIndex = Math.min(tombstonedUpToIndex, snapshot.getSharedBaseSize(tombstonedSnapshot));
+        int keptFromIndex = keptFromIndex(maxVisibleDepth);
+        replaceFrames(fromIndex, keptFromIndex, true);
+        //frames in the window are considered once they drop below it
+        tombstonedUpToIndex = keptFromIndex;
+        tombstonedSnapshot = snapshot;
+    }
+
+    /**
+     * @return stack index of the lowest of the top <code>visibleFramesKept</code> visible frames, 0
+     * if there are not that many
+     */
+    private int keptFromIndex(int visibleFramesKept)
+    {
+        int visibleFrameCount = visibleFrameIndexes.size();
+        if(visibleFrameCount <= visibleFramesKept)
+            return 0;
+        return visibleFrameIndexes.get(visibleFrameCount - visibleFramesKept);
+    }
+
+    /**
+     * Replaces opted in frames from <code>fromIndex</code> up to (not including)
+     * <code>toIndex</code> with a hibernated frame or tombstone. Frames that are already either are
+     * skipped. The snapshot is rebuilt once, above the lowest frame replaced.
+     *
+     * @return count of frames replaced
+     */
+    private int replaceFrames(int fromIndex, int toIndex, boolean tombstone)
+    {
+        int replacedCount = 0;
+        int lowestReplacedIndex = -1;
+        for(int i = fromIndex; i < toIndex; i++)
+        {
+            StateStackFrame frame = stack.get(i);
+            FrameTypeDescriptor descriptor = frame.getTypeDescriptor();
+            StateStackFrame liveFrame = UndecodedStateStackFrame.resolveIfDecoded(frame);
+            if(!(tombstone ? descriptor.isTombstonable() : descriptor.isHibernatable()) || liveFrame instanceof UndecodedStateStackFrame)
+                continue; //not opted in or already replaced
+
+            StateStackFrame replacement = tombstone ? StateStackCodec.tombstone(liveFrame) : hibernate(liveFrame);
+            replacement.setParentStack(this);
+            stack.set(i, replacement);
+            frame.setParentStack(null);
+            if(lowestReplacedIndex == -1)
+                lowestReplacedIndex = i;
+            replacedCount++;
+        }
+
+        if(replacedCount == 0)
+            return 0;
+        snapshot = snapshot.replaceFrom(lowestReplacedIndex, stack);
+        if(journal != null)
+            journal.framesReplaced(snapshot);
+        return replacedCount;
+    }
+
+    //==================================================================//
+    // Transition model
+    //==================================================================//
+
+    /**
+     * Records every visible frame push (from the top visible frame) in the passed model, and passes
+     * its predictions to pushed frames that override
+     * {@link StateStackFrame#likelyNextFrames(List)}. A model can be shared between stacks.
+     *
+     * @param transitionModel null to stop recording
+     */
+    public StateStack setTransitionModel(FrameTransitionModel transitionModel)
+    {
+        this.transitionModel = transitionModel;
+        return this;
+    }
+
+    public FrameTransitionModel getTransitionModel()
+    {
+        return transitionModel;
+    }
+
+    private void notifyLikelyNextFrames(FrameTransitionModel transitionModel, StateStackFrame frame)
+    {
+        likelyNextFrames.clear();
+        transitionModel.getLikelyNextFrames(frame.getTypeDescriptor(), LIKELY_NEXT_FRAME_COUNT, likelyNextFrames);
+        if(!likelyNextFrames.isEmpty())
+            frame.likelyNextFrames(likelyNextFrames);
+        likelyNextFrames.clear();
+    }
+
+    //==================================================================//
+    // Started state
+    //==================================================================//
+
+    /**
+     * Moves the stack between its STARTED and STOPPED meta-states, i.e. as its host Activity is
+     * started and stopped. Views of frames can only be visible on screen while the stack is started.
+     * {@link StartedStateListener}s are only notified of a change, and mutations they (or frames
+     * notified by them) make are deferred until all have been notified.
+     */
+    public StateStack setStarted(final boolean started)
+    {
+        if(isInCallback())
+            return defer(new Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.setStarted(started);
+                }
+            });
+
+        enterMutation();
+        try
+        {
+            if(this.started == started)
+                return this;
+            this.started = started;
+            notifyListenersStartedStateChanged(started);
+            return this;
+        }
+        finally
+        {
+            exitMutation();
+        }
+    }
+
+    public boolean isStarted()
+    {
+        return started;
+    }
+
+    //==================================================================//
+    // Restoring
+    //==================================================================//
+
+    /**
+     * Puts previously saved frames back on this (empty) stack, bottom up. Frames are not
+     * {@link StateStackFrame#pushed()} again and listeners are not notified, as the frames are
+     * considered to have been on the stack all along. See {@link StateStackCodec}.
+     */
+    void restoreFrames(List<StateStackFrame> frames)
+    {
+        if(!isEmpty())
+            throw new IllegalStateException("Can only restore onto an empty StateStack");
+        if(isInTransaction() || mutationDepth > 0)
+            throw new IllegalStateException("Can not restore frames while the stack is being mutated");
+
+        for(StateStackFrame frame : frames)
+        {
+            frame.setParentStack(this);
+            stack.push(frame);
+            indexPushedFrame(frame);
+        }
+    }
 
     //==================================================================//
-    // Stack Operations (public)
+    // Re-entrant mutations
     //==================================================================//
 
     /**
-     * Clears whole stack. If the caller wants to perform any more stack operations after this point
-     * then they will need to use the returned StateStack as the calling
-     * {@link StateStackFrame#getParentStack()} will be null after this call.
-     *
-     * @param notifyListeners
-     * @return
+     * @return true if a listener or frame callback is being dispatched outside of a transaction (or
+     * while applying deferred mutations), in which case stack mutations are deferred
      */
-    public StateStack clearStack(boolean notifyListeners)
+    private boolean isInCallback()
     {
-        popAllFramesAboveIndex(0);
-
-        if(!notifyListeners)
-            return this;
-
-        notifyListenersNoVisibleFramesLeft();
+        return callbackDepth > 0 && (runningDeferredMutations || !isInTransaction());
+    }
 
+    private StateStack defer(Edit mutation)
+    {
+        deferredMutations.add(mutation);
         return this;
     }
 
+    private void enterMutation()
+    {
+        mutationDepth++;
+    }
+
     /**
-     * @return top frame of the stack ignoring {@link HiddenStateStackFrame} or null
+     * Applies any mutations deferred during the outermost mutation once it has finished
      */
-    public StateStackFrame getTopVisibleFrame()
+    private void exitMutation()
     {
-        return getVisibleFrameFromTopDown(1);
+        try
+        {
+            if(mutationDepth == 1 && !isInTransaction())
+                runDeferredMutations();
+        }
+        finally
+        {
+            mutationDepth--;
+        }
+        if(mutationDepth == 0 && !isInTransaction())
+            mutationFinished();
     }
 
-    public StateStack pushFrame(StateStackFrame frameToPush)
+    /**
+     * Called once the outermost mutation (including any deferred ones) has been applied
+     */
+    private void mutationFinished()
     {
-        //put on stack
-        frameToPush.setParentStack(this);
-        stack.push(frameToPush);
-
-        //notify listeners before making the pushed() call below to avoid possible race-condition #40
-        if(!isInvisibleFrame(frameToPush))
-            notifyListenersTopVisibleFrameUpdated(frameToPush, TopFrameChangedListener.Direction.FORWARD);
-
-        frameToPush.pushed();
+        if(journal != null)
+            journal.stackChanged(snapshot);
+        if(maxVisibleDepth > 0)
+            tombstoneFramesBelowWindow();
+    }
 
-        return this;
+    void setJournal(StateStackJournal journal)
+    {
+        this.journal = journal;
     }
 
     /**
-     * Removes all frames (inc {@link HiddenStateStackFrame} above the 2nd highest visible frame. If only
-     * one visible frame exists in the stack the whole stack will be cleared. This is useful to
-     * simulate back behaviour.
+     * Applies deferred mutations in batches, each as one transaction so listeners receive a single
+     * notification per batch. Mutations deferred by frame callbacks during a batch are appended to
+     * it, those deferred by the batch notification form the next batch.
      */
-    public StateStack popToNextVisibleFrame()
+    private void runDeferredMutations()
     {
-        StateStackFrame nextVisibleFrame = getVisibleFrameFromTopDown(2);
-        if(nextVisibleFrame == null)
-            clearStack(true);
-        else
-            popAtFrameInstance(nextVisibleFrame, PopType.EXCLUSIVE, true);
-
-        return this;
+        if(runningDeferredMutations)
+            return;
+        runningDeferredMutations = true;
+        mutationDepth++;
+        try
+        {
+            while(!deferredMutations.isEmpty())
+                edit(deferredMutationBatch);
+        }
+        catch(RuntimeException e)
+        {
+            deferredMutations.clear();
+            throw e;
+        }
+        finally
+        {
+            mutationDepth--;
+            runningDeferredMutations = false;
+        }
     }
 
+    //==================================================================//
+    // Posted mutations
+    //==================================================================//
+
     /**
-     * Use this if popping a specific top frame. Will throw unchecked exception if the passed in
-     * frame is not the top of the stack.
+     * Sets the {@link Executor} that edits posted via {@link #post(Edit)} are applied on. This should
+     * be a serial executor for the thread that otherwise drives this stack, i.e. the main thread on
+     * Android (see {@code MainLooperExecutor}) or a direct executor in JVM tests. All listener
+     * callbacks triggered by posted edits happen on this executor.
      *
-     * @param frameToPop not null
+     * Should be set once, before anything is posted.
      */
-    public StateStack popTopFrameInstance(StateStackFrame frameToPop)
+    public StateStack setMutationExecutor(Executor executor)
     {
-        StateStackFrame poppedFrame = stack.pop();
-        if(poppedFrame != frameToPop)
-            throw new IllegalStateException(frameToPop.getClass().getName()+" instance was not the top of the stack");
-
-        //frame callbacks
-        poppedFrame.popped();
-        poppedFrame.setParentStack(null);
-
-        notifyListenersNewBackFrame();
+        this.mutationDispatcher = new MutationDispatcher(this, executor);
         return this;
     }
 
     /**
-     * Use this to remove a frame from the stack. This does not have to be the top frame. Useful as
-     * sometimes frames may be dismissed that are not top of the stack.
+     * Queue an edit to be applied on the mutation executor (see {@link #setMutationExecutor(Executor)}).
+     * Can be called from any thread without blocking. Edits are applied in the order posted.
      *
-     * @param frameToRemove if this does not exist in the stack this will throw a {@link RuntimeException}
+     * All edits applied in the same executor task run in one transaction (see {@link #edit(Edit)}),
+     * so listeners receive one notification for the lot. If an edit throws only its own changes are
+     * rolled back, the rest of the batch is still applied and the exception is then thrown on the
+     * executor.
      */
-    public StateStack removeFrame(StateStackFrame frameToRemove)
+    public void post(Edit edit)
     {
-        if(!stack.remove(frameToRemove))
-            throw new RuntimeException(frameToRemove.getClass().getName()+ " does not exist in the stack");
-
-        frameToRemove.popped();
-        frameToRemove.setParentStack(null);
-
-        notifyListenersNewBackFrame();
-        return this;
+        MutationDispatcher dispatcher = mutationDispatcher;
+        if(dispatcher == null)
+            throw new IllegalStateException("No mutation executor set. See setMutationExecutor()");
+        dispatcher.post(edit);
     }
 
     /**
-     * Flags to indicate if the passed frame should be included in the pop operation
+     * {@link #pushFrame(StateStackFrame)} via {@link #post(Edit)}
      */
-    public enum PopType
+    public void postPushFrame(final StateStackFrame frameToPush)
     {
-        /**
-         * Include the passed frame (will be removed from stack)
-         */
-        INCLUSIVE,
-        /**
-         * Don't include the past frame (will remain in stack)
-         */
-        EXCLUSIVE;
+        post(new Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.pushFrame(frameToPush);
+            }
+        });
     }
 
-    public StateStack popAtFrameInstance(StateStackFrame stateStackFrame, PopType popType, boolean notifyListeners)
+    /**
+     * {@link #popToNextVisibleFrame()} via {@link #post(Edit)}
+     */
+    public void postPopToNextVisibleFrame()
     {
-        for(int i = stack.size()-1; i >= 0; i--)
+        post(new Edit()
         {
-            //find the index in the stack that is the class type requested
-            if(stack.get(i) == stateStackFrame)
+            @Override
+            public void apply(StateStack stateStack)
             {
-                //account for INCLUSIVE or EXCLUSIVE removal
-                int removeFrom = (popType == PopType.INCLUSIVE ? i : i+1);
-                boolean removedVisibleFrames = popAllFramesAboveIndex(removeFrom);
-
-                //notify listeners
-                if(!notifyListeners)
-                    return this;
-
-                if(!removedVisibleFrames) //no Visible frame change
-                    return this;
-
-                StateStackFrame topVisibleFrame = getTopVisibleFrame();
-                if(topVisibleFrame == null)
-                {
-                    notifyListenersNoVisibleFramesLeft();
-                }
-                else
-                {
-                    notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.BACK);
-                }
-
-                //have found and popped at this point so now return
-                return this;
+                stateStack.popToNextVisibleFrame();
             }
-        }
-
-        throw new IllegalStateException("Attempted to pop stack at "+ stateStackFrame.getClass().getCanonicalName()+" instance but was not found in stack");
+        });
     }
 
     /**
-     * Pops everything in the stack above (and including) the passed in class. Will look from the TOP
-     * of the stack and perform operation for the first matching {@link StateStackFrame} found.
-     *
-     * @param clazz
-     * @param popType
-     * @param  {@Link PopType#INCLUSIVE} if should pop the passed frame also, {@Link PopType#EXCLUSIVE} if this frame should become the new top
-     * @param notifyListeners true if should notify registered listeners for frame changes
+     * {@link #popTopFrameInstance(StateStackFrame)} via {@link #post(Edit)}
      */
-    public StateStack popAtFrameType(Class<? extends StateStackFrame> clazz, PopType popType, boolean notifyListeners)
+    public void postPopTopFrameInstance(final StateStackFrame frameToPop)
     {
-        for(int i = stack.size()-1; i >= 0; i--)
+        post(new Edit()
         {
-            //find the index in the stack that is the class type requested
-            if(stack.get(i).getClass() == clazz)
+            @Override
+            public void apply(StateStack stateStack)
             {
-                //account for INCLUSIVE or EXCLUSIVE removal
-                int removeFrom = (popType == PopType.INCLUSIVE ? i : i+1);
-                boolean removedVisibleFrames = popAllFramesAboveIndex(removeFrom);
-
-                //notify listeners
-                if(!notifyListeners)
-                    return this;
-
-                if(!removedVisibleFrames) //no Visible frame change
-                    return this;
-
-                StateStackFrame topVisibleFrame = getTopVisibleFrame();
-                if(topVisibleFrame == null)
-                    notifyListenersNoVisibleFramesLeft();
-                else
-                    notifyListenersTopVisibleFrameUpdated(topVisibleFrame, TopFrameChangedListener.Direction.BACK);
+                stateStack.popTopFrameInstance(frameToPop);
+            }
+        });
+    }
 
-                //have found and popped at this point so now return
-                return this;
+    /**
+     * {@link #removeFrame(StateStackFrame)} via {@link #post(Edit)}
+     */
+    public void postRemoveFrame(final StateStackFrame frameToRemove)
+    {
+        post(new Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.removeFrame(frameToRemove);
             }
-        }
+        });
+    }
 
-        throw new IllegalStateException("Attempted to pop stack at "+clazz.getCanonicalName()+" but was not found in stack");
+    //==================================================================//
+    // Type lookups
+    //==================================================================//
+
+    /**
+     * Also index frames by a supertype or interface they implement so they can be looked up via
+     * {@link #getFrameOfType(Class)} and friends using that type. Frames already on the stack are
+     * indexed straight away. Registering the same type more than once is a no-op.
+     *
+     * @param type any class or interface
+     */
+    public StateStack registerIndexedType(Class<?> type)
+    {
+        typeIndex.registerType(type, stack);
+        snapshot = snapshot.withIndexedTypes(typeIndex.getRegisteredTypes());
+        return this;
     }
 
     /**
-     * Returns the frame of type that exists in the stack. Not defined behaviour if more than one
-     * frame of the same type exists in the stack.
+     * Returns the BOTTOM-most frame of the passed type that exists in the stack. As stack-scoped data
+     * is generally pushed once this is usually the only one. Use {@link #getTopFrameOfType(Class)} to
+     * get the frame closest to the top of the stack instead.
      *
-     * //TODO defensive approach and optionally only return top of stack?
+     * A frame matches if it is exactly of the passed class or, if the passed type has been registered
+     * via {@link #registerIndexedType(Class)}, if it is assignable to that type.
      *
      * @param clazz
      * @param <T>
-     * @return
+     * @return the frame or null if none match
      */
     public <T extends StateStackFrame> T getFrameOfType(Class<T> clazz)
     {
-        for(StateStackFrame stateStackFrame : stack)
-        {
-            if(stateStackFrame.getClass() == clazz)
-                return (T) stateStackFrame;
-        }
+        return getBottomFrameOfType(clazz);
+    }
+
+    /**
+     * @return the bottom-most frame matching the passed type or null. See {@link #getFrameOfType(Class)}.
+     */
+    public <T> T getBottomFrameOfType(Class<T> clazz)
+    {
+        return frameAtIndexOrNull(clazz, typeIndex.positionsOf(clazz).first());
+    }
+
+    /**
+     * @return the top-most frame matching the passed type or null. See {@link #getFrameOfType(Class)}.
+     */
+    public <T> T getTopFrameOfType(Class<T> clazz)
+    {
+        return frameAtIndexOrNull(clazz, typeIndex.positionsOf(clazz).last());
+    }
+
+    /**
+     * @return count of frames in the stack matching the passed type. See {@link #getFrameOfType(Class)}.
+     */
+    public int getFrameCountOfType(Class<?> clazz)
+    {
+        return typeIndex.positionsOf(clazz).size();
+    }
 
-        return null;
+    /**
+     * @return all frames in the stack matching the passed type, bottom up (index 0 is the bottom-most).
+     * See {@link #getFrameOfType(Class)}.
+     */
+    public <T> List<T> getFramesOfType(Class<T> clazz)
+    {
+        PositionList positions = typeIndex.positionsOf(clazz);
+        List<T> frames = new ArrayList<>(positions.size());
+        for(int i = 0; i < positions.size(); i++)
+            frames.add(clazz.cast(frameAt(positions.get(i))));
+        return frames;
     }
 
     /**
@@ -245,13 +1358,7 @@ public class StateStack
      */
     public boolean doesContainVisibleFrame()
     {
-        for(StateStackFrame stateStackFrame : stack)
-        {
-            if(!isInvisibleFrame(stateStackFrame))
-                return true;
-        }
-
-        return false;
+        return visibleFrameIndexes.size() > 0;
     }
 
     public boolean isEmpty()
@@ -264,6 +1371,14 @@ public class StateStack
         return stack.size();
     }
 
+    /**
+     * @return count of frames in the stack not marked with {@link HiddenStateStackFrame}
+     */
+    public int getVisibleFrameCount()
+    {
+        return visibleFrameIndexes.size();
+    }
+
     /**
      * Returns the x vis frame from the top of the stack. I.e. 1 = top vis, 2 = 2nd top vis etc
      *
@@ -272,19 +1387,43 @@ public class StateStack
      */
     public StateStackFrame getVisibleFrameFromTopDown(int positionFromTop)
     {
-        final int stackSize = stack.size();
-        int topDownVisCount = 0;
-        for(int i = stackSize-1; i >= 0; i--)
+        final int visibleFrameCount = visibleFrameIndexes.size();
+        if(positionFromTop < 1 || positionFromTop > visibleFrameCount)
+            return null;
+        return frameAt(visibleFrameIndexes.get(visibleFrameCount - positionFromTop));
+    }
+
+    /**
+     * Passes the visible frames to the passed visitor from the top down, until it returns false.
+     * O(frames visited) and allocation free. The stack must not be mutated from the visitor.
+     */
+    public void forEachVisibleFrameFromTopDown(VisibleFrameVisitor visitor)
+    {
+        for(int i = visibleFrameIndexes.size() - 1; i >= 0; i--)
         {
-            StateStackFrame currentFrame = stack.elementAt(i);
-            if(!isInvisibleFrame(currentFrame))
-            {
-                topDownVisCount++;
-                if(topDownVisCount == positionFromTop)
-                    return currentFrame;
-            }
+            if(!visitor.visitFrame(frameAt(visibleFrameIndexes.get(i))))
+                return;
         }
-        return null;
+    }
+
+    /**
+     * O(1), as the stack maintains a persistent snapshot as it goes. Snapshots taken before and
+     * after a mutation share everything below the changed frames.
+     *
+     * @return an immutable view of the current stack state, which can be safely read from any thread
+     */
+    public StateStackSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @param index 0 is the bottom of the stack
+     * @return the frame at the passed stack index, including {@link HiddenStateStackFrame} frames
+     */
+    StateStackFrame getFrameAtIndex(int index)
+    {
+        return frameAt(index);
     }
 
     //==================================================================//
@@ -293,14 +1432,56 @@ public class StateStack
 
     private void notifyListenersTopVisibleFrameUpdated(StateStackFrame topVisibleFrame, TopFrameChangedListener.Direction direction)
     {
-        for(TopFrameChangedListener topFrameChangedListener : topFrameChangedListeners)
-            topFrameChangedListener.topVisibleFrameUpdated(topVisibleFrame, direction);
+        if(isInTransaction())
+        {
+            transactionNotificationPending = true;
+            return;
+        }
+
+        callbackDepth++;
+        try
+        {
+            for(TopFrameChangedListener topFrameChangedListener : topFrameChangedListeners)
+                topFrameChangedListener.topVisibleFrameUpdated(topVisibleFrame, direction);
+        }
+        finally
+        {
+            callbackDepth--;
+        }
     }
 
     private void notifyListenersNoVisibleFramesLeft()
     {
-        for(StackEmptyListener stackEmptyListener : stackEmptyListeners)
-            stackEmptyListener.noVisibleFramesLeft();
+        if(isInTransaction())
+        {
+            transactionNotificationPending = true;
+            return;
+        }
+
+        callbackDepth++;
+        try
+        {
+            for(StackEmptyListener stackEmptyListener : stackEmptyListeners)
+                stackEmptyListener.noVisibleFramesLeft();
+        }
+        finally
+        {
+            callbackDepth--;
+        }
+    }
+
+    private void notifyListenersStartedStateChanged(boolean started)
+    {
+        callbackDepth++;
+        try
+        {
+            for(StartedStateListener startedStateListener : startedStateListeners)
+                startedStateListener.stackStartedStateChanged(started);
+        }
+        finally
+        {
+            callbackDepth--;
+        }
     }
 
     private void notifyListenersNewBackFrame()
@@ -312,6 +1493,66 @@ public class StateStack
             notifyListenersNoVisibleFramesLeft();
     }
 
+    /**
+     * @return true if the passed frame repeats the last push within the duplicate push window, see
+     * {@link #setDuplicatePushWindow(long)}
+     */
+    private boolean isDuplicatePush(StateStackFrame frameToPush)
+    {
+        if(duplicatePushWindowMillis <= 0 || lastPushedFrame == null)
+            return false;
+        StateStackFrame lastPushedFrame = this.lastPushedFrame.get();
+        return lastPushedFrame != null
+                && lastPushedFrame.getParentStack() == this
+                && currentTimeMillis() - lastPushTimeMillis < duplicatePushWindowMillis
+                && frameToPush.isDuplicatePushOf(lastPushedFrame);
+    }
+
+    /**
+     * Overridable for tests
+     */
+    long currentTimeMillis()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Lifecycle callback for a frame that has been taken off the stack. Deferred until commit if
+     * inside a transaction.
+     */
+    private void framePopped(StateStackFrame frame)
+    {
+        if(isInTransaction())
+        {
+            transactionPoppedFrames.push(frame);
+            return;
+        }
+
+        callbackDepth++;
+        try
+        {
+            frame.popped();
+        }
+        finally
+        {
+            callbackDepth--;
+            frame.setParentStack(null);
+        }
+    }
+
+    private void frameRedelivered(StateStackFrame existingFrame, StateStackFrame newFrame)
+    {
+        callbackDepth++;
+        try
+        {
+            existingFrame.redelivered(newFrame);
+        }
+        finally
+        {
+            callbackDepth--;
+        }
+    }
+
     /**
      * @param index
      * @return true if any of the frames removed were not marked with {@link HiddenStateStackFrame}
@@ -324,22 +1565,59 @@ public class StateStack
         while(stack.size() > index)
         {
             StateStackFrame poppedFrame = stack.pop();
-            poppedFrame.popped();
-            poppedFrame.setParentStack(null);
-            visibleFrameRemoved |= !isInvisibleFrame(poppedFrame); //remove from end as less internal element movement
+            boolean visible = !isInvisibleFrame(poppedFrame);
+            unindexPoppedFrame(poppedFrame);
+            framePopped(poppedFrame);
+            visibleFrameRemoved |= visible; //remove from end as less internal element movement
         }
 
         return visibleFrameRemoved;
     }
 
-    private boolean isInvisibleFrame(StateStackFrame stateStackFrame)
+    //==================================================================//
+    // Visible frame index
+    //==================================================================//
+
+    /**
+     * @param frame just pushed to the top of {@link #stack}
+     */
+    private void indexPushedFrame(StateStackFrame frame)
     {
-        return isInvisibleFrame(stateStackFrame.getClass());
+        int index = stack.size()-1;
+        if(!isInvisibleFrame(frame))
+            visibleFrameIndexes.add(index);
+        typeIndex.framePushed(frame, index);
+        snapshot = snapshot.push(frame);
     }
 
-    private boolean isInvisibleFrame(Class<? extends StateStackFrame> clazz)
+    /**
+     * @param frame just popped from the top of {@link #stack}
+     */
+    private void unindexPoppedFrame(StateStackFrame frame)
+    {
+        if(!isInvisibleFrame(frame))
+            visibleFrameIndexes.removeLast();
+        typeIndex.topFramePopped(frame);
+        snapshot = snapshot.pop();
+    }
+
+    private <T> T frameAtIndexOrNull(Class<T> clazz, int index)
+    {
+        return index == -1 ? null : clazz.cast(frameAt(index));
+    }
+
+    /**
+     * All frames handed out of the stack go through here, so frames restored lazily (see
+     * {@link StateStackCodec#setLazyDecoding(boolean)}) are decoded on first access
+     */
+    private StateStackFrame frameAt(int index)
+    {
+        return UndecodedStateStackFrame.resolve(stack.get(index));
+    }
+
+    private boolean isInvisibleFrame(StateStackFrame stateStackFrame)
     {
-        return clazz.isAnnotationPresent(HiddenStateStackFrame.class);
+        return stateStackFrame.getTypeDescriptor().isHidden();
     }
 
     //==================================================================//
@@ -350,9 +1628,9 @@ public class StateStack
     {
         Log.i("Pilot", "Printing Stack");
 
-        for(StateStackFrame frame : stack)
+        for(int i = 0; i < stack.size(); i++)
         {
-            Log.i("Pilot", "-- "+frame.toString());
+            Log.i("Pilot", "-- "+stack.get(i).toString());
         }
     }
 
@@ -376,6 +1654,16 @@ public class StateStack
         stackEmptyListeners.remove(stackEmptyListener);
     }
 
+    public void addStartedStateListener(StartedStateListener startedStateListener)
+    {
+        startedStateListeners.add(startedStateListener);
+    }
+
+    public void removeStartedStateListener(StartedStateListener startedStateListener)
+    {
+        startedStateListeners.remove(startedStateListener);
+    }
+
     /**
      * Useful for your controlling Activity to listen to so can show appropriate views
      */
@@ -393,4 +1681,23 @@ public class StateStack
     {
         void noVisibleFramesLeft();
     }
+
+    /**
+     * See {@link #setStarted(boolean)}
+     */
+    public interface StartedStateListener
+    {
+        void stackStartedStateChanged(boolean started);
+    }
+
+    /**
+     * See {@link #forEachVisibleFrameFromTopDown(VisibleFrameVisitor)}
+     */
+    public interface VisibleFrameVisitor
+    {
+        /**
+         * @return true to visit the next visible frame down, false to stop
+         */
+        boolean visitFrame(StateStackFrame frame);
+    }
 }
@@ -0,0 +1,592 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Saves and restores all frames of a {@link StateStack} to a compact binary format, i.e. for
+ * persisting the stack across process death.
+ *
+ * - Each frame class name and state key is written once, frames refer to them by id.
+ * - {@link CodableStateStackFrame}s write versioned key / value state. Keys can be renamed via
+ *   {@link #registerKeyAlias(Class, String, String)} and classes via {@link #registerClassAlias(String, Class)}.
+ * - Other frames fall back to Java serialization.
+ * - Tombstones (see {@link TombstonableStateStackFrame}) are written as their arguments and restored
+ *   as tombstones, so a bounded stack stays bounded across process death.
+ * - The payload can optionally be deflated, see {@link #setCompressed(boolean)}.
+ * - Frames can optionally be decoded on first access, see {@link #setLazyDecoding(boolean)}.
+ *
+ * Restoring does not call {@link StateStackFrame#pushed()} or notify listeners, as the frames are
+ * considered to have been on the stack all along.
+ */
+public final class StateStackCodec
+{
+    private static final int MAGIC = 0x504C5354; //PLST
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+
+    private static final byte FRAME_CODABLE = 0;
+    private static final byte FRAME_SERIALIZED = 1;
+    private static final byte FRAME_TOMBSTONE = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private boolean compressed;
+    private boolean lazyDecoding;
+    private final Map<String, Class<? extends StateStackFrame>> classAliases = new HashMap<>();
+    private final Map<Class<?>, Map<String, String>> keyAliases = new HashMap<>();
+
+    //==================================================================//
+    // Config
+    //==================================================================//
+
+    /**
+     * @param compressed true to deflate the payload. Worth it for large stacks or frames holding
+     *                   text, not for a handful of small frames.
+     */
+    public StateStackCodec setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+        return this;
+    }
+
+    /**
+     * @param lazyDecoding true to only decode a frame (calling its
+     *                     {@link CodableStateStackFrame#restoreState(FrameStateReader, int)} or Java
+     *                     deserializing it) when it is first returned from the stack, i.e. when
+     *                     rendered as part of the visible window, navigated back to or looked up via
+     *                     {@link StateStack#getFrameOfType(Class)}. Frames that are never visited
+     *                     again are never decoded, and are re-encoded as-is. Decoding errors are then
+     *                     thrown on access rather than from {@link #decode(byte[], StateStack)}.
+     */
+    public StateStackCodec setLazyDecoding(boolean lazyDecoding)
+    {
+        this.lazyDecoding = lazyDecoding;
+        return this;
+    }
+
+    /**
+     * Restore frames saved under a class name that has since been renamed or moved
+     */
+    public StateStackCodec registerClassAlias(String oldClassName, Class<? extends StateStackFrame> frameClass)
+    {
+        classAliases.put(oldClassName, frameClass);
+        return this;
+    }
+
+    /**
+     * Restore state saved under a key that has since been renamed. If state contains both keys the
+     * new one wins.
+     */
+    public StateStackCodec registerKeyAlias(Class<? extends CodableStateStackFrame> frameClass, String oldKey, String newKey)
+    {
+        Map<String, String> aliases = keyAliases.get(frameClass);
+        if(aliases == null)
+            keyAliases.put(frameClass, aliases = new HashMap<>());
+        aliases.put(oldKey, newKey);
+        return this;
+    }
+
+    //==================================================================//
+    // Encode
+    //==================================================================//
+
+    /**
+     * @return all frames of the passed stack, bottom up
+     */
+    public byte[] encode(StateStack stateStack)
+    {
+        return encode(stateStack.getSnapshot());
+    }
+
+    public byte[] encode(StateStackSnapshot snapshot)
+    {
+        try
+        {
+            StringTable classTable = new StringTable();
+            StringTable keyTable = new StringTable();
+            ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+            DataOutputStream framesOut = new DataOutputStream(frameBytes);
+            StateStackFrame[] frames = snapshot.toArray();
+            writeVarInt(framesOut, frames.length);
+            for(StateStackFrame frame : frames)
+                writeFrame(framesOut, frame, classTable, keyTable);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(compressed ? FLAG_DEFLATED : 0);
+            header.flush();
+
+            //tables go first so the decoder can resolve ids as it reads frames
+            Deflater deflater = compressed ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+            OutputStream payloadStream = compressed ? new DeflaterOutputStream(bytes, deflater) : bytes;
+            DataOutputStream payload = new DataOutputStream(payloadStream);
+            classTable.writeTo(payload);
+            keyTable.writeTo(payload);
+            frameBytes.writeTo(payload);
+            payload.close();
+            if(deflater != null)
+                deflater.end();
+            return bytes.toByteArray();
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("Unable to encode StateStack", e);
+        }
+    }
+
+    //==================================================================//
+    // Decode
+    //==================================================================//
+
+    /**
+     * Restores the encoded frames onto the passed stack, which must be empty
+     */
+    public StateStack decode(byte[] encoded, StateStack stateStack)
+    {
+        if(!stateStack.isEmpty())
+            throw new IllegalStateException("Can only restore onto an empty StateStack");
+        stateStack.restoreFrames(decodeFrames(encoded));
+        return stateStack;
+    }
+
+    /**
+     * @return the decoded frames, bottom up, not attached to any stack. May contain
+     * {@link UndecodedStateStackFrame}s, see {@link #setLazyDecoding(boolean)}.
+     */
+    List<StateStackFrame> decodeFrames(byte[] encoded)
+    {
+        try
+        {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(encoded));
+            if(header.readInt() != MAGIC)
+                throw new IllegalArgumentException("Not StateStack data");
+            byte formatVersion = header.readByte();
+            if(formatVersion != FORMAT_VERSION)
+                throw new IllegalArgumentException("Unsupported StateStack format version "+formatVersion);
+            byte flags = header.readByte();
+
+            InputStream payloadStream = (flags & FLAG_DEFLATED) != 0 ? new InflaterInputStream(header) : header;
+            DataInputStream payload = new DataInputStream(payloadStream);
+            List<String> classNames = StringTable.readFrom(payload);
+            List<String> keys = StringTable.readFrom(payload);
+
+            List<Class<? extends StateStackFrame>> classes = new ArrayList<>(classNames.size());
+            for(String className : classNames)
+                classes.add(resolveClass(className));
+
+            int frameCount = readVarInt(payload);
+            List<StateStackFrame> frames = new ArrayList<>(frameCount);
+            for(int i = 0; i < frameCount; i++)
+                frames.add(readFrame(payload, classes, keys));
+            return frames;
+        }
+        catch(IOException e)
+        {
+            throw new IllegalArgumentException("Malformed StateStack data", e);
+        }
+    }
+
+    //==================================================================//
+    // Frames
+    //==================================================================//
+
+    private void writeFrame(DataOutputStream out, StateStackFrame frame, StringTable classTable, StringTable keyTable) throws IOException
+    {
+        if(frame instanceof UndecodedStateStackFrame)
+        {
+            UndecodedStateStackFrame undecodedFrame = (UndecodedStateStackFrame) frame;
+            synchronized(undecodedFrame)
+            {
+                if(!undecodedFrame.isDecoded())
+                {
+                    writeUndecodedFrame(out, undecodedFrame, classTable, keyTable);
+                    return;
+                }
+            }
+            frame = undecodedFrame.decode();
+        }
+
+        writeVarInt(out, classTable.idOf(frame.getClass().getName()));
+        if(frame instanceof CodableStateStackFrame)
+        {
+            CodableStateStackFrame codableFrame = (CodableStateStackFrame) frame;
+            FrameStateWriter writer = new FrameStateWriter(keyTable);
+            codableFrame.saveState(writer);
+            out.writeByte(FRAME_CODABLE);
+            writeVarInt(out, codableFrame.getStateVersion());
+            writeVarInt(out, writer.getEntryCount());
+            out.write(writer.getEntryBytes());
+        }
+        else
+        {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(serialized);
+            objectOut.writeObject(frame);
+            objectOut.close();
+            out.writeByte(FRAME_SERIALIZED);
+            writeVarInt(out, serialized.size());
+            serialized.writeTo(out);
+        }
+    }
+
+    /**
+     * Writes the state an undecoded frame was read with, without decoding it
+     */
+    private static void writeUndecodedFrame(DataOutputStream out, UndecodedStateStackFrame frame, StringTable classTable, StringTable keyTable) throws IOException
+    {
+        writeVarInt(out, classTable.idOf(frame.getTypeDescriptor().getFrameClass().getName()));
+        if(frame.isCodable())
+        {
+            FrameStateWriter writer = new FrameStateWriter(keyTable);
+            for(Map.Entry<String, Object> entry : frame.getValues().entrySet())
+                writer.putValue(entry.getKey(), entry.getValue());
+            if(frame.isTombstone())
+            {
+                out.writeByte(FRAME_TOMBSTONE);
+            }
+            else
+            {
+                out.writeByte(FRAME_CODABLE);
+                writeVarInt(out, frame.getStateVersion());
+            }
+            writeVarInt(out, writer.getEntryCount());
+            out.write(writer.getEntryBytes());
+        }
+        else
+        {
+            byte[] serialized = frame.getSerialized();
+            out.writeByte(FRAME_SERIALIZED);
+            writeVarInt(out, serialized.length);
+            out.write(serialized);
+        }
+    }
+
+    private StateStackFrame readFrame(DataInputStream in, List<Class<? extends StateStackFrame>> classes, List<String> keys) throws IOException
+    {
+        Class<? extends StateStackFrame> frameClass = classes.get(readIndex(in, classes.size()));
+        byte encoding = in.readByte();
+        switch(encoding)
+        {
+            case FRAME_CODABLE:
+            {
+                if(!CodableStateStackFrame.class.isAssignableFrom(frameClass))
+                    throw new IllegalArgumentException(frameClass.getName()+" is no longer a CodableStateStackFrame");
+                int version = readVarInt(in);
+                Map<String, Object> values = readValues(in, keys, keyAliases.get(frameClass));
+                if(lazyDecoding)
+                    return new UndecodedStateStackFrame(frameClass, version, values);
+                return instantiate(frameClass, version, values);
+            }
+            case FRAME_SERIALIZED:
+            {
+                byte[] serialized = new byte[readVarInt(in)];
+                in.readFully(serialized);
+                if(lazyDecoding)
+                    return new UndecodedStateStackFrame(frameClass, serialized);
+                return deserialize(frameClass, serialized);
+            }
+            case FRAME_TOMBSTONE:
+            {
+                if(!TombstonableStateStackFrame.class.isAssignableFrom(frameClass))
+                    throw new IllegalArgumentException(frameClass.getName()+" is no longer a TombstonableStateStackFrame");
+                //stays a tombstone whether decoding lazily or not
+                return UndecodedStateStackFrame.tombstone(frameClass, readValues(in, keys, keyAliases.get(frameClass)));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown frame encoding "+encoding);
+        }
+    }
+
+    private static Map<String, Object> readValues(DataInput in, List<String> keys, Map<String, String> aliases) throws IOException
+    {
+        int entryCount = readVarInt(in);
+        Map<String, Object> values = new HashMap<>(entryCount * 2);
+        Map<String, Object> aliasedValues = null;
+        for(int i = 0; i < entryCount; i++)
+        {
+            String key = keys.get(readIndex(in, keys.size()));
+            Object value = readValue(in);
+            String newKey = aliases == null ? null : aliases.get(key);
+            if(newKey == null)
+            {
+                values.put(key, value);
+                continue;
+            }
+            if(aliasedValues == null)
+                aliasedValues = new HashMap<>();
+            aliasedValues.put(newKey, value);
+        }
+
+        //only fill in renamed keys not also written under their new name
+        if(aliasedValues != null)
+        {
+            for(Map.Entry<String, Object> aliased : aliasedValues.entrySet())
+            {
+                if(!values.containsKey(aliased.getKey()))
+                    values.put(aliased.getKey(), aliased.getValue());
+            }
+        }
+        return values;
+    }
+
+    private static Object readValue(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch(type)
+        {
+            case FrameStateWriter.TYPE_NULL: return null;
+            case FrameStateWriter.TYPE_BOOLEAN: return in.readBoolean();
+            case FrameStateWriter.TYPE_INT:
+            case FrameStateWriter.TYPE_LONG: return readVarLong(in);
+            case FrameStateWriter.TYPE_DOUBLE: return in.readDouble();
+            case FrameStateWriter.TYPE_STRING: return readString(in);
+            case FrameStateWriter.TYPE_BYTES:
+            {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                return bytes;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value type "+type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends StateStackFrame> resolveClass(String className)
+    {
+        Class<? extends StateStackFrame> aliasedClass = classAliases.get(className);
+        if(aliasedClass != null)
+            return aliasedClass;
+        try
+        {
+            Class<?> frameClass = Class.forName(className, false, StateStackCodec.class.getClassLoader());
+            if(!StateStackFrame.class.isAssignableFrom(frameClass))
+                throw new IllegalArgumentException(className+" is not a StateStackFrame");
+            return (Class<? extends StateStackFrame>) frameClass;
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new IllegalArgumentException("Frame class "+className+" not found. Renamed? See registerClassAlias()", e);
+        }
+    }
+
+    /**
+     * @return a new instance of the passed {@link CodableStateStackFrame} class with the passed state restored
+     */
+    static StateStackFrame instantiate(Class<? extends StateStackFrame> frameClass, int version, Map<String, Object> values)
+    {
+        StateStackFrame frame = newInstance(frameClass);
+        ((CodableStateStackFrame) frame).restoreState(new FrameStateReader(values), version);
+        return frame;
+    }
+
+    /**
+     * @return a new instance of the passed {@link TombstonableStateStackFrame} class recreated from
+     * the passed arguments
+     */
+    static StateStackFrame recreate(Class<? extends StateStackFrame> frameClass, Map<String, Object> arguments)
+    {
+        StateStackFrame frame = newInstance(frameClass);
+        ((TombstonableStateStackFrame) frame).recreate(new FrameStateReader(arguments));
+        return frame;
+    }
+
+    /**
+     * @return a tombstone holding the arguments of the passed {@link TombstonableStateStackFrame}
+     */
+    static UndecodedStateStackFrame tombstone(StateStackFrame frame)
+    {
+        StringTable keyTable = new StringTable();
+        FrameStateWriter writer = new FrameStateWriter(keyTable);
+        ((TombstonableStateStackFrame) frame).saveArguments(writer);
+        try
+        {
+            //read back the written entries, so arguments are held in the same form as after decoding
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(entries);
+            writeVarInt(out, writer.getEntryCount());
+            out.write(writer.getEntryBytes());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entries.toByteArray()));
+            return UndecodedStateStackFrame.tombstone(frame.getClass(), readValues(in, keyTable.strings, null));
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("Unable to tombstone "+frame.getClass().getName(), e);
+        }
+    }
+
+    private static StateStackFrame newInstance(Class<? extends StateStackFrame> frameClass)
+    {
+        try
+        {
+            Constructor<? extends StateStackFrame> constructor = frameClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        }
+        catch(Exception e)
+        {
+            throw new IllegalStateException(frameClass.getName()+" must have a no-arg constructor to be restored", e);
+        }
+    }
+
+    static StateStackFrame deserialize(Class<? extends StateStackFrame> frameClass, byte[] serialized)
+    {
+        try
+        {
+            ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized));
+            try
+            {
+                return frameClass.cast(objectIn.readObject());
+            }
+            finally
+            {
+                objectIn.close();
+            }
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new IllegalArgumentException("Unable to restore "+frameClass.getName(), e);
+        }
+    }
+
+    //==================================================================//
+    // String table
+    //==================================================================//
+
+    /**
+     * Strings written once per encoded stack and referred to by id
+     */
+    static final class StringTable
+    {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        int idOf(String string)
+        {
+            Integer id = ids.get(string);
+            if(id == null)
+            {
+                id = strings.size();
+                ids.put(string, id);
+                strings.add(string);
+            }
+            return id;
+        }
+
+        void writeTo(DataOutput out) throws IOException
+        {
+            writeVarInt(out, strings.size());
+            for(String string : strings)
+                writeString(out, string);
+        }
+
+        static List<String> readFrom(DataInput in) throws IOException
+        {
+            int count = readVarInt(in);
+            List<String> strings = new ArrayList<>(count);
+            for(int i = 0; i < count; i++)
+                strings.add(readString(in));
+            return strings;
+        }
+    }
+
+    //==================================================================//
+    // Primitives
+    //==================================================================//
+
+    static void writeVarInt(DataOutput out, int value) throws IOException
+    {
+        while((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException
+    {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Zig-zag encoded so small negative values stay small
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException
+    {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while((zigZag & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+
+    static long readVarLong(DataInput in) throws IOException
+    {
+        long zigZag = 0;
+        for(int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = in.readByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+        throw new IllegalArgumentException("Malformed varlong");
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        int length = readVarInt(in);
+        if(length < 0)
+            throw new IllegalArgumentException("Malformed StateStack data, bad string length "+length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int readIndex(DataInput in, int size) throws IOException
+    {
+        int index = readVarInt(in);
+        if(index < 0 || index >= size)
+            throw new IllegalArgumentException("Malformed StateStack data, bad table index "+index);
+        return index;
+    }
+}
@@ -2,7 +2,9 @@ package com.kodroid.pilot.lib.statestack;
 
 import java.io.Serializable;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Frame that lives in a {@link StateStack}.
@@ -13,7 +15,12 @@ public abstract class StateStackFrame implements Serializable
     // Fields
     //==================================================================//
 
-    private StateStack parentStack;
+    /**
+     * Transient as frames are saved independently of their stack, see {@link StateStackCodec}
+     */
+    private transient StateStack parentStack;
+    private transient FrameTypeDescriptor typeDescriptor;
+    private transient boolean viewVisible;
 
     //==================================================================//
     // Parent StateStack
@@ -22,12 +29,45 @@ public abstract class StateStackFrame implements Serializable
     void setParentStack(StateStack parentStack)
     {
         this.parentStack = parentStack;
+        if(parentStack == null)
+            viewVisible = false; //off the stack, so not notified
     }
     StateStack getParentStack()
     {
         return parentStack;
     }
 
+    /**
+     * @return true while this instance is on a stack. False once popped or removed, and for an
+     * instance swapped out of the stack by hibernation or tombstoning.
+     */
+    public boolean isOnStack()
+    {
+        return parentStack != null;
+    }
+
+    //==================================================================//
+    // Type metadata
+    //==================================================================//
+
+    /**
+     * @return the cached {@link FrameTypeDescriptor} for this frames class
+     */
+    public final FrameTypeDescriptor getTypeDescriptor()
+    {
+        if(typeDescriptor == null)
+            typeDescriptor = FrameTypeDescriptor.forClass(getClass());
+        return typeDescriptor;
+    }
+
+    /**
+     * For frames standing in for another class, see {@link UndecodedStateStackFrame}
+     */
+    void setTypeDescriptor(FrameTypeDescriptor typeDescriptor)
+    {
+        this.typeDescriptor = typeDescriptor;
+    }
+
     //==================================================================//
     // Lifecycle
     //==================================================================//
@@ -43,21 +83,108 @@ public abstract class StateStackFrame implements Serializable
     public void popped(){}
 
     /**
-     * Received between {@link #pushed()} and {@link #popped()}.
+     * Received between {@link #pushed()} and {@link #popped()}, only when visibility changes (see
+     * {@link #notifyFrameViewVisible(boolean)}).
      *
      * @param frameViewVisible true if a view is visible-on-screen that's backed by this frame.
      *                         False if a previously visible-on-screen view is no longer visible but still on the stack.
      */
     public void frameViewVisible(boolean frameViewVisible){};
 
+    /**
+     * @return the visibility last passed to {@link #frameViewVisible(boolean)}, false once off the stack
+     */
+    public final boolean isFrameViewVisible()
+    {
+        return viewVisible;
+    }
+
+    /**
+     * Used by renderers to report whether a view backed by this frame is visible-on-screen. Calls
+     * {@link #frameViewVisible(boolean)} only if this differs from the current visibility, so repeated
+     * reports are dropped.
+     */
+    public final void notifyFrameViewVisible(boolean frameViewVisible)
+    {
+        if(viewVisible == frameViewVisible)
+            return;
+        viewVisible = frameViewVisible;
+        frameViewVisible(frameViewVisible);
+    }
+
+    /**
+     * Received instead of a new frame of the same class being pushed, when pushed with
+     * {@link StateStack.LaunchMode#SINGLE_TOP} or {@link StateStack.LaunchMode#SINGLE_TASK}.
+     *
+     * @param newFrame the frame that was not pushed. Has no parent stack.
+     */
+    public void redelivered(StateStackFrame newFrame){}
+
+    /**
+     * Received after {@link #pushed()} if the stack has a {@link FrameTransitionModel} set (see
+     * {@link StateStack#setTransitionModel(FrameTransitionModel)}) which has seen frames pushed after
+     * frames of this class. Can be used to start loading data for the probable next frames while
+     * this one is being used.
+     *
+     * @param likelyNextFrames most likely first, never empty. Only valid for the duration of the call.
+     */
+    public void likelyNextFrames(List<Class<? extends StateStackFrame>> likelyNextFrames){}
+
+    /**
+     * Used by the stacks duplicate push guard, see {@link StateStack#setDuplicatePushWindow(long)}.
+     * By default any frame of the same class is a duplicate. Override to compare arguments too.
+     *
+     * @param previouslyPushedFrame the frame pushed before this one
+     * @return true if pushing this frame would repeat the previous push
+     */
+    public boolean isDuplicatePushOf(StateStackFrame previouslyPushedFrame)
+    {
+        return previouslyPushedFrame.getClass() == getClass();
+    }
+
     //==================================================================//
     // Observable
     //==================================================================//
 
-    private Set<Observer> observers = new HashSet<>();
+    /**
+     * Change key mask that matches every change. See {@link KeyedObserver}.
+     */
+    public static final long ALL_KEYS = -1L;
+
+    /**
+     * Created on first add. Transient as observers are usually views.
+     */
+    private transient Set<Observer> observers;
+    private transient volatile CoalescingObserverNotifier coalescingObserverNotifier;
+
+    /**
+     * Copy-on-write so delivery does not allocate and observers can be removed during delivery.
+     * Null when empty (also after deserialization).
+     */
+    private transient KeyedObserver[] keyedObservers;
+    private transient long[] keyedObserverMasks;
+
+    /**
+     * Opt in to coalesced observer notifications. Once set, {@link #notifyObservers()} only marks this
+     * frame dirty (from any thread) and schedules a delivery on the passed executor. Any further
+     * calls before that delivery runs are collapsed into it, so each observer receives one
+     * {@link Observer#updated()} per executor tick, on the executor thread. Change keys passed to
+     * {@link #notifyObservers(long)} are OR'd together for that delivery.
+     *
+     * Use a main thread executor (i.e. {@code MainLooperExecutor} or {@code ChoreographerExecutor})
+     * for frames that back views.
+     *
+     * @param executor should run tasks serially. Null to notify synchronously (default).
+     */
+    public void setObserverNotificationExecutor(Executor executor)
+    {
+        coalescingObserverNotifier = executor == null ? null : new CoalescingObserverNotifier(this, executor);
+    }
 
     public void addObserver(Observer observer, boolean notifyOnAdd)
     {
+        if(observers == null)
+            observers = new HashSet<>();
         observers.add(observer);
         if(notifyOnAdd)
             observer.updated();
@@ -65,17 +192,120 @@ public abstract class StateStackFrame implements Serializable
 
     public void removeObserver(Observer observer)
     {
-        observers.remove(observer);
+        if(observers != null)
+            observers.remove(observer);
+    }
+
+    /**
+     * @param keyMask the change keys this observer renders, it is only notified when one of these
+     *                changes. {@link #ALL_KEYS} for every change.
+     * @param notifyOnAdd if true the observer is immediately notified with all of its keys
+     */
+    public void addKeyedObserver(KeyedObserver observer, long keyMask, boolean notifyOnAdd)
+    {
+        removeKeyedObserver(observer);
+        int count = keyedObservers == null ? 0 : keyedObservers.length;
+        KeyedObserver[] newObservers = new KeyedObserver[count + 1];
+        long[] newMasks = new long[count + 1];
+        if(count > 0)
+        {
+            System.arraycopy(keyedObservers, 0, newObservers, 0, count);
+            System.arraycopy(keyedObserverMasks, 0, newMasks, 0, count);
+        }
+        newObservers[count] = observer;
+        newMasks[count] = keyMask;
+        keyedObserverMasks = newMasks;
+        keyedObservers = newObservers;
+        if(notifyOnAdd)
+            observer.updated(keyMask);
     }
 
+    public void removeKeyedObserver(KeyedObserver observer)
+    {
+        KeyedObserver[] currentObservers = keyedObservers;
+        if(currentObservers == null)
+            return;
+        for(int i = 0; i < currentObservers.length; i++)
+        {
+            if(currentObservers[i] != observer)
+                continue;
+            if(currentObservers.length == 1)
+            {
+                keyedObservers = null;
+                keyedObserverMasks = null;
+                return;
+            }
+            KeyedObserver[] newObservers = new KeyedObserver[currentObservers.length - 1];
+            long[] newMasks = new long[currentObservers.length - 1];
+            System.arraycopy(currentObservers, 0, newObservers, 0, i);
+            System.arraycopy(currentObservers, i + 1, newObservers, i, newObservers.length - i);
+            System.arraycopy(keyedObserverMasks, 0, newMasks, 0, i);
+            System.arraycopy(keyedObserverMasks, i + 1, newMasks, i, newMasks.length - i);
+            keyedObserverMasks = newMasks;
+            keyedObservers = newObservers;
+            return;
+        }
+    }
+
+    /**
+     * Notify all observers of a change to every key
+     */
     protected void notifyObservers()
     {
-        for(Observer observer : observers)
-            observer.updated();
+        notifyObservers(ALL_KEYS);
+    }
+
+    /**
+     * Notify observers of a partial change. Plain {@link Observer}s are always notified, a
+     * {@link KeyedObserver} only if one of its keys changed. Does not allocate.
+     *
+     * @param changedKeys bitmask of changed keys, as declared by the frame subclass
+     */
+    protected void notifyObservers(long changedKeys)
+    {
+        if(changedKeys == 0)
+            return;
+        CoalescingObserverNotifier notifier = coalescingObserverNotifier;
+        if(notifier != null)
+            notifier.markDirty(changedKeys);
+        else
+            deliverToObservers(changedKeys);
+    }
+
+    void deliverToObservers(long changedKeys)
+    {
+        if(observers != null && !observers.isEmpty())
+        {
+            for(Observer observer : observers)
+                observer.updated();
+        }
+
+        KeyedObserver[] currentObservers = keyedObservers;
+        if(currentObservers == null)
+            return;
+        long[] masks = keyedObserverMasks;
+        for(int i = 0; i < currentObservers.length; i++)
+        {
+            long observedChanges = changedKeys & masks[i];
+            if(observedChanges != 0)
+                currentObservers[i].updated(observedChanges);
+        }
     }
 
     public interface Observer
     {
         void updated();
     }
+
+    /**
+     * Observer of a subset of a frames state. Frames declare their change keys as single bit
+     * {@code long} constants, i.e. {@code static final long KEY_TITLE = 1L << 0;}
+     */
+    public interface KeyedObserver
+    {
+        /**
+         * @param changedKeys the changed keys, masked to those this observer was added with. Never 0.
+         */
+        void updated(long changedKeys);
+    }
 }
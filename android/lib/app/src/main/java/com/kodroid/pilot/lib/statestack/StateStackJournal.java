@@ -0,0 +1,730 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Optional persistence for a {@link StateStack} that survives process death without waiting for
+ * onSaveInstanceState.
+ *
+ * After every outermost stack mutation the change since the last one (frames truncated, frames
+ * pushed) is appended to a memory-mapped journal file. Appending is a plain memory store into the
+ * mapped region, which the OS keeps even if the process is killed. Frame state that changes while a
+ * frame is on the stack is appended via {@link #recordFrameState(StateStackFrame)}.
+ *
+ * Once the journal holds {@link #setCompactionThreshold(int)} records (or is full) it is compacted:
+ * appends move to the other of two journal files as the next generation, while the stack as of the
+ * previous generations end is written as a checkpoint on a background executor (see
+ * {@link #setCheckpointExecutor(Executor)}). The checkpoint is built from the frames already encoded
+ * for the journal, so nothing is encoded or written on the mutating thread. Until the checkpoint is
+ * written the previous generation is kept and replayed before the current one. On startup
+ * {@link #attachTo(StateStack)} loads the checkpoint and replays the journal tail.
+ *
+ * Not thread safe, all calls should come from the thread that mutates the stack.
+ */
+public final class StateStackJournal implements Closeable
+{
+    private static final String JOURNAL_FILE_NAME = "statestack.journal.";
+    private static final String CHECKPOINT_FILE_NAME = "statestack.checkpoint";
+
+    private static final int MAGIC = 0x504C534A; //PLSJ
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 20; //magic, format version, generation, flags
+    private static final int GENERATION_OFFSET = 8;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int RECORD_HEADER_SIZE = 5; //length, type
+
+    /**
+     * Generation continues from the end of the previous one. Without this flag a generation starts
+     * from an empty stack (see {@link #journalStack(StateStackSnapshot)}).
+     */
+    private static final int FLAG_CHAINED = 1;
+
+    private static final byte RECORD_TRUNCATE = 1;
+    private static final byte RECORD_PUSH = 2;
+    private static final byte RECORD_REPLACE = 3;
+
+    private static final int DEFAULT_CAPACITY = 256 * 1024;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+
+    private final File directory;
+    private final StateStackCodec codec;
+
+    /**
+     * Indexed by generation parity, the current generation is appended to while the other holds the
+     * previous one
+     */
+    private final RandomAccessFile[] journalFiles = new RandomAccessFile[2];
+    private final MappedByteBuffer[] journals = new MappedByteBuffer[2];
+    private MappedByteBuffer journal;
+
+    private long generation;
+    private int appendPosition = HEADER_SIZE;
+    private int recordCount;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private StateStack stateStack;
+    private StateStackSnapshot lastRecorded = StateStackSnapshot.empty();
+
+    /**
+     * Encoded frames of {@link #lastRecorded}, bottom up, which checkpoints are written from
+     */
+    private PersistentArray<byte[]> recordedFrames = PersistentArray.empty();
+
+    private Executor checkpointExecutor;
+    private ExecutorService ownedCheckpointExecutor;
+    private CheckpointWrite pendingCheckpoint;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    private StateStackJournal(File directory, StateStackCodec codec) throws IOException
+    {
+        this.directory = directory;
+        this.codec = codec;
+        for(int i = 0; i < 2; i++)
+        {
+            journalFiles[i] = new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME+i), "rw");
+            journals[i] = map(i, Math.max(DEFAULT_CAPACITY, (int) journalFiles[i].length()));
+        }
+    }
+
+    /**
+     * @param directory app private directory the journal and checkpoint files are kept in, i.e.
+     *                  Context.getFilesDir()
+     * @param codec used to encode frames, so should have any aliases registered
+     */
+    public static StateStackJournal open(File directory, StateStackCodec codec) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create "+directory);
+        return new StateStackJournal(directory, codec);
+    }
+
+    /**
+     * @param compactionThreshold number of journal records after which the journal is compacted
+     *                            into a new checkpoint. Higher means fewer checkpoint writes but a
+     *                            longer replay on recovery.
+     */
+    public StateStackJournal setCompactionThreshold(int compactionThreshold)
+    {
+        if(compactionThreshold < 1)
+            throw new IllegalArgumentException("compactionThreshold must be >= 1");
+        this.compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    /**
+     * @param checkpointExecutor runs checkpoint writes, should be off the mutating thread. Defaults to
+     *                           a background thread owned by this journal.
+     */
+    public StateStackJournal setCheckpointExecutor(Executor checkpointExecutor)
+    {
+        if(checkpointExecutor == null)
+            throw new NullPointerException("checkpointExecutor");
+        this.checkpointExecutor = checkpointExecutor;
+        return this;
+    }
+
+    //==================================================================//
+    // Attaching
+    //==================================================================//
+
+    /**
+     * Starts journaling the passed stack. If the stack is empty it is first restored from the
+     * checkpoint and journal (without {@link StateStackFrame#pushed()} calls, see
+     * {@link StateStackCodec}). Otherwise any previously journaled stack is discarded.
+     *
+     * @return the passed stack
+     */
+    public StateStack attachTo(StateStack stateStack)
+    {
+        if(this.stateStack != null)
+            throw new IllegalStateException("Journal already attached to a StateStack");
+
+        if(stateStack.isEmpty())
+            stateStack.restoreFrames(recover());
+        else
+            journalStack(stateStack.getSnapshot());
+
+        this.stateStack = stateStack;
+        lastRecorded = stateStack.getSnapshot();
+        stateStack.setJournal(this);
+        return stateStack;
+    }
+
+    /**
+     * Stops journaling, waiting for a checkpoint write in progress. The journal and checkpoint files
+     * are left in place for the next {@link #attachTo(StateStack)}.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(stateStack != null)
+        {
+            stateStack.setJournal(null);
+            stateStack = null;
+        }
+        try
+        {
+            if(pendingCheckpoint != null)
+                pendingCheckpoint.done.await();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for StateStack checkpoint");
+        }
+        finally
+        {
+            if(ownedCheckpointExecutor != null)
+                ownedCheckpointExecutor.shutdown();
+            journalFiles[0].close();
+            journalFiles[1].close();
+        }
+    }
+
+    //==================================================================//
+    // Recording
+    //==================================================================//
+
+    /**
+     * Appends the current state of a frame already on the stack, for frames that change state after
+     * being pushed. Only the latest recorded state is recovered.
+     */
+    public void recordFrameState(StateStackFrame frame)
+    {
+        int index = lastRecorded.indexOf(frame);
+        if(index == -1)
+            throw new IllegalStateException("Frame is not on the journaled StateStack");
+
+        byte[] encodedFrame = encodeFrame(frame);
+        byte[] payload = new byte[4 + encodedFrame.length];
+        writeInt(payload, 0, index);
+        System.arraycopy(encodedFrame, 0, payload, 4, encodedFrame.length);
+        appendOrCompact(Arrays.asList(new Record(RECORD_REPLACE, payload)));
+        recordedFrames = recordedFrames.set(index, encodedFrame);
+    }
+
+    /**
+     * Called by the attached stack after each outermost mutation
+     */
+    void stackChanged(StateStackSnapshot snapshot)
+    {
+        if(snapshot == lastRecorded)
+            return;
+
+        int sharedSize = lastRecorded.getSharedBaseSize(snapshot);
+        List<Record> records = new ArrayList<>();
+        if(sharedSize < lastRecorded.getSize())
+        {
+            byte[] payload = new byte[4];
+            writeInt(payload, 0, sharedSize);
+            records.add(new Record(RECORD_TRUNCATE, payload));
+        }
+        int firstPush = records.size();
+        for(int i = sharedSize; i < snapshot.getSize(); i++)
+            records.add(new Record(RECORD_PUSH, encodeFrame(snapshot.getFrameAtIndex(i))));
+
+        //compacting checkpoints the stack as last recorded, so only update that once appended
+        appendOrCompact(records);
+        PersistentArray<byte[]> frames = recordedFrames;
+        for(int i = sharedSize; i < lastRecorded.getSize(); i++)
+            frames = frames.set(i, null);
+        for(int i = sharedSize; i < snapshot.getSize(); i++)
+            frames = frames.set(i, records.get(firstPush + i - sharedSize).payload);
+        recordedFrames = frames;
+        lastRecorded = snapshot;
+    }
+
+    /**
+     * Called by the attached stack when frames have been swapped for equivalent ones (i.e.
+     * hibernated) so there is nothing to record
+     */
+    void framesReplaced(StateStackSnapshot snapshot)
+    {
+        lastRecorded = snapshot;
+    }
+
+    private void appendOrCompact(List<Record> records)
+    {
+        int size = 0;
+        for(Record record : records)
+            size += RECORD_HEADER_SIZE + record.payload.length;
+
+        IOException checkpointFailure = null;
+        //+4 for the end marker
+        if(recordCount + records.size() > compactionThreshold || appendPosition + size + 4 > journal.capacity())
+        {
+            CheckpointWrite previous = pendingCheckpoint;
+            if(previous != null && previous.isDone())
+            {
+                pendingCheckpoint = null;
+                if(previous.failure != null)
+                {
+                    //the previous generation can not be dropped until its checkpoint is written
+                    checkpointFailure = previous.failure;
+                    submitCheckpoint(previous.generation, previous.frames, previous.size);
+                }
+            }
+            //else keep appending to this generation until the previous checkpoint is written
+            if(pendingCheckpoint == null)
+                compact();
+            if(appendPosition + size + 4 > journal.capacity())
+                grow(appendPosition + size + 4);
+        }
+
+        for(Record record : records)
+            append(record);
+        if(checkpointFailure != null)
+            throw new IllegalStateException("Unable to write StateStack checkpoint", checkpointFailure);
+    }
+
+    /**
+     * Writes the end marker after the record before the record itself, and the record length last,
+     * so a process killed part way through leaves the journal ending at the previous record.
+     */
+    private void append(Record record)
+    {
+        int length = 1 + record.payload.length;
+        int nextPosition = appendPosition + 4 + length;
+        journal.putInt(nextPosition, 0);
+        journal.put(appendPosition + 4, record.type);
+        ByteBuffer payloadRegion = journal.duplicate();
+        payloadRegion.position(appendPosition + RECORD_HEADER_SIZE);
+        payloadRegion.put(record.payload);
+        journal.putInt(appendPosition, length);
+        appendPosition = nextPosition;
+        recordCount++;
+    }
+
+    //==================================================================//
+    // Compaction
+    //==================================================================//
+
+    /**
+     * Starts the next generation, chained from this one, and writes the stack as last recorded as
+     * its checkpoint in the background. The caller must check no checkpoint write is pending, as the
+     * next generation reuses the journal file of the previous one.
+     */
+    private void compact()
+    {
+        long newGeneration = generation + 1;
+        submitCheckpoint(newGeneration, recordedFrames, lastRecorded.getSize());
+        startGeneration(newGeneration);
+        writeHeader(FLAG_CHAINED);
+    }
+
+    /**
+     * Journals the passed stack as push records of a new unchained generation, replacing whatever was
+     * journaled before without a checkpoint write. The header is written last so a process killed
+     * part way through recovers the previous stack.
+     */
+    private void journalStack(StateStackSnapshot snapshot)
+    {
+        long newGeneration = Math.max(readCheckpointGeneration(), Math.max(headerGeneration(journals[0]), headerGeneration(journals[1]))) + 1;
+        startGeneration(newGeneration);
+        PersistentArray<byte[]> frames = PersistentArray.empty();
+        for(int i = 0; i < snapshot.getSize(); i++)
+        {
+            byte[] encodedFrame = encodeFrame(snapshot.getFrameAtIndex(i));
+            int end = appendPosition + RECORD_HEADER_SIZE + encodedFrame.length + 4;
+            if(end > journal.capacity())
+                grow(end);
+            append(new Record(RECORD_PUSH, encodedFrame));
+            frames = frames.set(i, encodedFrame);
+        }
+        recordedFrames = frames;
+        writeHeader(0);
+    }
+
+    private void submitCheckpoint(long checkpointGeneration, PersistentArray<byte[]> frames, int size)
+    {
+        CheckpointWrite write = new CheckpointWrite(checkpointGeneration, frames, size);
+        if(checkpointExecutor == null)
+            checkpointExecutor = ownedCheckpointExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "StateStackJournal checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        checkpointExecutor.execute(write);
+        pendingCheckpoint = write;
+    }
+
+    /**
+     * Called on the checkpoint executor. A process killed part way through leaves the previous
+     * checkpoint in place.
+     */
+    private void writeCheckpoint(long checkpointGeneration, PersistentArray<byte[]> frames, int size) throws IOException
+    {
+        File tempFile = new File(directory, CHECKPOINT_FILE_NAME+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(checkpointGeneration);
+            out.writeInt(size);
+            for(int i = 0; i < size; i++)
+            {
+                byte[] encodedFrame = frames.get(i);
+                out.writeInt(encodedFrame.length);
+                out.write(encodedFrame);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tempFile.renameTo(new File(directory, CHECKPOINT_FILE_NAME)))
+            throw new IOException("Unable to replace checkpoint");
+    }
+
+    /**
+     * Switches appends to the journal file of the passed generation, left invalid until
+     * {@link #writeHeader(int)}
+     */
+    private void startGeneration(long newGeneration)
+    {
+        journal = journals[(int) (newGeneration & 1)];
+        journal.putInt(0, 0);
+        journal.putInt(HEADER_SIZE, 0);
+        generation = newGeneration;
+        appendPosition = HEADER_SIZE;
+        recordCount = 0;
+    }
+
+    private void writeHeader(int flags)
+    {
+        journal.putInt(4, FORMAT_VERSION);
+        journal.putLong(GENERATION_OFFSET, generation);
+        journal.putInt(FLAGS_OFFSET, flags);
+        journal.putInt(0, MAGIC);
+    }
+
+    private void grow(int minimumCapacity)
+    {
+        int index = (int) (generation & 1);
+        try
+        {
+            journal = journals[index] = map(index, Math.max(minimumCapacity, journal.capacity() * 2));
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("Unable to grow StateStack journal", e);
+        }
+    }
+
+    //==================================================================//
+    // Recovery
+    //==================================================================//
+
+    /**
+     * @return the journaled frames, bottom up. Leaves the journal ready to append to.
+     */
+    private List<StateStackFrame> recover()
+    {
+        List<StateStackFrame> frames = new ArrayList<>();
+        long checkpointGeneration = readCheckpoint(frames);
+
+        MappedByteBuffer newest = headerGeneration(journals[0]) >= headerGeneration(journals[1]) ? journals[0] : journals[1];
+        long newestGeneration = headerGeneration(newest);
+        if(newestGeneration < checkpointGeneration)
+        {
+            //nothing journaled since the checkpoint
+            startGeneration(checkpointGeneration);
+            writeHeader(FLAG_CHAINED);
+            return frames;
+        }
+
+        if(newestGeneration != checkpointGeneration)
+        {
+            if((newest.getInt(FLAGS_OFFSET) & FLAG_CHAINED) == 0)
+                clearRecovered(frames);
+            else
+            {
+                //checkpoint of the newest generation not written, rebuild it from the previous one
+                MappedByteBuffer previous = newest == journals[0] ? journals[1] : journals[0];
+                boolean previousChained = (previous.getInt(FLAGS_OFFSET) & FLAG_CHAINED) != 0;
+                if(headerGeneration(previous) != newestGeneration - 1 || (previousChained && checkpointGeneration != newestGeneration - 1))
+                {
+                    //killed part way through replacing the journaled stack
+                    clearRecovered(frames);
+                    startGeneration(newestGeneration + 1);
+                    writeHeader(0);
+                    return frames;
+                }
+                if(!previousChained)
+                    clearRecovered(frames);
+                replayJournal(previous, frames);
+                submitCheckpoint(newestGeneration, recordedFrames, frames.size());
+            }
+        }
+
+        replayJournal(newest, frames);
+        journal = newest;
+        generation = newestGeneration;
+        return frames;
+    }
+
+    private void clearRecovered(List<StateStackFrame> frames)
+    {
+        frames.clear();
+        recordedFrames = PersistentArray.empty();
+    }
+
+    /**
+     * Replays the records of the passed journal onto the passed frames, leaving the append position
+     * at its end
+     */
+    private void replayJournal(MappedByteBuffer journal, List<StateStackFrame> frames)
+    {
+        appendPosition = HEADER_SIZE;
+        recordCount = 0;
+        while(true)
+        {
+            if(appendPosition + 4 > journal.capacity())
+                throw new IllegalArgumentException("Malformed StateStack journal, no end marker");
+            int length = journal.getInt(appendPosition);
+            if(length == 0)
+                return;
+            if(length < 0 || appendPosition + 4 + length + 4 > journal.capacity())
+                throw new IllegalArgumentException("Malformed StateStack journal, bad record length "+length);
+
+            byte type = journal.get(appendPosition + 4);
+            byte[] payload = new byte[length - 1];
+            ByteBuffer payloadRegion = journal.duplicate();
+            payloadRegion.position(appendPosition + RECORD_HEADER_SIZE);
+            payloadRegion.get(payload);
+            replay(frames, type, payload);
+
+            appendPosition += 4 + length;
+            recordCount++;
+        }
+    }
+
+    private void replay(List<StateStackFrame> frames, byte type, byte[] payload)
+    {
+        switch(type)
+        {
+            case RECORD_TRUNCATE:
+            {
+                int size = readInt(payload, 0);
+                if(size < 0 || size > frames.size())
+                    throw new IllegalArgumentException("Malformed StateStack journal, bad truncate "+size);
+                for(int i = size; i < frames.size(); i++)
+                    recordedFrames = recordedFrames.set(i, null);
+                frames.subList(size, frames.size()).clear();
+                return;
+            }
+            case RECORD_PUSH:
+                recordedFrames = recordedFrames.set(frames.size(), payload);
+                frames.add(decodeFrame(payload));
+                return;
+            case RECORD_REPLACE:
+            {
+                int index = readInt(payload, 0);
+                if(index < 0 || index >= frames.size())
+                    throw new IllegalArgumentException("Malformed StateStack journal, bad replace index "+index);
+                byte[] encodedFrame = Arrays.copyOfRange(payload, 4, payload.length);
+                recordedFrames = recordedFrames.set(index, encodedFrame);
+                frames.set(index, decodeFrame(encodedFrame));
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Malformed StateStack journal, unknown record type "+type);
+        }
+    }
+
+    /**
+     * @return generation of the checkpoint, 0 (an empty stack) if there is none
+     */
+    private long readCheckpoint(List<StateStackFrame> frames)
+    {
+        File checkpointFile = new File(directory, CHECKPOINT_FILE_NAME);
+        if(!checkpointFile.exists())
+            return 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+            try
+            {
+                if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                    return 0;
+                long checkpointGeneration = in.readLong();
+                int size = in.readInt();
+                for(int i = 0; i < size; i++)
+                {
+                    byte[] encodedFrame = new byte[in.readInt()];
+                    in.readFully(encodedFrame);
+                    recordedFrames = recordedFrames.set(i, encodedFrame);
+                    frames.add(decodeFrame(encodedFrame));
+                }
+                return checkpointGeneration;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new IllegalArgumentException("Unable to read StateStack checkpoint", e);
+        }
+    }
+
+    /**
+     * @return generation of the checkpoint without reading its frames, 0 if there is none
+     */
+    private long readCheckpointGeneration()
+    {
+        File checkpointFile = new File(directory, CHECKPOINT_FILE_NAME);
+        if(!checkpointFile.exists())
+            return 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+            try
+            {
+                if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                    return 0;
+                return in.readLong();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new IllegalArgumentException("Unable to read StateStack checkpoint", e);
+        }
+    }
+
+    /**
+     * @return generation in the passed journals header, -1 if it has no valid header
+     */
+    private static long headerGeneration(MappedByteBuffer journal)
+    {
+        if(journal.getInt(0) != MAGIC || journal.getInt(4) != FORMAT_VERSION)
+            return -1;
+        return journal.getLong(GENERATION_OFFSET);
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private MappedByteBuffer map(int index, int capacity) throws IOException
+    {
+        return journalFiles[index].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private byte[] encodeFrame(StateStackFrame frame)
+    {
+        return codec.encode(StateStackSnapshot.empty().push(frame));
+    }
+
+    private StateStackFrame decodeFrame(byte[] encodedFrame)
+    {
+        List<StateStackFrame> decoded = codec.decodeFrames(encodedFrame);
+        if(decoded.size() != 1)
+            throw new IllegalArgumentException("Malformed StateStack journal, expected one frame");
+        return decoded.get(0);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset)
+    {
+        if(offset + 4 > bytes.length)
+            throw new IllegalArgumentException("Malformed StateStack journal, truncated record");
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * A checkpoint write on the checkpoint executor. Frames are already encoded and immutable, so
+     * nothing is shared with the mutating thread.
+     */
+    private final class CheckpointWrite implements Runnable
+    {
+        final long generation;
+        final PersistentArray<byte[]> frames;
+        final int size;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile IOException failure;
+
+        CheckpointWrite(long generation, PersistentArray<byte[]> frames, int size)
+        {
+            this.generation = generation;
+            this.frames = frames;
+            this.size = size;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                writeCheckpoint(generation, frames, size);
+            }
+            catch(IOException e)
+            {
+                failure = e;
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+    }
+
+    private static final class Record
+    {
+        final byte type;
+        final byte[] payload;
+
+        Record(byte type, byte[] payload)
+        {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable point-in-time view of the frames in a {@link StateStack}. Safe to read from any thread.
+ *
+ * Snapshots are persistent: a snapshot is a linked list of nodes from the top frame down, and
+ * snapshots derived from one another share all nodes below the point of change. Pushing or popping
+ * therefore only costs the index updates below, which lets a {@link StateStack} hand out a snapshot
+ * after every mutation for next to nothing (see {@link StateStack#getSnapshot()}).
+ *
+ * Type lookups are served by per type chains published with each snapshot: the top frame of each
+ * type is held in a {@link PersistentArray} keyed by type, and each chain entry links to the next
+ * frame of that type below, the bottom one and the count. So type lookups do not scan the stack,
+ * which keeps {@link ConcurrentStateStack} reads on par with the {@link StateStack} type index.
+ * Nodes are also held by stack index in a {@link PersistentArray}, so positional reads are
+ * O(log16 size) rather than a walk from the top.
+ *
+ * The stack operations here ({@link #push(StateStackFrame)}, {@link #popToNextVisibleFrame()} etc)
+ * are pure functions returning a new snapshot. They do not call any frame lifecycle methods or touch
+ * any {@link StateStack}, so navigation can be modelled (and tested) as plain state transitions. See
+ * {@link #apply(Operation)}.
+ *
+ * Note that the frames themselves are the live (mutable) frame instances.
+ */
+public final class StateStackSnapshot
+{
+    private static final Class<?>[] NO_TYPES = new Class<?>[0];
+    private static final StateStackSnapshot EMPTY = new StateStackSnapshot(null, NO_TYPES, PersistentArray.<TypeEntry>empty(), PersistentArray.<Node>empty());
+
+    /**
+     * @return a snapshot containing no frames
+     */
+    public static StateStackSnapshot empty()
+    {
+        return EMPTY;
+    }
+
+    //==================================================================//
+    // Fields
+    //==================================================================//
+
+    /**
+     * Top of the stack, null if empty
+     */
+    private final Node top;
+    private final Class<?>[] indexedTypes;
+    /**
+     * Top entry of each type chain, by {@link #exactTypeKey(FrameTypeDescriptor)} or
+     * {@link #indexedTypeKey(int)}
+     */
+    private final PersistentArray<TypeEntry> typeEntries;
+    /**
+     * Node at each stack index
+     */
+    private final PersistentArray<Node> nodes;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    private StateStackSnapshot(Node top, Class<?>[] indexedTypes, PersistentArray<TypeEntry> typeEntries, PersistentArray<Node> nodes)
+    {
+        this.top = top;
+        this.indexedTypes = indexedTypes;
+        this.typeEntries = typeEntries;
+        this.nodes = nodes;
+    }
+
+    //==================================================================//
+    // Frames
+    //==================================================================//
+
+    public int getSize()
+    {
+        return top == null ? 0 : top.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return top == null;
+    }
+
+    /**
+     * O(log16 size)
+     *
+     * @param index 0 is the bottom of the stack
+     */
+    public StateStackFrame getFrameAtIndex(int index)
+    {
+        return UndecodedStateStackFrame.resolve(nodeAtIndex(index).frame);
+    }
+
+    /**
+     * @return top frame (including {@link HiddenStateStackFrame} frames) or null if empty
+     */
+    public StateStackFrame getTopFrame()
+    {
+        return top == null ? null : UndecodedStateStackFrame.resolve(top.frame);
+    }
+
+    /**
+     * Searches the frames of the same class top down, comparing by identity. O(count of frames of
+     * that class).
+     *
+     * @return the stack index of the passed frame or -1 if not present
+     */
+    public int indexOf(StateStackFrame frame)
+    {
+        //undecoded frames report the descriptor of the class they stand in for, so share its chain
+        for(TypeEntry entry = typeEntries.get(exactTypeKey(frame.getTypeDescriptor())); entry != null; entry = entry.below)
+        {
+            StateStackFrame entryFrame = entry.node.frame;
+            if(entryFrame == frame || UndecodedStateStackFrame.resolveIfDecoded(entryFrame) == frame)
+                return entry.node.size - 1;
+        }
+        return -1;
+    }
+
+    //==================================================================//
+    // Visible frames
+    //==================================================================//
+
+    /**
+     * See {@link StateStack#getVisibleFrameCount()}
+     */
+    public int getVisibleFrameCount()
+    {
+        return top == null ? 0 : top.visibleCount;
+    }
+
+    /**
+     * See {@link StateStack#doesContainVisibleFrame()}
+     */
+    public boolean doesContainVisibleFrame()
+    {
+        return getVisibleFrameCount() > 0;
+    }
+
+    /**
+     * See {@link StateStack#getTopVisibleFrame()}. O(1).
+     */
+    public StateStackFrame getTopVisibleFrame()
+    {
+        return getVisibleFrameFromTopDown(1);
+    }
+
+    /**
+     * See {@link StateStack#forEachVisibleFrameFromTopDown(StateStack.VisibleFrameVisitor)}
+     */
+    public void forEachVisibleFrameFromTopDown(StateStack.VisibleFrameVisitor visitor)
+    {
+        for(Node node = top == null ? null : top.nearestVisible; node != null; node = node.below == null ? null : node.below.nearestVisible)
+        {
+            if(!visitor.visitFrame(UndecodedStateStackFrame.resolve(node.frame)))
+                return;
+        }
+    }
+
+    /**
+     * See {@link StateStack#getVisibleFrameFromTopDown(int)}. O(positionFromTop).
+     */
+    public StateStackFrame getVisibleFrameFromTopDown(int positionFromTop)
+    {
+        Node node = visibleNodeFromTopDown(positionFromTop);
+        return node == null ? null : UndecodedStateStackFrame.resolve(node.frame);
+    }
+
+    //==================================================================//
+    // Type lookups
+    //==================================================================//
+
+    /**
+     * See {@link StateStack#getFrameOfType(Class)}
+     */
+    public <T extends StateStackFrame> T getFrameOfType(Class<T> clazz)
+    {
+        return getBottomFrameOfType(clazz);
+    }
+
+    /**
+     * See {@link StateStack#getBottomFrameOfType(Class)}. O(1).
+     */
+    public <T> T getBottomFrameOfType(Class<T> clazz)
+    {
+        TypeEntry entry = topEntryOfType(clazz);
+        return entry == null ? null : clazz.cast(UndecodedStateStackFrame.resolve(entry.bottom.node.frame));
+    }
+
+    /**
+     * See {@link StateStack#getTopFrameOfType(Class)}. O(1).
+     */
+    public <T> T getTopFrameOfType(Class<T> clazz)
+    {
+        TypeEntry entry = topEntryOfType(clazz);
+        return entry == null ? null : clazz.cast(UndecodedStateStackFrame.resolve(entry.node.frame));
+    }
+
+    /**
+     * See {@link StateStack#getFrameCountOfType(Class)}. O(1).
+     */
+    public int getFrameCountOfType(Class<?> clazz)
+    {
+        TypeEntry entry = topEntryOfType(clazz);
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * See {@link StateStack#getFramesOfType(Class)}. O(count of matching frames).
+     */
+    public <T> List<T> getFramesOfType(Class<T> clazz)
+    {
+        TypeEntry entry = topEntryOfType(clazz);
+        if(entry == null)
+            return Collections.emptyList();
+        Object[] matching = new Object[entry.count];
+        for(; entry != null; entry = entry.below)
+            matching[entry.count - 1] = clazz.cast(UndecodedStateStackFrame.resolve(entry.node.frame));
+        @SuppressWarnings("unchecked")
+        List<T> frames = (List<T>) Arrays.asList(matching);
+        return Collections.unmodifiableList(frames);
+    }
+
+    //==================================================================//
+    // Pure stack operations
+    //==================================================================//
+
+    /**
+     * A navigation step expressed as a pure function of a snapshot
+     */
+    public interface Operation
+    {
+        StateStackSnapshot applyTo(StateStackSnapshot snapshot);
+    }
+
+    /**
+     * @return the result of the passed operation on this snapshot
+     */
+    public StateStackSnapshot apply(Operation operation)
+    {
+        return operation.applyTo(this);
+    }
+
+    /**
+     * O(log16 size)
+     */
+    public StateStackSnapshot push(StateStackFrame frame)
+    {
+        Node node = new Node(frame, top);
+        return new StateStackSnapshot(node, indexedTypes, pushTypeEntries(typeEntries, node), nodes.set(node.size - 1, node));
+    }
+
+    /**
+     * Removes the top frame. O(log16 size).
+     *
+     * @throws IllegalStateException if empty
+     */
+    public StateStackSnapshot pop()
+    {
+        if(top == null)
+            throw new IllegalStateException("Cannot pop an empty snapshot");
+        return new StateStackSnapshot(top.below, indexedTypes, popTypeEntries(typeEntries, top), nodes.set(top.size - 1, null));
+    }
+
+    /**
+     * @return snapshot containing only the frames below the passed index. O(size - index).
+     */
+    public StateStackSnapshot truncate(int index)
+    {
+        if(index < 0)
+            throw new IndexOutOfBoundsException("index: " + index);
+        Node node = top;
+        PersistentArray<TypeEntry> entries = typeEntries;
+        PersistentArray<Node> nodesByIndex = nodes;
+        while(node != null && node.size > index)
+        {
+            entries = popTypeEntries(entries, node);
+            nodesByIndex = nodesByIndex.set(node.size - 1, null); //don't hold on to popped frames
+            node = node.below;
+        }
+        return node == top ? this : new StateStackSnapshot(node, indexedTypes, entries, nodesByIndex);
+    }
+
+    /**
+     * See {@link StateStack#popToNextVisibleFrame()}
+     */
+    public StateStackSnapshot popToNextVisibleFrame()
+    {
+        Node nextVisible = visibleNodeFromTopDown(2);
+        return truncate(nextVisible == null ? 0 : nextVisible.size);
+    }
+
+    /**
+     * See {@link StateStack#popAtFrameInstance(StateStackFrame, StateStack.PopType, boolean)}
+     */
+    public StateStackSnapshot popAtFrameInstance(StateStackFrame frame, StateStack.PopType popType)
+    {
+        int index = indexOf(frame);
+        if(index == -1)
+            throw new IllegalStateException("Attempted to pop snapshot at "+ frame.getClass().getCanonicalName()+" instance but was not found");
+        return truncate(popType == StateStack.PopType.INCLUSIVE ? index : index + 1);
+    }
+
+    /**
+     * See {@link StateStack#popAtFrameType(Class, StateStack.PopType, boolean)}
+     */
+    public StateStackSnapshot popAtFrameType(Class<?> clazz, StateStack.PopType popType)
+    {
+        TypeEntry entry = topEntryOfType(clazz);
+        if(entry == null)
+            throw new IllegalStateException("Attempted to pop snapshot at "+clazz.getCanonicalName()+" but was not found");
+        int index = entry.node.size - 1;
+        return truncate(popType == StateStack.PopType.INCLUSIVE ? index : index + 1);
+    }
+
+    /**
+     * See {@link StateStack#removeFrame(StateStackFrame)}. Frames below the removed one are shared.
+     */
+    public StateStackSnapshot remove(StateStackFrame frame)
+    {
+        int index = indexOf(frame);
+        if(index == -1)
+            throw new IllegalStateException(frame.getClass().getName()+ " does not exist in the snapshot");
+        return removeAt(index);
+    }
+
+    /**
+     * O(size - index)
+     */
+    StateStackSnapshot removeAt(int index)
+    {
+        StateStackFrame[] frames = framesFrom(index);
+        return truncate(index).pushAll(frames, 1);
+    }
+
+    /**
+     * @return this snapshot with the frames from the passed index up replaced by those in the passed
+     * array, which must be the same size as this snapshot. O(size - index).
+     */
+    StateStackSnapshot replaceFrom(int index, FrameArray frames)
+    {
+        StateStackSnapshot replaced = truncate(index);
+        for(int i = index; i < frames.size(); i++)
+            replaced = replaced.push(frames.get(i));
+        return replaced;
+    }
+
+    /**
+     * Compares the visible frames of both snapshots top down, stopping as soon as the two share a
+     * node (as everything below it is then the same). So O(1) when nothing visible changed.
+     *
+     * @return true if both contain the same visible frames in the same order
+     */
+    boolean hasSameVisibleFramesAs(StateStackSnapshot other)
+    {
+        if(getVisibleFrameCount() != other.getVisibleFrameCount())
+            return false;
+        Node node = top == null ? null : top.nearestVisible;
+        Node otherNode = other.top == null ? null : other.top.nearestVisible;
+        while(node != otherNode)
+        {
+            if(node.frame != otherNode.frame)
+                return false;
+            node = node.below == null ? null : node.below.nearestVisible;
+            otherNode = otherNode.below == null ? null : otherNode.below.nearestVisible;
+        }
+        return true;
+    }
+
+    /**
+     * @return count of frames, from the bottom, that this and the passed snapshot have in common.
+     * Stops at the first shared node, so is cheap for snapshots derived from one another.
+     */
+    int getSharedBaseSize(StateStackSnapshot other)
+    {
+        Node node = top;
+        Node otherNode = other.top;
+        while(sizeOf(node) > sizeOf(otherNode))
+            node = node.below;
+        while(sizeOf(otherNode) > sizeOf(node))
+            otherNode = otherNode.below;
+
+        int sharedSize = sizeOf(node);
+        while(node != otherNode)
+        {
+            if(node.frame != otherNode.frame)
+                sharedSize = node.size - 1;
+            node = node.below;
+            otherNode = otherNode.below;
+        }
+        return sharedSize;
+    }
+
+    private static int sizeOf(Node node)
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * @return all frames, bottom up. Undecoded frames are not resolved.
+     */
+    StateStackFrame[] toArray()
+    {
+        StateStackFrame[] frames = new StateStackFrame[getSize()];
+        for(Node node = top; node != null; node = node.below)
+            frames[node.size - 1] = node.frame;
+        return frames;
+    }
+
+    /**
+     * @param indexedTypes see {@link StateStack#registerIndexedType(Class)}
+     */
+    StateStackSnapshot withIndexedTypes(Class<?>[] indexedTypes)
+    {
+        if(Arrays.equals(indexedTypes, this.indexedTypes))
+            return this;
+        //the type chains differ, so rebuild
+        return new StateStackSnapshot(null, indexedTypes, PersistentArray.<TypeEntry>empty(), PersistentArray.<Node>empty()).pushAll(toArray(), 0);
+    }
+
+    //==================================================================//
+    // Private
+    //==================================================================//
+
+    private Node nodeAtIndex(int index)
+    {
+        if(index < 0 || index >= getSize())
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + getSize());
+        return nodes.get(index);
+    }
+
+    private Node visibleNodeFromTopDown(int positionFromTop)
+    {
+        if(positionFromTop < 1 || positionFromTop > getVisibleFrameCount())
+            return null;
+        Node node = top.nearestVisible;
+        for(int i = 1; i < positionFromTop; i++)
+            node = node.below.nearestVisible;
+        return node;
+    }
+
+    /**
+     * @return frames from the passed index to the top, bottom up. Undecoded frames are not resolved.
+     */
+    private StateStackFrame[] framesFrom(int index)
+    {
+        Node bottom = nodeAtIndex(index);
+        StateStackFrame[] frames = new StateStackFrame[top.size - bottom.size + 1];
+        for(Node node = top; node != bottom.below; node = node.below)
+            frames[node.size - bottom.size] = node.frame;
+        return frames;
+    }
+
+    /**
+     * @return this snapshot with the passed frames, from the passed offset, pushed bottom up
+     */
+    private StateStackSnapshot pushAll(StateStackFrame[] frames, int offset)
+    {
+        Node node = top;
+        PersistentArray<TypeEntry> entries = typeEntries;
+        PersistentArray<Node> nodesByIndex = nodes;
+        for(int i = offset; i < frames.length; i++)
+        {
+            node = new Node(frames[i], node);
+            entries = pushTypeEntries(entries, node);
+            nodesByIndex = nodesByIndex.set(node.size - 1, node);
+        }
+        return new StateStackSnapshot(node, indexedTypes, entries, nodesByIndex);
+    }
+
+    //==================================================================//
+    // Type chains
+    //==================================================================//
+
+    /**
+     * A frame is chained under its exact class, and under every registered type it is assignable to,
+     * see {@link StateStack#registerIndexedType(Class)}
+     */
+    private static int exactTypeKey(FrameTypeDescriptor descriptor)
+    {
+        return descriptor.getTypeId() * 2;
+    }
+
+    private static int indexedTypeKey(int indexedTypeIndex)
+    {
+        return indexedTypeIndex * 2 + 1;
+    }
+
+    /**
+     * @return the top entry of the chain for the passed type. The chain of a registered type holds all
+     * frames assignable to it, otherwise frames of exactly the passed class.
+     */
+    private TypeEntry topEntryOfType(Class<?> clazz)
+    {
+        for(int i = 0; i < indexedTypes.length; i++)
+        {
+            if(indexedTypes[i] == clazz)
+                return typeEntries.get(indexedTypeKey(i));
+        }
+        //a class without a descriptor has never been pushed
+        FrameTypeDescriptor descriptor = FrameTypeDescriptor.peek(clazz);
+        return descriptor == null ? null : typeEntries.get(exactTypeKey(descriptor));
+    }
+
+    /**
+     * @param node just pushed
+     */
+    private PersistentArray<TypeEntry> pushTypeEntries(PersistentArray<TypeEntry> entries, Node node)
+    {
+        FrameTypeDescriptor descriptor = node.frame.getTypeDescriptor();
+        int key = exactTypeKey(descriptor);
+        entries = entries.set(key, new TypeEntry(node, entries.get(key)));
+        for(int i = 0; i < indexedTypes.length; i++)
+        {
+            if(indexedTypes[i].isAssignableFrom(descriptor.getFrameClass()))
+            {
+                key = indexedTypeKey(i);
+                entries = entries.set(key, new TypeEntry(node, entries.get(key)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param node the top node, being popped
+     */
+    private PersistentArray<TypeEntry> popTypeEntries(PersistentArray<TypeEntry> entries, Node node)
+    {
+        int key = exactTypeKey(node.frame.getTypeDescriptor());
+        entries = entries.set(key, entries.get(key).below);
+        for(int i = 0; i < indexedTypes.length; i++)
+        {
+            key = indexedTypeKey(i);
+            TypeEntry entry = entries.get(key);
+            if(entry != null && entry.node == node)
+                entries = entries.set(key, entry.below);
+        }
+        return entries;
+    }
+
+    //==================================================================//
+    // Node
+    //==================================================================//
+
+    private static final class Node
+    {
+        final StateStackFrame frame;
+        final Node below;
+        /**
+         * Count of frames at or below this node, so this nodes stack index is size - 1
+         */
+        final int size;
+        /**
+         * Count of visible frames at or below this node
+         */
+        final int visibleCount;
+        /**
+         * Top-most visible node at or below this one, null if none
+         */
+        final Node nearestVisible;
+
+        Node(StateStackFrame frame, Node below)
+        {
+            this.frame = frame;
+            this.below = below;
+            boolean visible = !frame.getTypeDescriptor().isHidden();
+            this.size = below == null ? 1 : below.size + 1;
+            this.visibleCount = (below == null ? 0 : below.visibleCount) + (visible ? 1 : 0);
+            this.nearestVisible = visible ? this : (below == null ? null : below.nearestVisible);
+        }
+    }
+
+    /**
+     * Entry of a type chain, see {@link #topEntryOfType(Class)}
+     */
+    private static final class TypeEntry
+    {
+        final Node node;
+        /**
+         * Next entry down the chain, null if none
+         */
+        final TypeEntry below;
+        /**
+         * Bottom entry of the chain, this entry if none below
+         */
+        final TypeEntry bottom;
+        /**
+         * Count of entries at or below this one
+         */
+        final int count;
+
+        TypeEntry(Node node, TypeEntry below)
+        {
+            this.node = node;
+            this.below = below;
+            this.bottom = below == null ? this : below.bottom;
+            this.count = below == null ? 1 : below.count + 1;
+        }
+    }
+}
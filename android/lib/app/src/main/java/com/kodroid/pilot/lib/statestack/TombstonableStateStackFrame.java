@@ -0,0 +1,31 @@
+package com.kodroid.pilot.lib.statestack;
+
+/**
+ * Implemented by {@link StateStackFrame}s that can be rebuilt from a few arguments (i.e. the id of
+ * the item a frame shows) so can be swapped for a tombstone once deep enough in a stack with a max
+ * visible depth, see {@link StateStack#setMaxVisibleDepth(int)}.
+ *
+ * A tombstone holds only the frame class and the arguments written by
+ * {@link #saveArguments(FrameStateWriter)}. When it is next returned from the stack (i.e. navigated
+ * back to) a new instance is created via its no-arg constructor (any visibility) and handed the
+ * arguments via {@link #recreate(FrameStateReader)}. Any other state is lost.
+ *
+ * Neither {@link StateStackFrame#popped()} nor {@link StateStackFrame#pushed()} are called on
+ * tombstoning or recreating. {@link HiddenStateStackFrame}s are never tombstoned.
+ */
+public interface TombstonableStateStackFrame
+{
+    /**
+     * Write the minimal arguments needed to recreate this frame. Keep these small, ids rather than
+     * loaded content.
+     */
+    void saveArguments(FrameStateWriter out);
+
+    /**
+     * Called on a new instance, before it is returned from the stack. This can be on a background
+     * reader thread of a {@link ConcurrentStateStack}, so must not touch the stack or the main thread.
+     *
+     * @param arguments as written by {@link #saveArguments(FrameStateWriter)}
+     */
+    void recreate(FrameStateReader arguments);
+}
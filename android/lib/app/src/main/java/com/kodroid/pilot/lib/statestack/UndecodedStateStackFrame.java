@@ -0,0 +1,180 @@
+package com.kodroid.pilot.lib.statestack;
+
+import java.util.Map;
+
+/**
+ * Stands in for a frame restored by {@link StateStackCodec} with lazy decoding enabled, until that
+ * frame is first accessed. Reports the {@link FrameTypeDescriptor} of the real frame class, so can
+ * be indexed and counted as visible / hidden without decoding.
+ *
+ * Also used for hibernated frames, and for tombstones (see {@link TombstonableStateStackFrame}) which
+ * are recreated from their arguments rather than restored.
+ *
+ * Never handed out. {@link StateStack} and {@link StateStackSnapshot} accessors return the decoded
+ * frame via {@link #resolve(StateStackFrame)}, and compare by identity via
+ * {@link #resolveIfDecoded(StateStackFrame)}.
+ *
+ * Decoding happens on whichever thread first reads the frame, which can be a background reader of a
+ * {@link ConcurrentStateStack} snapshot. Decoding and re-parenting share this instances lock, so a
+ * frame popped while it is being decoded is never published still parented.
+ */
+final class UndecodedStateStackFrame extends StateStackFrame
+{
+    private final int stateVersion;
+    private final boolean tombstone;
+
+    /**
+     * Encoded state, cleared once decoded. Values for {@link CodableStateStackFrame}s (or the
+     * arguments of a tombstone), otherwise Java serialized bytes.
+     */
+    private Map<String, Object> values;
+    private byte[] serialized;
+
+    private volatile StateStackFrame decoded;
+
+    //==================================================================//
+    // Constructor
+    //==================================================================//
+
+    UndecodedStateStackFrame(Class<? extends StateStackFrame> frameClass, int stateVersion, Map<String, Object> values)
+    {
+        this(frameClass, false, stateVersion, values, null);
+    }
+
+    UndecodedStateStackFrame(Class<? extends StateStackFrame> frameClass, byte[] serialized)
+    {
+        this(frameClass, false, 0, null, serialized);
+    }
+
+    /**
+     * @param arguments as written by {@link TombstonableStateStackFrame#saveArguments(FrameStateWriter)}
+     */
+    static UndecodedStateStackFrame tombstone(Class<? extends StateStackFrame> frameClass, Map<String, Object> arguments)
+    {
+        return new UndecodedStateStackFrame(frameClass, true, 0, arguments, null);
+    }
+
+    private UndecodedStateStackFrame(Class<? extends StateStackFrame> frameClass, boolean tombstone, int stateVersion, Map<String, Object> values, byte[] serialized)
+    {
+        setTypeDescriptor(FrameTypeDescriptor.forClass(frameClass));
+        this.tombstone = tombstone;
+        this.stateVersion = stateVersion;
+        this.values = values;
+        this.serialized = serialized;
+    }
+
+    //==================================================================//
+    // Resolving
+    //==================================================================//
+
+    /**
+     * @return the passed frame, or the decoded frame if the passed frame is undecoded. Decodes if
+     * needed. Null if passed null.
+     */
+    static StateStackFrame resolve(StateStackFrame frame)
+    {
+        return frame instanceof UndecodedStateStackFrame ? ((UndecodedStateStackFrame) frame).decode() : frame;
+    }
+
+    /**
+     * @return as {@link #resolve(StateStackFrame)} but without decoding, for identity comparisons.
+     * A caller can only hold a reference to a frame that has been decoded.
+     */
+    static StateStackFrame resolveIfDecoded(StateStackFrame frame)
+    {
+        if(!(frame instanceof UndecodedStateStackFrame))
+            return frame;
+        StateStackFrame decodedFrame = ((UndecodedStateStackFrame) frame).decoded;
+        return decodedFrame == null ? frame : decodedFrame;
+    }
+
+    synchronized StateStackFrame decode()
+    {
+        if(decoded == null)
+        {
+            Class<? extends StateStackFrame> frameClass = getTypeDescriptor().getFrameClass();
+            StateStackFrame frame;
+            if(tombstone)
+                frame = StateStackCodec.recreate(frameClass, values);
+            else if(values != null)
+                frame = StateStackCodec.instantiate(frameClass, stateVersion, values);
+            else
+                frame = StateStackCodec.deserialize(frameClass, serialized);
+            frame.setParentStack(getParentStack());
+            values = null;
+            serialized = null;
+            decoded = frame;
+        }
+        return decoded;
+    }
+
+    //==================================================================//
+    // Encoded state (callers must hold this frames lock and check isDecoded() first)
+    //==================================================================//
+
+    boolean isDecoded()
+    {
+        return decoded != null;
+    }
+
+    boolean isTombstone()
+    {
+        return tombstone;
+    }
+
+    /**
+     * @return true if {@link #getValues()} holds state, false if {@link #getSerialized()} does.
+     * Always true for a tombstone.
+     */
+    boolean isCodable()
+    {
+        return values != null;
+    }
+
+    int getStateVersion()
+    {
+        return stateVersion;
+    }
+
+    Map<String, Object> getValues()
+    {
+        return values;
+    }
+
+    byte[] getSerialized()
+    {
+        return serialized;
+    }
+
+    //==================================================================//
+    // Lifecycle
+    //==================================================================//
+
+    @Override
+    synchronized void setParentStack(StateStack parentStack)
+    {
+        super.setParentStack(parentStack);
+        StateStackFrame decodedFrame = decoded;
+        if(decodedFrame != null)
+            decodedFrame.setParentStack(parentStack);
+    }
+
+    /**
+     * Only decodes if the real frame class needs the callback
+     */
+    @Override
+    public void popped()
+    {
+        if(decoded != null || getTypeDescriptor().overridesPopped())
+            decode().popped();
+    }
+
+    @Override
+    public String toString()
+    {
+        StateStackFrame decodedFrame = decoded;
+        if(decodedFrame != null)
+            return decodedFrame.toString();
+        return (tombstone ? "Tombstone " : "Undecoded ")+getTypeDescriptor().getFrameClass().getName();
+    }
+}
@@ -0,0 +1,255 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.view.View;
+
+import com.kodroid.pilot.lib.android.stateFrameBacking.StateStackFrameBackedUI;
+import com.kodroid.pilot.lib.statestack.StateStack;
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+import com.kodroid.pilot.lib.statestack.StateStackTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class FrameViewCacheTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    private final StateStack stateStack = new StateStack();
+    private final Set<View> attachedViews = new HashSet<>();
+
+    @Test
+    public void takeRetainedView_retainedFrame_shouldReturnSameViewAndCountHit()
+    {
+        FrameViewCache viewCache = createViewCache(3, 2);
+        StateStackFrame frame = pushFrame();
+        View view = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(frame, view);
+
+        Assert.assertSame(view, viewCache.takeRetainedView(frame));
+        Assert.assertNull(viewCache.takeRetainedView(frame));
+        Assert.assertEquals(1, viewCache.getRetainedHitCount());
+        Assert.assertEquals(0, viewCache.getMissCount());
+    }
+
+    @Test
+    public void takeRetainedView_viewStillAttached_shouldReturnNull()
+    {
+        FrameViewCache viewCache = createViewCache(3, 2);
+        StateStackFrame frame = pushFrame();
+        View view = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(frame, view);
+        attachedViews.add(view);
+
+        Assert.assertNull(viewCache.takeRetainedView(frame));
+        Assert.assertEquals(0, viewCache.getRetainedHitCount());
+    }
+
+    @Test
+    public void takeRetainedView_viewAttachedThenDetached_shouldKeepAndThenReturnView()
+    {
+        FrameViewCache viewCache = createViewCache(3, 2);
+        StateStackFrame frame = pushFrame();
+        View view = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(frame, view);
+        attachedViews.add(view);
+        viewCache.takeRetainedView(frame);
+        attachedViews.remove(view);
+
+        Assert.assertSame(view, viewCache.takeRetainedView(frame));
+        Assert.assertEquals(1, viewCache.getRetainedHitCount());
+    }
+
+    @Test
+    public void takeRetainedView_equalFrames_shouldReturnViewOfSameInstance()
+    {
+        FrameViewCache viewCache = createViewCache(3, 2);
+        StateStackFrame frame1 = pushFrame(new AlwaysEqualFrame());
+        StateStackFrame frame2 = pushFrame(new AlwaysEqualFrame());
+        View view1 = Mockito.mock(RecyclableView.class);
+        View view2 = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(frame1, view1);
+        viewCache.retainView(frame2, view2);
+
+        Assert.assertSame(view1, viewCache.takeRetainedView(frame1));
+        Assert.assertSame(view2, viewCache.takeRetainedView(frame2));
+    }
+
+    @Test
+    public void retainView_overMaxRetained_shouldRecycleLeastRecentlyShown()
+    {
+        FrameViewCache viewCache = createViewCache(2, 2);
+        RecyclableView eldestView = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(pushFrame(), eldestView);
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+
+        Assert.assertEquals(2, viewCache.getRetainedViewCount());
+        Mockito.verify(eldestView).resetForReuse();
+        Assert.assertSame(eldestView, viewCache.takeRecycledView(eldestView.getClass()));
+        Assert.assertEquals(1, viewCache.getRecycledHitCount());
+    }
+
+    @Test
+    public void retainView_frameOffStack_shouldRecycleStraightAway()
+    {
+        FrameViewCache viewCache = createViewCache(2, 2);
+        StateStackFrame frame = pushFrame();
+        pushFrame();
+        stateStack.popToNextVisibleFrame();
+        stateStack.popToNextVisibleFrame();
+        RecyclableView view = Mockito.mock(RecyclableView.class);
+
+        viewCache.retainView(frame, view);
+
+        Assert.assertEquals(0, viewCache.getRetainedViewCount());
+        Assert.assertSame(view, viewCache.takeRecycledView(view.getClass()));
+    }
+
+    @Test
+    public void retainView_previouslyRetainedFramePopped_shouldRecycleItsView()
+    {
+        FrameViewCache viewCache = createViewCache(3, 2);
+        pushFrame();
+        StateStackFrame poppedFrame = pushFrame();
+        RecyclableView poppedView = Mockito.mock(RecyclableView.class);
+        viewCache.retainView(poppedFrame, poppedView);
+        stateStack.popToNextVisibleFrame();
+
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+
+        Assert.assertEquals(1, viewCache.getRetainedViewCount());
+        Assert.assertEquals(1, viewCache.getRecycledViewCount());
+        Assert.assertNull(viewCache.takeRetainedView(poppedFrame));
+    }
+
+    @Test
+    public void takeRecycledView_otherViewClass_shouldReturnNullWithoutCountingMiss()
+    {
+        FrameViewCache viewCache = createViewCache(0, 2);
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+        OtherRecyclableView otherView = Mockito.mock(OtherRecyclableView.class);
+
+        Assert.assertNull(viewCache.takeRecycledView(otherView.getClass()));
+        Assert.assertEquals(0, viewCache.getMissCount()); //the renderer may still find a prewarmed view
+        Assert.assertEquals(1, viewCache.getRecycledViewCount());
+    }
+
+    @Test
+    public void resetCounts_prewarmedHitAndMissCounted_shouldZeroCounts()
+    {
+        FrameViewCache viewCache = createViewCache(0, 2);
+        viewCache.countPrewarmedHit();
+        viewCache.countMiss();
+        Assert.assertEquals(1, viewCache.getPrewarmedHitCount());
+        Assert.assertEquals(1, viewCache.getMissCount());
+
+        viewCache.resetCounts();
+
+        Assert.assertEquals(0, viewCache.getPrewarmedHitCount());
+        Assert.assertEquals(0, viewCache.getMissCount());
+    }
+
+    @Test
+    public void retainView_notRecyclableViewEvicted_shouldDrop()
+    {
+        FrameViewCache viewCache = createViewCache(0, 2);
+        View view = Mockito.mock(View.class);
+
+        viewCache.retainView(pushFrame(), view);
+
+        Assert.assertEquals(0, viewCache.getRecycledViewCount());
+        Assert.assertNull(viewCache.takeRecycledView(view.getClass()));
+    }
+
+    @Test
+    public void retainView_poolFull_shouldDropExtraViews()
+    {
+        FrameViewCache viewCache = createViewCache(0, 1);
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+
+        Assert.assertEquals(1, viewCache.getRecycledViewCount());
+    }
+
+    @Test
+    public void evictAll_retainedAndRecycled_shouldDropAll()
+    {
+        FrameViewCache viewCache = createViewCache(1, 2);
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+        viewCache.retainView(pushFrame(), Mockito.mock(RecyclableView.class));
+
+        viewCache.evictAll();
+
+        Assert.assertEquals(0, viewCache.getRetainedViewCount());
+        Assert.assertEquals(0, viewCache.getRecycledViewCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_negativeSize_shouldThrow()
+    {
+        new FrameViewCache(-1, 0);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    /**
+     * View#getParent() is final so can not be mocked
+     */
+    private FrameViewCache createViewCache(int maxRetainedViews, int maxRecycledViewsPerClass)
+    {
+        return new FrameViewCache(maxRetainedViews, maxRecycledViewsPerClass)
+        {
+            @Override
+            boolean isAttached(View view)
+            {
+                return attachedViews.contains(view);
+            }
+        };
+    }
+
+    private StateStackFrame pushFrame()
+    {
+        return pushFrame(new StateStackTest.TestUIStackFrame1());
+    }
+
+    private StateStackFrame pushFrame(StateStackFrame frame)
+    {
+        stateStack.pushFrame(frame);
+        return frame;
+    }
+
+    static abstract class RecyclableView extends View implements StateStackFrameBackedUI<StateStackFrame>, StateStackFrameBackedUI.Recyclable
+    {
+        RecyclableView()
+        {
+            super(null);
+        }
+    }
+
+    static abstract class OtherRecyclableView extends RecyclableView
+    {}
+
+    static class AlwaysEqualFrame extends StateStackTest.TestUIStackFrame1
+    {
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof AlwaysEqualFrame;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+    }
+}
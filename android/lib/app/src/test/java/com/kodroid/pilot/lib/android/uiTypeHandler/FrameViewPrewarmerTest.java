@@ -0,0 +1,196 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.content.Context;
+import android.os.MessageQueue;
+import android.view.View;
+
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+import com.kodroid.pilot.lib.statestack.StateStackTest;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class FrameViewPrewarmerTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    private final Context context = Mockito.mock(Context.class);
+    private final List<Class<? extends StateStackFrame>> predictedFrames = new ArrayList<>();
+    private final NextFramePredictor predictor = new NextFramePredictor()
+    {
+        @Override
+        public void predictNextFrames(StateStackFrame topFrame, List<Class<? extends StateStackFrame>> likelyNextFrames)
+        {
+            likelyNextFrames.addAll(predictedFrames);
+        }
+    };
+
+    private StateStackFrameSetRendererView.ViewCreator viewCreator;
+    private int scheduledIdleCount;
+
+    @Before
+    public void setUp()
+    {
+        FrameViewRegistry registry = Mockito.mock(FrameViewRegistry.class);
+        Mockito.when(registry.getTypeId(Mockito.<Class<? extends StateStackFrame>>any())).thenReturn(-1);
+        Mockito.when(registry.getTypeId(StateStackTest.TestUIStackFrame1.class)).thenReturn(0);
+        Mockito.when(registry.getTypeId(StateStackTest.TestUIStackFrame2.class)).thenReturn(1);
+        Mockito.<Class<? extends View>>when(registry.getViewClass(Mockito.anyInt())).thenReturn(View.class);
+        Mockito.when(registry.createView(Mockito.anyInt(), Mockito.eq(context))).thenAnswer(new Answer<View>()
+        {
+            @Override
+            public View answer(InvocationOnMock invocation)
+            {
+                return Mockito.mock(View.class);
+            }
+        });
+        viewCreator = new StateStackFrameSetRendererView.ViewCreator(registry);
+    }
+
+    @Test
+    public void frameShown_predictedFrames_shouldPrewarmOnIdleAndHandOver()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(2);
+        predict(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestUIStackFrame2.class);
+
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame3(), viewCreator, context);
+        Assert.assertEquals(1, scheduledIdleCount);
+        Assert.assertEquals(0, prewarmer.getPrewarmedViewCount());
+        Assert.assertTrue(prewarmer.prewarmNext());
+        Assert.assertFalse(prewarmer.prewarmNext());
+
+        Assert.assertNotNull(prewarmer.takePrewarmedView(new StateStackTest.TestUIStackFrame2()));
+        Assert.assertNull(prewarmer.takePrewarmedView(new StateStackTest.TestUIStackFrame2()));
+        Assert.assertEquals(1, prewarmer.getHitCount());
+        Assert.assertEquals(2, prewarmer.getPrewarmedCount());
+    }
+
+    @Test
+    public void frameShown_frameDeclaresNextFrames_shouldPrewarmDeclaredFrames()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(2);
+
+        prewarmer.frameShown(new PredictingFrame(), viewCreator, context);
+        prewarmAll(prewarmer);
+
+        Assert.assertNotNull(prewarmer.takePrewarmedView(new StateStackTest.TestUIStackFrame1()));
+    }
+
+    @Test
+    public void frameShown_frameNoLongerLikely_shouldDropItsView()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(2);
+        predict(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestUIStackFrame2.class);
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame3(), viewCreator, context);
+        prewarmAll(prewarmer);
+
+        predict(StateStackTest.TestUIStackFrame2.class);
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame3(), viewCreator, context);
+
+        Assert.assertEquals(1, prewarmer.getPrewarmedViewCount());
+        Assert.assertEquals(1, prewarmer.getDroppedCount());
+        Assert.assertFalse(prewarmer.prewarmNext()); //still likely so kept, nothing to build
+        Assert.assertEquals(2, prewarmer.getPrewarmedCount());
+    }
+
+    @Test
+    public void frameShown_morePredictedThanMax_shouldOnlyPrewarmMostLikely()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(1);
+        predict(StateStackTest.TestUIStackFrame2.class, StateStackTest.TestUIStackFrame1.class);
+
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame3(), viewCreator, context);
+        prewarmAll(prewarmer);
+
+        Assert.assertEquals(1, prewarmer.getPrewarmedViewCount());
+        Assert.assertNotNull(prewarmer.takePrewarmedView(new StateStackTest.TestUIStackFrame2()));
+    }
+
+    @Test
+    public void frameShown_unmappedPredictedFrame_shouldSkip()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(1);
+        predict(StateStackTest.TestUIStackFrame3.class, StateStackTest.TestUIStackFrame1.class);
+
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame2(), viewCreator, context);
+        prewarmAll(prewarmer);
+
+        Assert.assertNotNull(prewarmer.takePrewarmedView(new StateStackTest.TestUIStackFrame1()));
+    }
+
+    @Test
+    public void evictAll_prewarmedAndPending_shouldDropAll()
+    {
+        FrameViewPrewarmer prewarmer = createPrewarmer(2);
+        predict(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestUIStackFrame2.class);
+        prewarmer.frameShown(new StateStackTest.TestUIStackFrame3(), viewCreator, context);
+        prewarmer.prewarmNext();
+
+        prewarmer.evictAll();
+
+        Assert.assertFalse(prewarmer.prewarmNext());
+        Assert.assertEquals(0, prewarmer.getPrewarmedViewCount());
+        Assert.assertEquals(1, prewarmer.getDroppedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_noViews_shouldThrow()
+    {
+        new FrameViewPrewarmer(0, null);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    /**
+     * Idle callbacks are counted instead of scheduled, tests build views via prewarmNext()
+     */
+    private FrameViewPrewarmer createPrewarmer(int maxPrewarmedViews)
+    {
+        return new FrameViewPrewarmer(maxPrewarmedViews, predictor)
+        {
+            @Override
+            void scheduleIdle(MessageQueue.IdleHandler idleHandler)
+            {
+                scheduledIdleCount++;
+            }
+        };
+    }
+
+    @SafeVarargs
+    private final void predict(Class<? extends StateStackFrame>... frameClasses)
+    {
+        predictedFrames.clear();
+        predictedFrames.addAll(Arrays.asList(frameClasses));
+    }
+
+    private static void prewarmAll(FrameViewPrewarmer prewarmer)
+    {
+        while(prewarmer.prewarmNext());
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    public static class PredictingFrame extends StateStackFrame implements NextFramePredictor
+    {
+        @Override
+        public void predictNextFrames(StateStackFrame topFrame, List<Class<? extends StateStackFrame>> likelyNextFrames)
+        {
+            likelyNextFrames.add(StateStackTest.TestUIStackFrame1.class);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.kodroid.pilot.lib.android.uiTypeHandler;
+
+import android.content.Context;
+import android.view.View;
+
+import com.kodroid.pilot.lib.android.stateFrameBacking.StateStackFrameBackedUI;
+import com.kodroid.pilot.lib.statestack.StateStackFrame;
+import com.kodroid.pilot.lib.statestack.StateStackTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(JUnit4.class)
+public class StateStackFrameSetRendererViewTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void isFrameSupported_mappings_shouldOnlySupportMappedFrames()
+    {
+        StateStackFrameSetRendererView renderer = createRenderer(new StateStackFrameSetRendererView.ViewCreator(
+                mappings(StateStackTest.TestUIStackFrame1.class, BackedView.class)));
+
+        Assert.assertTrue(renderer.isFrameSupported(StateStackTest.TestUIStackFrame1.class));
+        Assert.assertFalse(renderer.isFrameSupported(StateStackTest.TestUIStackFrame2.class));
+        Assert.assertTrue(renderer.isFrameOpaque(new StateStackTest.TestUIStackFrame1()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void viewCreator_viewWithoutContextConstructor_shouldThrow()
+    {
+        new StateStackFrameSetRendererView.ViewCreator(mappings(StateStackTest.TestUIStackFrame1.class, NoContextConstructorView.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void viewCreator_viewNotBackedByFrame_shouldThrow()
+    {
+        new StateStackFrameSetRendererView.ViewCreator(mappings(StateStackTest.TestUIStackFrame1.class, NotBackedView.class));
+    }
+
+    @Test
+    public void isFrameOpaque_registry_shouldResolveBindingOnce()
+    {
+        FrameViewRegistry registry = Mockito.mock(FrameViewRegistry.class);
+        Mockito.when(registry.getTypeId(StateStackTest.TestUIStackFrame2.class)).thenReturn(0);
+        Mockito.when(registry.getTypeId(StateStackTest.TestUIStackFrame3.class)).thenReturn(-1);
+        Mockito.<Class<? extends View>>when(registry.getViewClass(0)).thenReturn(BackedView.class);
+        Mockito.when(registry.isOpaque(0)).thenReturn(false);
+        StateStackFrameSetRendererView renderer = createRenderer(new StateStackFrameSetRendererView.ViewCreator(registry));
+
+        Assert.assertTrue(renderer.isFrameSupported(StateStackTest.TestUIStackFrame2.class));
+        Assert.assertFalse(renderer.isFrameOpaque(new StateStackTest.TestUIStackFrame2()));
+        Assert.assertFalse(renderer.isFrameOpaque(new StateStackTest.TestUIStackFrame2()));
+        Assert.assertFalse(renderer.isFrameSupported(StateStackTest.TestUIStackFrame3.class));
+        Mockito.verify(registry, Mockito.times(1)).getTypeId(StateStackTest.TestUIStackFrame2.class);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStackFrameSetRendererView createRenderer(StateStackFrameSetRendererView.ViewCreator viewCreator)
+    {
+        return new StateStackFrameSetRendererView(viewCreator, Mockito.mock(StateStackFrameSetRendererView.Displayer.class), false);
+    }
+
+    private static Map<Class<? extends StateStackFrame>, Class<? extends View>> mappings(Class<? extends StateStackFrame> frameClass, Class<? extends View> viewClass)
+    {
+        Map<Class<? extends StateStackFrame>, Class<? extends View>> mappings = new HashMap<>();
+        mappings.put(frameClass, viewClass);
+        return mappings;
+    }
+
+    public static abstract class BackedView extends View implements StateStackFrameBackedUI<StateStackFrame>
+    {
+        public BackedView(Context context)
+        {
+            super(context);
+        }
+    }
+
+    public static abstract class NoContextConstructorView extends BackedView
+    {
+        public NoContextConstructorView(Context context, int style)
+        {
+            super(context);
+        }
+    }
+
+    public static abstract class NotBackedView extends View
+    {
+        public NotBackedView(Context context)
+        {
+            super(context);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(JUnit4.class)
+public class ConcurrentStateStackTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void getSize_readFromOtherThreadDuringMutation_shouldNotBlockAndSeePreviousState() throws Exception
+    {
+        final ConcurrentStateStack stateStack = new ConcurrentStateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        final CountDownLatch insidePushed = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                stateStack.pushFrame(new BlockingFrame(insidePushed, readDone));
+            }
+        });
+        writer.start();
+
+        Assert.assertTrue(insidePushed.await(5, TimeUnit.SECONDS));
+        //writer holds the mutation lock here
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, stateStack.getTopVisibleFrame().getClass());
+        readDone.countDown();
+        writer.join(5000);
+
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertEquals(BlockingFrame.class, stateStack.getTopVisibleFrame().getClass());
+    }
+
+    @Test
+    public void getTopVisibleFrame_readFromInsidePushed_shouldSeeLiveState()
+    {
+        final ConcurrentStateStack stateStack = new ConcurrentStateStack();
+        final AtomicReference<StateStackFrame> seenTop = new AtomicReference<>();
+        StateStackFrame frame = new StateStackFrame()
+        {
+            @Override
+            public void pushed()
+            {
+                seenTop.set(getParentStack().getTopVisibleFrame());
+            }
+        };
+
+        stateStack.pushFrame(frame);
+
+        Assert.assertSame(frame, seenTop.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void beginTransaction_outsideEdit_shouldThrow()
+    {
+        new ConcurrentStateStack().beginTransaction();
+    }
+
+    @Test
+    public void snapshots_manyReadersOneWriter_shouldAlwaysBeConsistent() throws Exception
+    {
+        final ConcurrentStateStack stateStack = new ConcurrentStateStack();
+        stateStack.registerIndexedType(StateStackTypeIndexTest.TestScope.class);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] readers = new Thread[4];
+        for(int r = 0; r < readers.length; r++)
+        {
+            readers[r] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while(writing.get())
+                        {
+                            assertConsistent(stateStack.getSnapshot());
+                            StateStackFrame top = stateStack.getTopVisibleFrame();
+                            Assert.assertTrue(top == null || !top.getTypeDescriptor().isHidden());
+                            StateStackTest.TestHiddenDataStackFrame data = stateStack.getFrameOfType(StateStackTest.TestHiddenDataStackFrame.class);
+                            Assert.assertTrue(data == null || data.getClass() == StateStackTest.TestHiddenDataStackFrame.class);
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        Random random = new Random(7);
+        for(int i = 0; i < 20000; i++)
+        {
+            if(random.nextInt(3) > 0 || stateStack.isEmpty())
+            {
+                switch(random.nextInt(3))
+                {
+                    case 0: stateStack.pushFrame(new StateStackTest.TestUIStackFrame1()); break;
+                    case 1: stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame()); break;
+                    default: stateStack.pushFrame(new StateStackTypeIndexTest.TestSessionFrame()); break;
+                }
+            }
+            else
+            {
+                stateStack.popToNextVisibleFrame();
+            }
+        }
+        writing.set(false);
+        for(Thread reader : readers)
+            reader.join(5000);
+
+        if(failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static void assertConsistent(StateStackSnapshot snapshot)
+    {
+        int visibleCount = 0;
+        for(int i = snapshot.getSize() - 1; i >= 0; i--)
+        {
+            StateStackFrame frame = snapshot.getFrameAtIndex(i);
+            if(!frame.getTypeDescriptor().isHidden())
+            {
+                visibleCount++;
+                Assert.assertSame(frame, snapshot.getVisibleFrameFromTopDown(visibleCount));
+            }
+        }
+        Assert.assertEquals(visibleCount, snapshot.getVisibleFrameCount());
+
+        List<StateStackTypeIndexTest.TestScope> scopes = snapshot.getFramesOfType(StateStackTypeIndexTest.TestScope.class);
+        Assert.assertEquals(scopes.size(), snapshot.getFrameCountOfType(StateStackTypeIndexTest.TestScope.class));
+        Assert.assertSame(scopes.isEmpty() ? null : scopes.get(scopes.size() - 1), snapshot.getTopFrameOfType(StateStackTypeIndexTest.TestScope.class));
+    }
+
+    static class BlockingFrame extends StateStackFrame
+    {
+        private final transient CountDownLatch insidePushed;
+        private final transient CountDownLatch release;
+
+        BlockingFrame(CountDownLatch insidePushed, CountDownLatch release)
+        {
+            this.insidePushed = insidePushed;
+            this.release = release;
+        }
+
+        @Override
+        public void pushed()
+        {
+            insidePushed.countDown();
+            try
+            {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FrameArrayTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void push_pastInitialCapacity_shouldGrow()
+    {
+        FrameArray frameArray = new FrameArray(2);
+        StateStackFrame[] frames = pushFrames(frameArray, 500);
+
+        Assert.assertEquals(500, frameArray.size());
+        for(int i = 0; i < frames.length; i++)
+            Assert.assertSame(frames[i], frameArray.get(i));
+    }
+
+    @Test
+    public void pop_churn_shouldReturnFramesInReverseOrder()
+    {
+        FrameArray frameArray = new FrameArray(1);
+        for(int round = 0; round < 1000; round++)
+        {
+            StateStackFrame first = new StateStackTest.TestUIStackFrame1();
+            StateStackFrame second = new StateStackTest.TestUIStackFrame2();
+            frameArray.push(first);
+            frameArray.push(second);
+            Assert.assertSame(second, frameArray.pop());
+            Assert.assertSame(first, frameArray.pop());
+        }
+        Assert.assertTrue(frameArray.isEmpty());
+        Assert.assertNull(frameArray.peek());
+    }
+
+    @Test
+    public void truncate_deepArray_shouldDropAllAboveIndex()
+    {
+        FrameArray frameArray = new FrameArray();
+        StateStackFrame[] frames = pushFrames(frameArray, 300);
+
+        frameArray.truncate(100);
+
+        Assert.assertEquals(100, frameArray.size());
+        Assert.assertSame(frames[99], frameArray.peek());
+    }
+
+    @Test
+    public void removeByIdentity_middleFrame_shouldCompact()
+    {
+        FrameArray frameArray = new FrameArray();
+        StateStackFrame[] frames = pushFrames(frameArray, 5);
+
+        Assert.assertEquals(2, frameArray.removeByIdentity(frames[2]));
+
+        Assert.assertEquals(4, frameArray.size());
+        Assert.assertSame(frames[1], frameArray.get(1));
+        Assert.assertSame(frames[3], frameArray.get(2));
+        Assert.assertSame(frames[4], frameArray.get(3));
+    }
+
+    @Test
+    public void removeByIdentity_equalButNotSameInstance_shouldNotRemove()
+    {
+        FrameArray frameArray = new FrameArray();
+        frameArray.push(new EqualToAllFrame());
+
+        Assert.assertEquals(-1, frameArray.removeByIdentity(new EqualToAllFrame()));
+        Assert.assertEquals(1, frameArray.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_aboveSize_shouldThrow()
+    {
+        FrameArray frameArray = new FrameArray();
+        frameArray.push(new StateStackTest.TestUIStackFrame1());
+        frameArray.get(1);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStackFrame[] pushFrames(FrameArray frameArray, int count)
+    {
+        StateStackFrame[] frames = new StateStackFrame[count];
+        for(int i = 0; i < count; i++)
+        {
+            frames[i] = new StateStackTest.TestUIStackFrame1();
+            frameArray.push(frames[i]);
+        }
+        return frames;
+    }
+
+    static class EqualToAllFrame extends StateStackFrame
+    {
+        @Override
+        public boolean equals(Object o)
+        {
+            return true;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+    }
+}
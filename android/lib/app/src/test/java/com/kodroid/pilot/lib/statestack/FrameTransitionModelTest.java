@@ -0,0 +1,149 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class FrameTransitionModelTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void pushFrame_visibleFrames_shouldCountTransitionsFromTopVisibleFrame()
+    {
+        FrameTransitionModel model = new FrameTransitionModel();
+        StateStack stateStack = new StateStack().setTransitionModel(model);
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.popToNextVisibleFrame();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+
+        Assert.assertEquals(2, model.getTransitionCount(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestUIStackFrame2.class));
+        Assert.assertEquals(0, model.getTransitionCount(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestHiddenDataStackFrame.class));
+        Assert.assertEquals(0, model.getTransitionCount(StateStackTest.TestHiddenDataStackFrame.class, StateStackTest.TestUIStackFrame2.class));
+    }
+
+    @Test
+    public void getLikelyNextFrames_countedTransitions_shouldReturnMostLikelyFirst()
+    {
+        FrameTransitionModel model = new FrameTransitionModel();
+        record(model, ListFrame.class, DetailFrame.class, 3);
+        record(model, ListFrame.class, SearchFrame.class, 5);
+        record(model, ListFrame.class, StateStackTest.TestUIStackFrame1.class, 1);
+
+        Assert.assertEquals(Arrays.asList(SearchFrame.class, DetailFrame.class), likelyNextFrames(model, ListFrame.class, 2));
+        Assert.assertTrue(likelyNextFrames(model, DetailFrame.class, 2).isEmpty());
+    }
+
+    @Test
+    public void pushFrame_frameOverridingLikelyNextFrames_shouldReceivePredictions()
+    {
+        FrameTransitionModel model = new FrameTransitionModel();
+        record(model, ListFrame.class, DetailFrame.class, 2);
+        StateStack stateStack = new StateStack().setTransitionModel(model);
+        ListFrame listFrame = new ListFrame();
+
+        stateStack.pushFrame(listFrame);
+
+        Assert.assertEquals(Arrays.<Class<?>>asList(DetailFrame.class), listFrame.likelyNextFrames);
+    }
+
+    @Test
+    public void pushFrame_noTransitionsSeen_shouldNotCallLikelyNextFrames()
+    {
+        StateStack stateStack = new StateStack().setTransitionModel(new FrameTransitionModel());
+        ListFrame listFrame = new ListFrame();
+
+        stateStack.pushFrame(listFrame);
+
+        Assert.assertNull(listFrame.likelyNextFrames);
+    }
+
+    @Test
+    public void readFrom_writtenModel_shouldRestoreCounts() throws IOException
+    {
+        FrameTransitionModel model = new FrameTransitionModel();
+        record(model, ListFrame.class, DetailFrame.class, 3);
+        record(model, DetailFrame.class, ListFrame.class, 1);
+        File file = new File(temporaryFolder.getRoot(), "transitions");
+
+        model.writeTo(file);
+        FrameTransitionModel restored = FrameTransitionModel.readFrom(file);
+
+        Assert.assertEquals(3, restored.getTransitionCount(ListFrame.class, DetailFrame.class));
+        Assert.assertEquals(1, restored.getTransitionCount(DetailFrame.class, ListFrame.class));
+        Assert.assertEquals(0, restored.getTransitionCount(ListFrame.class, SearchFrame.class));
+        Assert.assertTrue(file.length() < 512);
+    }
+
+    @Test
+    public void readFrom_missingFile_shouldReturnEmptyModel() throws IOException
+    {
+        FrameTransitionModel model = FrameTransitionModel.readFrom(new File(temporaryFolder.getRoot(), "missing"));
+
+        Assert.assertTrue(likelyNextFrames(model, ListFrame.class, 3).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_malformedFile_shouldThrow() throws IOException
+    {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        FrameTransitionModel.readFrom(file);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static void record(FrameTransitionModel model, Class<? extends StateStackFrame> from, Class<? extends StateStackFrame> to, int times)
+    {
+        for(int i = 0; i < times; i++)
+            model.recordTransition(FrameTypeDescriptor.forClass(from), FrameTypeDescriptor.forClass(to));
+    }
+
+    private static List<Class<? extends StateStackFrame>> likelyNextFrames(FrameTransitionModel model, Class<? extends StateStackFrame> from, int max)
+    {
+        List<Class<? extends StateStackFrame>> likelyNextFrames = new ArrayList<>();
+        model.getLikelyNextFrames(FrameTypeDescriptor.forClass(from), max, likelyNextFrames);
+        return likelyNextFrames;
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    public static class ListFrame extends StateStackFrame
+    {
+        List<Class<?>> likelyNextFrames;
+
+        @Override
+        public void likelyNextFrames(List<Class<? extends StateStackFrame>> likelyNextFrames)
+        {
+            this.likelyNextFrames = new ArrayList<Class<?>>(likelyNextFrames);
+        }
+    }
+
+    public static class DetailFrame extends StateStackFrame {}
+
+    public static class SearchFrame extends StateStackFrame {}
+}
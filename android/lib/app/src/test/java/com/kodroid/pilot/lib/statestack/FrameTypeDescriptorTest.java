@@ -0,0 +1,92 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@RunWith(JUnit4.class)
+public class FrameTypeDescriptorTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void forClass_sameClassTwice_shouldReturnSameInstance()
+    {
+        Assert.assertSame(
+                FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame1.class),
+                FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame1.class));
+    }
+
+    @Test
+    public void forClass_differentClasses_shouldHaveDistinctTypeIds()
+    {
+        FrameTypeDescriptor first = FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame1.class);
+        FrameTypeDescriptor second = FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame2.class);
+        Assert.assertNotEquals(first.getTypeId(), second.getTypeId());
+        Assert.assertTrue(first.getTypeId() < FrameTypeDescriptor.getRegisteredTypeCount());
+        Assert.assertTrue(second.getTypeId() < FrameTypeDescriptor.getRegisteredTypeCount());
+    }
+
+    @Test
+    public void isHidden_notAnnotated_shouldBeFalse()
+    {
+        Assert.assertFalse(FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame1.class).isHidden());
+    }
+
+    @Test
+    public void isHidden_annotated_shouldBeTrue()
+    {
+        Assert.assertTrue(FrameTypeDescriptor.forClass(StateStackTest.TestHiddenDataStackFrame.class).isHidden());
+    }
+
+    @Test
+    public void isHidden_subclassOfAnnotated_shouldBeTrue()
+    {
+        Assert.assertTrue(FrameTypeDescriptor.forClass(SubclassOfHiddenFrame.class).isHidden());
+    }
+
+    @Test
+    public void isHidden_metaAnnotated_shouldBeTrue()
+    {
+        Assert.assertTrue(FrameTypeDescriptor.forClass(MetaAnnotatedHiddenFrame.class).isHidden());
+    }
+
+    @Test
+    public void getTypeDescriptor_frameInstance_shouldMatchClassDescriptor()
+    {
+        StateStackFrame frame = new StateStackTest.TestUIStackFrame3();
+        Assert.assertSame(FrameTypeDescriptor.forClass(StateStackTest.TestUIStackFrame3.class), frame.getTypeDescriptor());
+    }
+
+    @Test
+    public void pushFrame_subclassOfHiddenFrame_shouldNotBeTopVisibleFrame()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new SubclassOfHiddenFrame());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, stateStack.getTopVisibleFrame().getClass());
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    public static class SubclassOfHiddenFrame extends StateStackTest.TestHiddenDataStackFrame
+    {}
+
+    @HiddenStateStackFrame
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface ScopeFrame
+    {}
+
+    @ScopeFrame
+    public static class MetaAnnotatedHiddenFrame extends StateStackFrame
+    {}
+}
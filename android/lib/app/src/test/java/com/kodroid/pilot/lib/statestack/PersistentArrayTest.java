@@ -0,0 +1,40 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentArrayTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void set_keysAcrossLevels_shouldReadBackAndLeaveOriginalUnchanged()
+    {
+        PersistentArray<Integer> original = PersistentArray.empty();
+        for(int key = 0; key < 5000; key += 7)
+            original = original.set(key, key);
+
+        PersistentArray<Integer> changed = original.set(7, -1).set(70000, 70000);
+
+        for(int key = 0; key < 5000; key += 7)
+            Assert.assertEquals(Integer.valueOf(key), original.get(key));
+        Assert.assertNull(original.get(1));
+        Assert.assertNull(original.get(70000));
+        Assert.assertEquals(Integer.valueOf(-1), changed.get(7));
+        Assert.assertEquals(Integer.valueOf(70000), changed.get(70000));
+        Assert.assertEquals(Integer.valueOf(14), changed.get(14));
+    }
+
+    @Test
+    public void set_nullOutOfRange_shouldReturnSameArray()
+    {
+        PersistentArray<Integer> array = PersistentArray.<Integer>empty().set(3, 3);
+
+        Assert.assertSame(array, array.set(1000, null));
+        Assert.assertNull(array.set(3, null).get(3));
+        Assert.assertNull(array.get(-1));
+    }
+}
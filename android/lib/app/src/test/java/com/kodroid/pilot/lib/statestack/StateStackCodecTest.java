@@ -0,0 +1,424 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class StateStackCodecTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Before
+    public void resetCounters()
+    {
+        ArticleFrame.restoreCount = 0;
+        PoppedArticleFrame.poppedCount = 0;
+    }
+
+    @Test
+    public void decode_encodedStack_shouldRestoreFramesAndState()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(new ArticleFrame(42, "Title", -7, true));
+
+        StateStack restored = new StateStackCodec().decode(new StateStackCodec().encode(stateStack), new StateStack());
+
+        Assert.assertEquals(3, restored.getSize());
+        Assert.assertEquals(2, restored.getVisibleFrameCount());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, restored.getVisibleFrameFromTopDown(2).getClass());
+        ArticleFrame article = (ArticleFrame) restored.getTopVisibleFrame();
+        Assert.assertEquals(42, article.articleId);
+        Assert.assertEquals("Title", article.title);
+        Assert.assertEquals(-7, article.scrollOffset);
+        Assert.assertTrue(article.liked);
+        Assert.assertSame(restored, article.getParentStack());
+        Assert.assertEquals(restored.getSize(), restored.getSnapshot().getSize());
+    }
+
+    @Test
+    public void decode_nullState_shouldRestoreNull()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new ArticleFrame(1, null, 0, false));
+
+        StateStack restored = new StateStackCodec().decode(new StateStackCodec().encode(stateStack), new StateStack());
+
+        Assert.assertNull(((ArticleFrame) restored.getTopVisibleFrame()).title);
+    }
+
+    @Test
+    public void decode_encodedStack_shouldNotCallPushedOrNotifyListeners()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.ChainedPushStackFrame()); //pushes a 2nd frame from pushed()
+        StateStack restored = new StateStack();
+        StateStack.TopFrameChangedListener mockListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        restored.addTopFrameChangedListener(mockListener);
+
+        new StateStackCodec().decode(new StateStackCodec().encode(stateStack), restored);
+
+        Assert.assertEquals(2, restored.getSize());
+        Mockito.verifyZeroInteractions(mockListener);
+    }
+
+    @Test
+    public void decode_olderStateVersion_shouldPassSavedVersion()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new ArticleFrame(1, "Title", 0, false));
+        byte[] encoded = new StateStackCodec().encode(stateStack);
+
+        ArticleFrame.currentStateVersion = 2;
+        try
+        {
+            StateStack restored = new StateStackCodec().decode(encoded, new StateStack());
+            Assert.assertEquals(1, ((ArticleFrame) restored.getTopVisibleFrame()).restoredVersion);
+        }
+        finally
+        {
+            ArticleFrame.currentStateVersion = 1;
+        }
+    }
+
+    @Test
+    public void decode_renamedClassAndKey_shouldRestoreViaAliases()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new LegacyArticleFrame(5, "Old headline"));
+        byte[] encoded = new StateStackCodec().encode(stateStack);
+
+        StateStackCodec codec = new StateStackCodec()
+                .registerClassAlias(LegacyArticleFrame.class.getName(), ArticleFrame.class)
+                .registerKeyAlias(ArticleFrame.class, "headline", "title");
+        StateStack restored = codec.decode(encoded, new StateStack());
+
+        ArticleFrame article = (ArticleFrame) restored.getTopVisibleFrame();
+        Assert.assertEquals(5, article.articleId);
+        Assert.assertEquals("Old headline", article.title);
+        Assert.assertFalse(article.liked); //not written, so default
+    }
+
+    @Test
+    public void decode_compressed_shouldRoundTrip()
+    {
+        StateStack stateStack = createArticleStack(50);
+        StateStackCodec codec = new StateStackCodec().setCompressed(true);
+
+        byte[] compressed = codec.encode(stateStack);
+        StateStack restored = codec.decode(compressed, new StateStack());
+
+        Assert.assertEquals(50, restored.getSize());
+        Assert.assertEquals("Article title 49", ((ArticleFrame) restored.getTopVisibleFrame()).title);
+        Assert.assertTrue(compressed.length < new StateStackCodec().encode(stateStack).length);
+    }
+
+    @Test
+    public void decode_concurrentStateStack_shouldPublishRestoredFrames()
+    {
+        ConcurrentStateStack restored = new ConcurrentStateStack();
+
+        new StateStackCodec().decode(new StateStackCodec().encode(createArticleStack(3)), restored);
+
+        Assert.assertEquals(3, restored.getSnapshot().getSize());
+        Assert.assertEquals(3, restored.getVisibleFrameCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decode_nonEmptyStack_shouldThrow()
+    {
+        StateStack target = new StateStack();
+        target.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        new StateStackCodec().decode(new StateStackCodec().encode(createArticleStack(1)), target);
+    }
+
+    @Test
+    public void decode_malformedData_shouldThrowIllegalArgument()
+    {
+        byte[] encoded = new StateStackCodec().encode(createArticleStack(3));
+
+        for(byte[] malformed : Arrays.asList(new byte[]{1, 2, 3}, Arrays.copyOf(encoded, encoded.length - 3)))
+        {
+            try
+            {
+                new StateStackCodec().decode(malformed, new StateStack());
+                Assert.fail();
+            }
+            catch(IllegalArgumentException expected) {}
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putString_sameKeyTwice_shouldThrow()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new DuplicateKeyFrame());
+
+        new StateStackCodec().encode(stateStack);
+    }
+
+    //==================================================================//
+    // Lazy decoding
+    //==================================================================//
+
+    @Test
+    public void decode_lazy_shouldOnlyDecodeFramesWhenAccessed()
+    {
+        StateStack restored = new StateStackCodec().setLazyDecoding(true)
+                .decode(new StateStackCodec().encode(createArticleStack(10)), new StateStack());
+        Assert.assertEquals(0, ArticleFrame.restoreCount);
+        Assert.assertEquals(10, restored.getVisibleFrameCount());
+
+        StateStackFrame top = restored.getTopVisibleFrame();
+        Assert.assertEquals(9, ((ArticleFrame) top).articleId);
+        Assert.assertSame(top, restored.getTopVisibleFrame());
+        Assert.assertSame(restored, top.getParentStack());
+        Assert.assertEquals(1, ArticleFrame.restoreCount);
+
+        Assert.assertSame(restored.getVisibleFrameFromTopDown(2), restored.getSnapshot().getVisibleFrameFromTopDown(2));
+        Assert.assertEquals(2, ArticleFrame.restoreCount);
+    }
+
+    @Test
+    public void decode_lazyHiddenScopeFrame_shouldDecodeOnTypeLookup()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTypeIndexTest.TestSessionFrame());
+        stateStack.pushFrame(new ArticleFrame(1, "One", 0, false));
+        StateStack restored = new StateStack();
+        restored.registerIndexedType(StateStackTypeIndexTest.TestScope.class);
+
+        new StateStackCodec().setLazyDecoding(true).decode(new StateStackCodec().encode(stateStack), restored);
+
+        Assert.assertEquals(1, restored.getVisibleFrameCount());
+        Assert.assertEquals(1, restored.getFrameCountOfType(StateStackTypeIndexTest.TestScope.class));
+        StateStackTypeIndexTest.TestScope scope = restored.getTopFrameOfType(StateStackTypeIndexTest.TestScope.class);
+        Assert.assertTrue(scope instanceof StateStackTypeIndexTest.TestSessionFrame);
+        Assert.assertSame(scope, restored.getFrameOfType(StateStackTypeIndexTest.TestSessionFrame.class));
+        Assert.assertEquals(0, ArticleFrame.restoreCount);
+    }
+
+    @Test
+    public void popToNextVisibleFrame_lazyFrameNotOverridingPopped_shouldOnlyDecodeNewTop()
+    {
+        StateStack restored = new StateStackCodec().setLazyDecoding(true)
+                .decode(new StateStackCodec().encode(createArticleStack(3)), new StateStack());
+
+        restored.popToNextVisibleFrame();
+
+        //only the newly revealed top frame, which listeners are notified with
+        Assert.assertEquals(1, ArticleFrame.restoreCount);
+        Assert.assertEquals(1, ((ArticleFrame) restored.getTopVisibleFrame()).articleId);
+        Assert.assertEquals(1, ArticleFrame.restoreCount);
+    }
+
+    @Test
+    public void popToNextVisibleFrame_lazyFrameOverridingPopped_shouldDecodeAndCallPopped()
+    {
+        StateStack stateStack = createArticleStack(1);
+        stateStack.pushFrame(new PoppedArticleFrame());
+        StateStack restored = new StateStackCodec().setLazyDecoding(true)
+                .decode(new StateStackCodec().encode(stateStack), new StateStack());
+
+        restored.popToNextVisibleFrame();
+
+        Assert.assertEquals(1, PoppedArticleFrame.poppedCount);
+        Assert.assertEquals(1, restored.getSize());
+    }
+
+    @Test
+    public void encode_lazyUndecodedFrames_shouldReencodeWithoutDecoding()
+    {
+        StateStack stateStack = createArticleStack(3);
+        stateStack.pushFrame(new StateStackTypeIndexTest.TestSessionFrame());
+        StateStack lazy = new StateStackCodec().setLazyDecoding(true)
+                .decode(new StateStackCodec().encode(stateStack), new StateStack());
+        lazy.getVisibleFrameFromTopDown(2); //decode one
+
+        byte[] reencoded = new StateStackCodec().encode(lazy);
+        Assert.assertEquals(1, ArticleFrame.restoreCount);
+
+        StateStack restored = new StateStackCodec().decode(reencoded, new StateStack());
+        Assert.assertEquals(4, restored.getSize());
+        Assert.assertEquals("Article title 0", ((ArticleFrame) restored.getVisibleFrameFromTopDown(3)).title);
+        Assert.assertEquals(StateStackTypeIndexTest.TestSessionFrame.class, restored.getSnapshot().getTopFrame().getClass());
+    }
+
+    @Test
+    public void removeFrame_lazyFrameAfterAccess_shouldMatchByIdentity()
+    {
+        StateStack restored = new StateStackCodec().setLazyDecoding(true)
+                .decode(new StateStackCodec().encode(createArticleStack(3)), new StateStack());
+        StateStackFrame middle = restored.getVisibleFrameFromTopDown(2);
+        Assert.assertEquals(1, restored.getSnapshot().indexOf(middle));
+
+        restored.removeFrame(middle);
+
+        Assert.assertEquals(2, restored.getSize());
+        Assert.assertEquals(-1, restored.getSnapshot().indexOf(middle));
+        Assert.assertNull(middle.getParentStack());
+    }
+
+    //==================================================================//
+    // Size vs Java serialization
+    //==================================================================//
+
+    @Test
+    public void encode_10Frames_shouldBeSmallerThanJavaSerialization() throws IOException
+    {
+        assertSmallerThanJavaSerialization(createArticleStack(10));
+    }
+
+    @Test
+    public void encode_50Frames_shouldBeSmallerThanJavaSerialization() throws IOException
+    {
+        assertSmallerThanJavaSerialization(createArticleStack(50));
+    }
+
+    private static void assertSmallerThanJavaSerialization(StateStack stateStack) throws IOException
+    {
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(new ArrayList<>(Arrays.asList(stateStack.getSnapshot().toArray())));
+        out.close();
+
+        int encodedSize = new StateStackCodec().encode(stateStack).length;
+
+        Assert.assertTrue(encodedSize+" vs "+serialized.size(), encodedSize < serialized.size());
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStack createArticleStack(int frameCount)
+    {
+        StateStack stateStack = new StateStack();
+        for(int i = 0; i < frameCount; i++)
+            stateStack.pushFrame(new ArticleFrame(i, "Article title "+i, i * 100, i % 2 == 0));
+        return stateStack;
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class ArticleFrame extends StateStackFrame implements CodableStateStackFrame
+    {
+        static int currentStateVersion = 1;
+        static int restoreCount;
+
+        long articleId;
+        String title;
+        int scrollOffset;
+        boolean liked;
+        int restoredVersion;
+
+        ArticleFrame() {}
+
+        ArticleFrame(long articleId, String title, int scrollOffset, boolean liked)
+        {
+            this.articleId = articleId;
+            this.title = title;
+            this.scrollOffset = scrollOffset;
+            this.liked = liked;
+        }
+
+        @Override
+        public int getStateVersion()
+        {
+            return currentStateVersion;
+        }
+
+        @Override
+        public void saveState(FrameStateWriter out)
+        {
+            out.putLong("articleId", articleId)
+                    .putString("title", title)
+                    .putInt("scrollOffset", scrollOffset)
+                    .putBoolean("liked", liked);
+        }
+
+        @Override
+        public void restoreState(FrameStateReader in, int version)
+        {
+            restoreCount++;
+            restoredVersion = version;
+            articleId = in.getLong("articleId", -1);
+            title = in.getString("title", "");
+            scrollOffset = in.getInt("scrollOffset", 0);
+            liked = in.getBoolean("liked", false);
+        }
+    }
+
+    static class PoppedArticleFrame extends ArticleFrame
+    {
+        static int poppedCount;
+
+        @Override
+        public void popped()
+        {
+            poppedCount++;
+        }
+    }
+
+    static class LegacyArticleFrame extends StateStackFrame implements CodableStateStackFrame
+    {
+        private final long articleId;
+        private final String headline;
+
+        LegacyArticleFrame(long articleId, String headline)
+        {
+            this.articleId = articleId;
+            this.headline = headline;
+        }
+
+        @Override
+        public int getStateVersion()
+        {
+            return 1;
+        }
+
+        @Override
+        public void saveState(FrameStateWriter out)
+        {
+            out.putLong("articleId", articleId).putString("headline", headline);
+        }
+
+        @Override
+        public void restoreState(FrameStateReader in, int version)
+        {
+            throw new UnsupportedOperationException("Only restored via alias");
+        }
+    }
+
+    static class DuplicateKeyFrame extends StateStackFrame implements CodableStateStackFrame
+    {
+        @Override
+        public int getStateVersion()
+        {
+            return 1;
+        }
+
+        @Override
+        public void saveState(FrameStateWriter out)
+        {
+            out.putString("key", "a").putString("key", "b");
+        }
+
+        @Override
+        public void restoreState(FrameStateReader in, int version) {}
+    }
+}
@@ -0,0 +1,307 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class StateStackFrameObserverTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void notifyObservers_noExecutor_shouldNotifySynchronously()
+    {
+        CountingFrame frame = new CountingFrame();
+        CountingObserver observer = new CountingObserver();
+        frame.addObserver(observer, false);
+
+        frame.update();
+        frame.update();
+
+        Assert.assertEquals(2, observer.updates);
+    }
+
+    @Test
+    public void notifyObservers_burstBeforeTick_shouldDeliverOncePerObserver()
+    {
+        CountingFrame frame = new CountingFrame();
+        StateStackPostTest.ManualExecutor executor = new StateStackPostTest.ManualExecutor();
+        frame.setObserverNotificationExecutor(executor);
+        CountingObserver observer1 = new CountingObserver();
+        CountingObserver observer2 = new CountingObserver();
+        frame.addObserver(observer1, false);
+        frame.addObserver(observer2, false);
+
+        for(int i = 0; i < 1000; i++)
+            frame.update();
+        Assert.assertEquals(0, observer1.updates);
+        Assert.assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+
+        Assert.assertEquals(1, observer1.updates);
+        Assert.assertEquals(1, observer2.updates);
+    }
+
+    @Test
+    public void notifyObservers_executorRejected_shouldScheduleOnNextNotify()
+    {
+        CountingFrame frame = new CountingFrame();
+        CountingObserver observer = new CountingObserver();
+        StateStackPostTest.ManualExecutor executor = new StateStackPostTest.ManualExecutor();
+        frame.setObserverNotificationExecutor(executor);
+        frame.addObserver(observer, false);
+        executor.rejecting = true;
+
+        try
+        {
+            frame.update();
+            Assert.fail();
+        }
+        catch(RejectedExecutionException expected) {}
+        executor.rejecting = false;
+        frame.update();
+        executor.runAll();
+
+        Assert.assertEquals(1, observer.updates);
+    }
+
+    @Test
+    public void notifyObservers_duringDelivery_shouldScheduleAnotherTick()
+    {
+        final CountingFrame frame = new CountingFrame();
+        StateStackPostTest.ManualExecutor executor = new StateStackPostTest.ManualExecutor();
+        frame.setObserverNotificationExecutor(executor);
+        final CountingObserver observer = new CountingObserver()
+        {
+            @Override
+            public void updated()
+            {
+                super.updated();
+                if(updates == 1)
+                    frame.update();
+            }
+        };
+        frame.addObserver(observer, false);
+
+        frame.update();
+        executor.runNext();
+        Assert.assertEquals(1, observer.updates);
+        executor.runAll();
+
+        Assert.assertEquals(2, observer.updates);
+    }
+
+    @Test
+    public void notifyObservers_executorRemoved_shouldNotifySynchronouslyAgain()
+    {
+        CountingFrame frame = new CountingFrame();
+        frame.setObserverNotificationExecutor(new StateStackPostTest.ManualExecutor());
+        frame.setObserverNotificationExecutor(null);
+        CountingObserver observer = new CountingObserver();
+        frame.addObserver(observer, false);
+
+        frame.update();
+
+        Assert.assertEquals(1, observer.updates);
+    }
+
+    @Test
+    public void notifyObservers_burstyProducerThreads_shouldCollapseAndDeliverLatestState() throws Exception
+    {
+        final CountingFrame frame = new CountingFrame();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        frame.setObserverNotificationExecutor(executorService);
+        final int[] lastSeenValue = new int[1];
+        final AtomicInteger deliveries = new AtomicInteger();
+        frame.addObserver(new StateStackFrame.Observer()
+        {
+            @Override
+            public void updated()
+            {
+                deliveries.incrementAndGet();
+                lastSeenValue[0] = frame.value.get(); //only written on the executor thread
+            }
+        }, false);
+
+        final int producers = 4;
+        final int updatesPerProducer = 25000;
+        List<Thread> threads = new ArrayList<>();
+        for(int p = 0; p < producers; p++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(int i = 0; i < updatesPerProducer; i++)
+                        frame.update();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads)
+            thread.join(5000);
+
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(producers * updatesPerProducer, lastSeenValue[0]);
+        Assert.assertTrue(deliveries.get() >= 1);
+        Assert.assertTrue(deliveries.get() < producers * updatesPerProducer);
+    }
+
+    @Test
+    public void notifyObserversKeyed_keyedObserver_shouldOnlyReceiveObservedKeys()
+    {
+        CountingFrame frame = new CountingFrame();
+        RecordingKeyedObserver titleObserver = new RecordingKeyedObserver();
+        frame.addKeyedObserver(titleObserver, CountingFrame.KEY_TITLE, false);
+
+        frame.update(CountingFrame.KEY_BODY);
+        Assert.assertEquals(0, titleObserver.updates);
+
+        frame.update(CountingFrame.KEY_TITLE | CountingFrame.KEY_BODY);
+        Assert.assertEquals(1, titleObserver.updates);
+        Assert.assertEquals(CountingFrame.KEY_TITLE, titleObserver.lastChangedKeys);
+    }
+
+    @Test
+    public void notifyObserversKeyed_plainObserver_shouldStillBeNotified()
+    {
+        CountingFrame frame = new CountingFrame();
+        CountingObserver observer = new CountingObserver();
+        frame.addObserver(observer, false);
+
+        frame.update(CountingFrame.KEY_BODY);
+
+        Assert.assertEquals(1, observer.updates);
+    }
+
+    @Test
+    public void notifyObservers_noKeys_keyedObserverShouldReceiveAllObservedKeys()
+    {
+        CountingFrame frame = new CountingFrame();
+        RecordingKeyedObserver observer = new RecordingKeyedObserver();
+        frame.addKeyedObserver(observer, CountingFrame.KEY_TITLE | CountingFrame.KEY_BODY, false);
+
+        frame.update();
+
+        Assert.assertEquals(CountingFrame.KEY_TITLE | CountingFrame.KEY_BODY, observer.lastChangedKeys);
+    }
+
+    @Test
+    public void notifyObserversKeyed_coalesced_shouldDeliverUnionOfKeysOnce()
+    {
+        CountingFrame frame = new CountingFrame();
+        StateStackPostTest.ManualExecutor executor = new StateStackPostTest.ManualExecutor();
+        frame.setObserverNotificationExecutor(executor);
+        RecordingKeyedObserver observer = new RecordingKeyedObserver();
+        frame.addKeyedObserver(observer, StateStackFrame.ALL_KEYS, false);
+
+        frame.update(CountingFrame.KEY_TITLE);
+        frame.update(CountingFrame.KEY_BODY);
+        frame.update(CountingFrame.KEY_TITLE);
+        executor.runAll();
+
+        Assert.assertEquals(1, observer.updates);
+        Assert.assertEquals(CountingFrame.KEY_TITLE | CountingFrame.KEY_BODY, observer.lastChangedKeys);
+    }
+
+    @Test
+    public void addKeyedObserver_alreadyAdded_shouldReplaceMask()
+    {
+        CountingFrame frame = new CountingFrame();
+        RecordingKeyedObserver observer = new RecordingKeyedObserver();
+        frame.addKeyedObserver(observer, CountingFrame.KEY_TITLE, false);
+        frame.addKeyedObserver(observer, CountingFrame.KEY_BODY, false);
+
+        frame.update(CountingFrame.KEY_TITLE);
+        frame.update(CountingFrame.KEY_BODY);
+
+        Assert.assertEquals(1, observer.updates);
+        Assert.assertEquals(CountingFrame.KEY_BODY, observer.lastChangedKeys);
+    }
+
+    @Test
+    public void removeKeyedObserver_duringDelivery_shouldStillNotifyOthers()
+    {
+        final CountingFrame frame = new CountingFrame();
+        RecordingKeyedObserver removingObserver = new RecordingKeyedObserver()
+        {
+            @Override
+            public void updated(long changedKeys)
+            {
+                super.updated(changedKeys);
+                frame.removeKeyedObserver(this);
+            }
+        };
+        RecordingKeyedObserver otherObserver = new RecordingKeyedObserver();
+        frame.addKeyedObserver(removingObserver, StateStackFrame.ALL_KEYS, false);
+        frame.addKeyedObserver(otherObserver, StateStackFrame.ALL_KEYS, false);
+
+        frame.update();
+        frame.update();
+
+        Assert.assertEquals(1, removingObserver.updates);
+        Assert.assertEquals(2, otherObserver.updates);
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class CountingFrame extends StateStackFrame
+    {
+        static final long KEY_TITLE = 1L;
+        static final long KEY_BODY = 1L << 1;
+
+        final AtomicInteger value = new AtomicInteger();
+
+        void update()
+        {
+            value.incrementAndGet();
+            notifyObservers();
+        }
+
+        void update(long changedKeys)
+        {
+            value.incrementAndGet();
+            notifyObservers(changedKeys);
+        }
+    }
+
+    static class RecordingKeyedObserver implements StateStackFrame.KeyedObserver
+    {
+        int updates;
+        long lastChangedKeys;
+
+        @Override
+        public void updated(long changedKeys)
+        {
+            updates++;
+            lastChangedKeys = changedKeys;
+        }
+    }
+
+    static class CountingObserver implements StateStackFrame.Observer
+    {
+        int updates;
+
+        @Override
+        public void updated()
+        {
+            updates++;
+        }
+    }
+}
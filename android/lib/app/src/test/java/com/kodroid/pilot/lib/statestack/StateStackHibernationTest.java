@@ -0,0 +1,240 @@
+package com.kodroid.pilot.lib.statestack;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class StateStackHibernationTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void resetCounters()
+    {
+        StateStackCodecTest.ArticleFrame.currentStateVersion = 1;
+        StateStackCodecTest.ArticleFrame.restoreCount = 0;
+    }
+
+    @Test
+    public void hibernateFramesBelow_deepStack_shouldOnlyHibernateFramesBelowKeptWindow()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+
+        int hibernatedCount = stateStack.hibernateFramesBelow(3);
+
+        Assert.assertEquals(3, hibernatedCount);
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        for(int i = 0; i < frames.length; i++)
+            Assert.assertEquals(i < 3, frames[i] instanceof UndecodedStateStackFrame);
+        Assert.assertEquals(0, StateStackCodecTest.ArticleFrame.restoreCount);
+    }
+
+    @Test
+    public void hibernateFramesBelow_hibernatedFrames_shouldDropOriginalInstancesAndTransientState()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+        StateStackFrame[] before = stateStack.getSnapshot().toArray();
+
+        stateStack.hibernateFramesBelow(1);
+
+        //stands in for a heap benchmark: the stack must hold nothing that references the old frames
+        StateStackFrame[] after = stateStack.getSnapshot().toArray();
+        for(int i = 0; i < 5; i++)
+        {
+            Assert.assertNotSame(before[i], after[i]);
+            Assert.assertNotSame(before[i], UndecodedStateStackFrame.resolveIfDecoded(after[i]));
+            Assert.assertNull(before[i].getParentStack());
+        }
+        Assert.assertSame(before[5], after[5]);
+    }
+
+    @Test
+    public void getVisibleFrameFromTopDown_hibernatedFrame_shouldRebuildWithState()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+        CachingArticleFrame original = (CachingArticleFrame) stateStack.getVisibleFrameFromTopDown(6);
+        original.scrollOffset = 120;
+        stateStack.hibernateFramesBelow(3);
+
+        CachingArticleFrame rebuilt = (CachingArticleFrame) stateStack.getVisibleFrameFromTopDown(6);
+
+        Assert.assertNotSame(original, rebuilt);
+        Assert.assertEquals(0, rebuilt.articleId);
+        Assert.assertEquals(120, rebuilt.scrollOffset);
+        Assert.assertNull(rebuilt.imageCache);
+        Assert.assertSame(stateStack, rebuilt.getParentStack());
+        Assert.assertSame(rebuilt, stateStack.getVisibleFrameFromTopDown(6));
+        Assert.assertEquals(1, StateStackCodecTest.ArticleFrame.restoreCount);
+    }
+
+    @Test
+    public void popToNextVisibleFrame_intoHibernatedFrame_shouldNotifyWithRebuiltFrame()
+    {
+        StateStack stateStack = createHibernatableStack(4);
+        stateStack.hibernateFramesBelow(1);
+        StateStack.TopFrameChangedListener mockListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockListener);
+
+        stateStack.popToNextVisibleFrame();
+
+        StateStackFrame topFrame = stateStack.getTopVisibleFrame();
+        Assert.assertTrue(topFrame instanceof CachingArticleFrame);
+        Assert.assertEquals(2, ((CachingArticleFrame) topFrame).articleId);
+        Mockito.verify(mockListener).topVisibleFrameUpdated(topFrame, StateStack.TopFrameChangedListener.Direction.BACK);
+    }
+
+    @Test
+    public void hibernateFramesBelow_rebuiltFrame_shouldBeRemovableByInstance()
+    {
+        StateStack stateStack = createHibernatableStack(4);
+        stateStack.hibernateFramesBelow(1);
+        StateStackFrame rebuilt = stateStack.getVisibleFrameFromTopDown(3);
+
+        stateStack.removeFrame(rebuilt);
+
+        Assert.assertEquals(3, stateStack.getSize());
+        Assert.assertEquals(-1, stateStack.getSnapshot().indexOf(rebuilt));
+    }
+
+    @Test
+    public void hibernateFramesBelow_alreadyHibernated_shouldNotHibernateAgain()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+        stateStack.hibernateFramesBelow(3);
+
+        Assert.assertEquals(0, stateStack.hibernateFramesBelow(3));
+        Assert.assertEquals(2, stateStack.hibernateFramesBelow(1));
+    }
+
+    @Test
+    public void hibernateFramesBelow_notOptedInOrHidden_shouldLeaveFrames()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackFrame plainArticle = new StateStackCodecTest.ArticleFrame(1, "One", 0, false);
+        StateStackFrame hiddenFrame = new HiddenHibernatableFrame();
+        stateStack.pushFrame(plainArticle);
+        stateStack.pushFrame(hiddenFrame);
+        stateStack.pushFrame(new CachingArticleFrame(2));
+        stateStack.pushFrame(new CachingArticleFrame(3));
+
+        Assert.assertEquals(1, stateStack.hibernateFramesBelow(1));
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        Assert.assertSame(plainArticle, frames[0]);
+        Assert.assertSame(hiddenFrame, frames[1]);
+        Assert.assertTrue(frames[2] instanceof UndecodedStateStackFrame);
+    }
+
+    @Test
+    public void hibernateFramesBelow_inTransaction_shouldDoNothing()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+        stateStack.beginTransaction();
+
+        Assert.assertEquals(0, stateStack.hibernateFramesBelow(1));
+        stateStack.commitTransaction();
+    }
+
+    @Test
+    public void onTrimMemory_belowRunningLow_shouldDoNothing()
+    {
+        StateStack stateStack = createHibernatableStack(6);
+
+        Assert.assertEquals(0, stateStack.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+    }
+
+    @Test
+    public void onTrimMemory_runningLow_shouldHibernateBelowHibernationDepth()
+    {
+        StateStack stateStack = createHibernatableStack(6).setHibernationDepth(2);
+
+        Assert.assertEquals(4, stateStack.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setHibernationDepth_zero_shouldThrow()
+    {
+        new StateStack().setHibernationDepth(0);
+    }
+
+    @Test
+    public void hibernateFramesBelow_concurrentStateStack_shouldPublishSnapshot()
+    {
+        ConcurrentStateStack stateStack = new ConcurrentStateStack();
+        for(int i = 0; i < 4; i++)
+            stateStack.pushFrame(new CachingArticleFrame(i));
+
+        stateStack.hibernateFramesBelow(1);
+
+        Assert.assertTrue(stateStack.getSnapshot().toArray()[0] instanceof UndecodedStateStackFrame);
+        Assert.assertEquals(0, ((CachingArticleFrame) stateStack.getSnapshot().getFrameAtIndex(0)).articleId);
+    }
+
+    @Test
+    public void hibernateFramesBelow_journaledStack_shouldRecoverUnchangedStack() throws IOException
+    {
+        StateStackJournal journal = StateStackJournal.open(temporaryFolder.getRoot(), new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack());
+        for(int i = 0; i < 4; i++)
+            stateStack.pushFrame(new CachingArticleFrame(i));
+        stateStack.hibernateFramesBelow(1);
+        stateStack.pushFrame(new CachingArticleFrame(4));
+        journal.close();
+
+        journal = StateStackJournal.open(temporaryFolder.getRoot(), new StateStackCodec());
+        StateStack recovered = journal.attachTo(new StateStack());
+        journal.close();
+
+        Assert.assertEquals(5, recovered.getSize());
+        for(int i = 0; i < 5; i++)
+            Assert.assertEquals(i, ((CachingArticleFrame) recovered.getFrameAtIndex(i)).articleId);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStack createHibernatableStack(int size)
+    {
+        StateStack stateStack = new StateStack();
+        for(int i = 0; i < size; i++)
+            stateStack.pushFrame(new CachingArticleFrame(i));
+        return stateStack;
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    @HibernatableStateStackFrame
+    static class CachingArticleFrame extends StateStackCodecTest.ArticleFrame
+    {
+        transient byte[] imageCache;
+
+        CachingArticleFrame() {}
+
+        CachingArticleFrame(long articleId)
+        {
+            super(articleId, "Article "+articleId, 0, false);
+            imageCache = new byte[64 * 1024];
+        }
+    }
+
+    @HiddenStateStackFrame
+    @HibernatableStateStackFrame
+    static class HiddenHibernatableFrame extends StateStackCodecTest.ArticleFrame
+    {}
+}
@@ -0,0 +1,290 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class StateStackJournalTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void attachTo_nothingJournaled_shouldLeaveStackEmpty() throws IOException
+    {
+        StateStack stateStack = recover(temporaryFolder.getRoot());
+
+        Assert.assertTrue(stateStack.isEmpty());
+    }
+
+    @Test
+    public void attachTo_afterMutations_shouldRecoverStack() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack());
+        StateStackFrame middleFrame = new StateStackCodecTest.ArticleFrame(2, "Two", 0, false);
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(middleFrame);
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(3, "Three", 0, false));
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.popToNextVisibleFrame();
+        stateStack.removeFrame(middleFrame);
+        journal.close();
+
+        StateStack recovered = recover(directory);
+
+        assertArticleIds(recovered, 1, -1, 3);
+    }
+
+    @Test
+    public void attachTo_afterRecovery_shouldKeepJournaling() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(new StateStack()).pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        journal.close();
+
+        journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(new StateStack()).pushFrame(new StateStackCodecTest.ArticleFrame(2, "Two", 0, false));
+        journal.close();
+
+        assertArticleIds(recover(directory), 1, 2);
+    }
+
+    @Test
+    public void attachTo_recovered_shouldNotCallPushedOrNotifyListeners() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(new StateStack()).pushFrame(new StateStackTest.ChainedPushStackFrame());
+        journal.close();
+        StateStack stateStack = new StateStack();
+        StateStack.TopFrameChangedListener mockListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockListener);
+
+        StateStackJournal.open(directory, new StateStackCodec()).attachTo(stateStack);
+
+        Assert.assertEquals(2, stateStack.getSize());
+        Mockito.verifyZeroInteractions(mockListener);
+    }
+
+    @Test
+    public void attachTo_nonEmptyStack_shouldReplaceJournaledStack() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(new StateStack()).pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        journal.close();
+
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(7, "Seven", 0, false));
+        journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(stateStack);
+        journal.close();
+
+        assertArticleIds(recover(directory), 7);
+    }
+
+    @Test
+    public void attachTo_nonEmptyStackThenCompactedBeforeCheckpoint_shouldRecoverReplacedStack() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        journal.attachTo(new StateStack()).pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        journal.close();
+
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(7, "Seven", 0, false));
+        journal = StateStackJournal.open(directory, new StateStackCodec())
+                .setCompactionThreshold(2)
+                .setCheckpointExecutor(new StateStackPostTest.ManualExecutor());
+        journal.attachTo(stateStack);
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(8, "Eight", 0, false));
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(9, "Nine", 0, false));
+
+        assertArticleIds(recover(directory), 7, 8, 9);
+    }
+
+    @Test
+    public void recordFrameState_changedState_shouldRecoverLatestState() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack());
+        StateStackCodecTest.ArticleFrame article = new StateStackCodecTest.ArticleFrame(1, "One", 0, false);
+        stateStack.pushFrame(article);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        article.scrollOffset = 250;
+        journal.recordFrameState(article);
+        journal.close();
+
+        StateStack recovered = recover(directory);
+        Assert.assertEquals(250, ((StateStackCodecTest.ArticleFrame) recovered.getVisibleFrameFromTopDown(2)).scrollOffset);
+        Assert.assertEquals(2, recovered.getSize());
+    }
+
+    @Test
+    public void edit_transaction_shouldRecoverCommittedStack() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack());
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.popToNextVisibleFrame();
+                stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(2, "Two", 0, false));
+                stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(3, "Three", 0, false));
+            }
+        });
+        stateStack.beginTransaction();
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(4, "Four", 0, false));
+        stateStack.rollbackTransaction();
+        journal.close();
+
+        assertArticleIds(recover(directory), 2, 3);
+    }
+
+    @Test
+    public void compaction_overThreshold_shouldRecoverFromCheckpointAndTail() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec()).setCompactionThreshold(5);
+        StateStack stateStack = journal.attachTo(new StateStack());
+        for(int i = 0; i < 23; i++)
+        {
+            stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(i, "Frame "+i, 0, false));
+            if(i % 3 == 2)
+                stateStack.popToNextVisibleFrame();
+        }
+        journal.close();
+
+        StateStack recovered = recover(directory);
+
+        Assert.assertEquals(16, recovered.getSize());
+        Assert.assertEquals(22, ((StateStackCodecTest.ArticleFrame) recovered.getTopVisibleFrame()).articleId);
+        Assert.assertTrue(new File(directory, "statestack.checkpoint").exists());
+    }
+
+    @Test
+    public void compaction_checkpointNotYetWritten_shouldRecoverFromPreviousGeneration() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackPostTest.ManualExecutor checkpointExecutor = new StateStackPostTest.ManualExecutor();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec())
+                .setCompactionThreshold(5)
+                .setCheckpointExecutor(checkpointExecutor);
+        StateStack stateStack = journal.attachTo(new StateStack());
+        for(int i = 0; i < 12; i++)
+            stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(i, "Frame "+i, 0, false));
+
+        //over the threshold twice, but the next generation waits for the first checkpoint
+        Assert.assertEquals(1, checkpointExecutor.tasks.size());
+        Assert.assertFalse(new File(directory, "statestack.checkpoint").exists());
+
+        //i.e. process killed before the checkpoint write ran
+        assertArticleIds(recover(directory), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        Assert.assertTrue(new File(directory, "statestack.checkpoint").exists());
+    }
+
+    @Test
+    public void compaction_checkpointWritten_shouldStartNextGeneration() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackPostTest.ManualExecutor checkpointExecutor = new StateStackPostTest.ManualExecutor();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec())
+                .setCompactionThreshold(5)
+                .setCheckpointExecutor(checkpointExecutor);
+        StateStack stateStack = journal.attachTo(new StateStack());
+        for(int i = 0; i < 12; i++)
+        {
+            stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(i, "Frame "+i, 0, false));
+            checkpointExecutor.runAll();
+        }
+        stateStack.popToNextVisibleFrame();
+
+        Assert.assertTrue(new File(directory, "statestack.checkpoint").exists());
+        journal.close();
+        assertArticleIds(recover(directory), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    }
+
+    @Test
+    public void attachTo_largeHistory_shouldReplayToLatestStack() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec()).setCompactionThreshold(Integer.MAX_VALUE);
+        StateStack stateStack = journal.attachTo(new StateStack());
+        for(int i = 0; i < 2000; i++)
+        {
+            stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(i, "Frame "+i, i, false));
+            if(i % 2 == 1)
+                stateStack.popToNextVisibleFrame();
+        }
+        journal.close();
+
+        StateStack recovered = recover(directory);
+
+        Assert.assertEquals(1000, recovered.getSize());
+        Assert.assertEquals(1998, ((StateStackCodecTest.ArticleFrame) recovered.getTopVisibleFrame()).articleId);
+    }
+
+    @Test
+    public void attachTo_concurrentStateStack_shouldJournalMutations() throws IOException
+    {
+        File directory = temporaryFolder.getRoot();
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new ConcurrentStateStack());
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(1, "One", 0, false));
+        stateStack.pushFrame(new StateStackCodecTest.ArticleFrame(2, "Two", 0, false));
+        journal.close();
+
+        ConcurrentStateStack recovered = new ConcurrentStateStack();
+        StateStackJournal.open(directory, new StateStackCodec()).attachTo(recovered);
+
+        Assert.assertEquals(2, recovered.getSnapshot().getSize());
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStack recover(File directory) throws IOException
+    {
+        StateStackJournal journal = StateStackJournal.open(directory, new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack());
+        journal.close();
+        return stateStack;
+    }
+
+    /**
+     * @param articleIds bottom up, -1 for a frame that is not an article
+     */
+    private static void assertArticleIds(StateStack stateStack, long... articleIds)
+    {
+        Assert.assertEquals(articleIds.length, stateStack.getSize());
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        for(int i = 0; i < articleIds.length; i++)
+        {
+            if(articleIds[i] == -1)
+                Assert.assertFalse(frames[i] instanceof StateStackCodecTest.ArticleFrame);
+            else
+                Assert.assertEquals(articleIds[i], ((StateStackCodecTest.ArticleFrame) frames[i]).articleId);
+        }
+    }
+}
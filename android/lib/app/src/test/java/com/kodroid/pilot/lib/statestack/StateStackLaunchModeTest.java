@@ -0,0 +1,194 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public class StateStackLaunchModeTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    //==========================================================//
+    // SINGLE_TOP
+    //==========================================================//
+
+    @Test
+    public void pushFrameSingleTop_sameTypeOnTop_shouldRedeliverAndNotPush()
+    {
+        StateStack stateStack = new StateStack();
+        RedeliveryRecordingFrame existing = new RedeliveryRecordingFrame();
+        stateStack.pushFrame(existing);
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        RedeliveryRecordingFrame duplicate = new RedeliveryRecordingFrame();
+        stateStack.pushFrame(duplicate, StateStack.LaunchMode.SINGLE_TOP);
+
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertSame(duplicate, existing.redeliveredFrame);
+        Assert.assertNull(duplicate.getParentStack());
+        Mockito.verifyZeroInteractions(mockedListener);
+    }
+
+    @Test
+    public void pushFrameSingleTop_sameTypeBelowTop_shouldPush()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new RedeliveryRecordingFrame());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        stateStack.pushFrame(new RedeliveryRecordingFrame(), StateStack.LaunchMode.SINGLE_TOP);
+
+        Assert.assertEquals(3, stateStack.getSize());
+    }
+
+    //==========================================================//
+    // CLEAR_TOP
+    //==========================================================//
+
+    @Test
+    public void pushFrameClearTop_sameTypeExists_shouldReplaceItAndNotifyOnce()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        StateStackTest.TestUIStackFrameLifecycleStub existing = new StateStackTest.TestUIStackFrameLifecycleStub();
+        stateStack.pushFrame(existing);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        StateStackTest.TestUIStackFrameLifecycleStub replacement = new StateStackTest.TestUIStackFrameLifecycleStub();
+        stateStack.pushFrame(replacement, StateStack.LaunchMode.CLEAR_TOP);
+
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertSame(replacement, stateStack.getTopVisibleFrame());
+        Assert.assertTrue(existing.popped);
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.same(replacement),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.FORWARD));
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    @Test
+    public void pushFrameClearTop_noSameType_shouldPush()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2(), StateStack.LaunchMode.CLEAR_TOP);
+
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    //==========================================================//
+    // SINGLE_TASK
+    //==========================================================//
+
+    @Test
+    public void pushFrameSingleTask_sameTypeDeeper_shouldPopAboveAndRedeliver()
+    {
+        StateStack stateStack = new StateStack();
+        RedeliveryRecordingFrame existing = new RedeliveryRecordingFrame();
+        stateStack.pushFrame(existing);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        RedeliveryRecordingFrame duplicate = new RedeliveryRecordingFrame();
+        stateStack.pushFrame(duplicate, StateStack.LaunchMode.SINGLE_TASK);
+
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertSame(existing, stateStack.getTopVisibleFrame());
+        Assert.assertSame(duplicate, existing.redeliveredFrame);
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.same(existing),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.BACK));
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    //==========================================================//
+    // Duplicate push window
+    //==========================================================//
+
+    @Test
+    public void pushFrame_duplicateWithinWindow_shouldBeDropped()
+    {
+        FakeClockStateStack stateStack = new FakeClockStateStack();
+        stateStack.setDuplicatePushWindow(500);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.now += 100;
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertEquals(1, stateStack.getSize());
+    }
+
+    @Test
+    public void pushFrame_duplicateAfterWindow_shouldPush()
+    {
+        FakeClockStateStack stateStack = new FakeClockStateStack();
+        stateStack.setDuplicatePushWindow(500);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.now += 500;
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    @Test
+    public void pushFrame_differentTypeWithinWindow_shouldPush()
+    {
+        FakeClockStateStack stateStack = new FakeClockStateStack();
+        stateStack.setDuplicatePushWindow(500);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    @Test
+    public void pushFrame_duplicateWithinWindowButPreviousPopped_shouldPush()
+    {
+        FakeClockStateStack stateStack = new FakeClockStateStack();
+        stateStack.setDuplicatePushWindow(500);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.popToNextVisibleFrame();
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertEquals(1, stateStack.getSize());
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class RedeliveryRecordingFrame extends StateStackFrame
+    {
+        StateStackFrame redeliveredFrame;
+
+        @Override
+        public void redelivered(StateStackFrame newFrame)
+        {
+            redeliveredFrame = newFrame;
+        }
+    }
+
+    static class FakeClockStateStack extends StateStack
+    {
+        long now = 1000;
+
+        @Override
+        long currentTimeMillis()
+        {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(JUnit4.class)
+public class StateStackPostTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test(expected = IllegalStateException.class)
+    public void post_noExecutor_shouldThrow()
+    {
+        new StateStack().postPopToNextVisibleFrame();
+    }
+
+    @Test
+    public void postPushFrame_directExecutor_shouldApplyImmediately()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.setMutationExecutor(new DirectExecutor());
+
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertEquals(1, stateStack.getSize());
+    }
+
+    @Test
+    public void post_severalBeforeDrain_shouldApplyInOrderWithOneNotification()
+    {
+        StateStack stateStack = new StateStack();
+        ManualExecutor executor = new ManualExecutor();
+        stateStack.setMutationExecutor(executor);
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame3());
+        Assert.assertEquals(0, stateStack.getSize());
+        Assert.assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+
+        Assert.assertEquals(3, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, stateStack.getFrameAtIndex(0).getClass());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame3.class, stateStack.getFrameAtIndex(2).getClass());
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.isA(StateStackTest.TestUIStackFrame3.class),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.FORWARD));
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    @Test
+    public void post_pushedThrows_shouldRollBackOnlyThatEditAndApplyOthers()
+    {
+        StateStack stateStack = new StateStack();
+        ManualExecutor executor = new ManualExecutor();
+        stateStack.setMutationExecutor(executor);
+
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.postPushFrame(new StateStackTransactionTest.ThrowingFrame());
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame2());
+
+        try
+        {
+            executor.runNext();
+            Assert.fail();
+        }
+        catch(IllegalArgumentException expected) {}
+
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, stateStack.getFrameAtIndex(0).getClass());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame2.class, stateStack.getFrameAtIndex(1).getClass());
+        Assert.assertFalse(stateStack.isInTransaction());
+        Assert.assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void post_editThrowsAfterChangingStack_shouldRollBackOnlyItsChanges()
+    {
+        StateStack stateStack = new StateStack();
+        ManualExecutor executor = new ManualExecutor();
+        stateStack.setMutationExecutor(executor);
+        final StateStackFrame bottomFrame = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(bottomFrame);
+        final StateStackFrame poppedFrame = Mockito.spy(new StateStackTest.TestUIStackFrame2());
+        final StateStackFrame discardedFrame = Mockito.spy(new StateStackTest.TestUIStackFrame3());
+
+        stateStack.postPushFrame(poppedFrame);
+        stateStack.postPopTopFrameInstance(poppedFrame);
+        stateStack.post(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.pushFrame(poppedFrame); //popped earlier in the batch
+                stateStack.pushFrame(discardedFrame);
+                throw new IllegalStateException();
+            }
+        });
+
+        try
+        {
+            executor.runNext();
+            Assert.fail();
+        }
+        catch(IllegalStateException expected) {}
+
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertSame(bottomFrame, stateStack.getTopVisibleFrame());
+        Mockito.verify(poppedFrame).popped();
+        Assert.assertFalse(poppedFrame.isOnStack());
+        Mockito.verify(discardedFrame).popped();
+        Assert.assertFalse(discardedFrame.isOnStack());
+    }
+
+    @Test
+    public void post_executorRejects_shouldThrowAndScheduleOnNextPost()
+    {
+        StateStack stateStack = new StateStack();
+        ManualExecutor executor = new ManualExecutor();
+        stateStack.setMutationExecutor(executor);
+        executor.rejecting = true;
+
+        try
+        {
+            stateStack.postPushFrame(new StateStackTest.TestUIStackFrame1());
+            Assert.fail();
+        }
+        catch(RejectedExecutionException expected) {}
+        executor.rejecting = false;
+        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame2());
+        executor.runAll();
+
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    @Test
+    public void post_manyProducerThreads_shouldApplyAllOnExecutorThread() throws Exception
+    {
+        final Thread[] executorThread = new Thread[1];
+        ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return executorThread[0] = new Thread(runnable);
+            }
+        });
+
+        final StateStack stateStack = new StateStack();
+        stateStack.setMutationExecutor(executorService);
+        final AtomicBoolean listenerOffExecutorThread = new AtomicBoolean();
+        stateStack.addTopFrameChangedListener(new StateStack.TopFrameChangedListener()
+        {
+            @Override
+            public void topVisibleFrameUpdated(StateStackFrame topVisibleFrame, Direction direction)
+            {
+                if(Thread.currentThread() != executorThread[0])
+                    listenerOffExecutorThread.set(true);
+            }
+        });
+
+        final int producers = 4;
+        final int postsPerProducer = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int p = 0; p < producers; p++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                    for(int i = 0; i < postsPerProducer; i++)
+                        stateStack.postPushFrame(new StateStackTest.TestUIStackFrame1());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for(Thread thread : threads)
+        {
+            thread.join(30000);
+            Assert.assertFalse(thread.isAlive()); //all posted before shutdown, or posts would be dropped
+        }
+        //a drain still running at shutdown would have its reschedule rejected, so wait until a last edit is applied
+        final CountDownLatch drained = new CountDownLatch(1);
+        stateStack.post(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                drained.countDown();
+            }
+        });
+        Assert.assertTrue(drained.await(30, TimeUnit.SECONDS));
+
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals(producers * postsPerProducer, stateStack.getSize());
+        Assert.assertFalse(listenerOffExecutorThread.get());
+    }
+
+    //==================================================================//
+    // Executors
+    //==================================================================//
+
+    static class DirectExecutor implements Executor
+    {
+        @Override
+        public void execute(Runnable runnable)
+        {
+            runnable.run();
+        }
+    }
+
+    static class ManualExecutor implements Executor
+    {
+        final List<Runnable> tasks = new ArrayList<>();
+        boolean rejecting;
+
+        @Override
+        public void execute(Runnable runnable)
+        {
+            if(rejecting)
+                throw new RejectedExecutionException();
+            tasks.add(runnable);
+        }
+
+        void runNext()
+        {
+            tasks.remove(0).run();
+        }
+
+        void runAll()
+        {
+            while(!tasks.isEmpty())
+                runNext();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public class StateStackReentrancyTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void pushFrame_listenerPushesFrame_shouldNotDispatchRecursively()
+    {
+        final StateStack stateStack = new StateStack();
+        final int[] dispatchDepth = new int[1];
+        final int[] maxDispatchDepth = new int[1];
+        stateStack.addTopFrameChangedListener(new StateStack.TopFrameChangedListener()
+        {
+            @Override
+            public void topVisibleFrameUpdated(StateStackFrame topVisibleFrame, Direction direction)
+            {
+                maxDispatchDepth[0] = Math.max(maxDispatchDepth[0], ++dispatchDepth[0]);
+                if(topVisibleFrame instanceof StateStackTest.TestUIStackFrame1)
+                    stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+                dispatchDepth[0]--;
+            }
+        });
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertEquals(1, maxDispatchDepth[0]);
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame2.class, stateStack.getTopVisibleFrame().getClass());
+    }
+
+    @Test
+    public void pushFrame_frameRedirectsFromPushed_listenerShouldReceiveOneNotificationForRedirect()
+    {
+        StateStack stateStack = new StateStack();
+        StateStack.TopFrameChangedListener mockListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockListener);
+        InOrder inOrder = Mockito.inOrder(mockListener);
+        RedirectFrame redirectFrame = new RedirectFrame();
+
+        stateStack.pushFrame(redirectFrame);
+
+        inOrder.verify(mockListener).topVisibleFrameUpdated(Matchers.same(redirectFrame), Matchers.eq(
+                StateStack.TopFrameChangedListener.Direction.FORWARD));
+        inOrder.verify(mockListener).topVisibleFrameUpdated(Matchers.isA(StateStackTest.TestUIStackFrame1.class), Matchers.eq(
+                StateStack.TopFrameChangedListener.Direction.FORWARD));
+        Mockito.verifyNoMoreInteractions(mockListener);
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertTrue(redirectFrame.popped);
+    }
+
+    @Test
+    public void pushFrame_nestedRedirects_shouldCallPushedOneAtATime()
+    {
+        StateStack stateStack = new StateStack();
+        NestedRedirectFrame.inPushed = false;
+
+        stateStack.pushFrame(new NestedRedirectFrame(3));
+
+        Assert.assertEquals(5, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame1.class, stateStack.getTopVisibleFrame().getClass());
+    }
+
+    @Test
+    public void popToNextVisibleFrame_poppedFramePushes_shouldApplyAfterPop()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new PushOnPoppedFrame());
+        StateStack.TopFrameChangedListener mockListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockListener);
+        InOrder inOrder = Mockito.inOrder(mockListener);
+
+        stateStack.popToNextVisibleFrame();
+
+        inOrder.verify(mockListener).topVisibleFrameUpdated(Matchers.isA(StateStackTest.TestUIStackFrame1.class), Matchers.eq(
+                StateStack.TopFrameChangedListener.Direction.BACK));
+        inOrder.verify(mockListener).topVisibleFrameUpdated(Matchers.isA(StateStackTest.TestUIStackFrame2.class), Matchers.eq(
+                StateStack.TopFrameChangedListener.Direction.FORWARD));
+        Mockito.verifyNoMoreInteractions(mockListener);
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    @Test
+    public void pushFrame_framePushedThrowsAfterRedirect_shouldDiscardRedirect()
+    {
+        StateStack stateStack = new StateStack();
+
+        try
+        {
+            stateStack.pushFrame(new StateStackFrame()
+            {
+                @Override
+                public void pushed()
+                {
+                    getParentStack().pushFrame(new StateStackTest.TestUIStackFrame1());
+                    throw new IllegalArgumentException("boom");
+                }
+            });
+            Assert.fail();
+        }
+        catch(IllegalArgumentException expected) {}
+
+        Assert.assertEquals(1, stateStack.getSize());
+        Assert.assertEquals(0, stateStack.getFrameCountOfType(StateStackTest.TestUIStackFrame1.class));
+    }
+
+    @Test
+    public void edit_framePushesFromPushed_shouldApplyInline()
+    {
+        StateStack stateStack = new StateStack();
+
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.pushFrame(new StateStackTest.ChainedPushStackFrame());
+                Assert.assertEquals(2, stateStack.getSize());
+            }
+        });
+
+        Assert.assertEquals(2, stateStack.getSize());
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class RedirectFrame extends StateStackFrame
+    {
+        boolean popped;
+
+        @Override
+        public void pushed()
+        {
+            getParentStack().popTopFrameInstance(this);
+            getParentStack().pushFrame(new StateStackTest.TestUIStackFrame1());
+        }
+
+        @Override
+        public void popped()
+        {
+            popped = true;
+        }
+    }
+
+    static class NestedRedirectFrame extends StateStackFrame
+    {
+        static boolean inPushed;
+
+        private final int remainingRedirects;
+
+        NestedRedirectFrame(int remainingRedirects)
+        {
+            this.remainingRedirects = remainingRedirects;
+        }
+
+        @Override
+        public void pushed()
+        {
+            Assert.assertFalse("pushed() called re-entrantly", inPushed);
+            inPushed = true;
+            if(remainingRedirects == 0)
+                getParentStack().pushFrame(new StateStackTest.TestUIStackFrame1());
+            else
+                getParentStack().pushFrame(new NestedRedirectFrame(remainingRedirects - 1));
+            inPushed = false;
+        }
+    }
+
+    static class PushOnPoppedFrame extends StateStackFrame
+    {
+        private StateStack parentStack;
+
+        @Override
+        public void pushed()
+        {
+            parentStack = getParentStack();
+        }
+
+        @Override
+        public void popped()
+        {
+            parentStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class StateStackSnapshotTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void push_onSnapshot_shouldLeaveOriginalUnchanged()
+    {
+        StateStackFrame frame1 = new StateStackTest.TestUIStackFrame1();
+        StateStackSnapshot one = StateStackSnapshot.empty().push(frame1);
+
+        StateStackSnapshot two = one.push(new StateStackTest.TestUIStackFrame2());
+
+        Assert.assertEquals(1, one.getSize());
+        Assert.assertEquals(2, two.getSize());
+        Assert.assertSame(frame1, two.getFrameAtIndex(0));
+        Assert.assertTrue(one.hasSameVisibleFramesAs(two.pop()));
+        Assert.assertSame(two, two.truncate(2));
+    }
+
+    @Test
+    public void push_onSnapshot_shouldNotCallFrameLifecycle()
+    {
+        StateStackTest.TestUIStackFrameLifecycleStub frame = new StateStackTest.TestUIStackFrameLifecycleStub();
+
+        StateStackSnapshot.empty().push(frame).pop();
+
+        Assert.assertFalse(frame.popped);
+        Assert.assertNull(frame.getParentStack());
+    }
+
+    @Test
+    public void popToNextVisibleFrame_hiddenFramesOnTop_shouldRemoveThem()
+    {
+        StateStackFrame frame1 = new StateStackTest.TestUIStackFrame1();
+        StateStackSnapshot snapshot = StateStackSnapshot.empty()
+                .push(frame1)
+                .push(new StateStackTest.TestHiddenDataStackFrame())
+                .push(new StateStackTest.TestUIStackFrame2())
+                .push(new StateStackTest.TestHiddenDataStackFrame());
+
+        StateStackSnapshot popped = snapshot.popToNextVisibleFrame();
+
+        Assert.assertEquals(1, popped.getSize());
+        Assert.assertSame(frame1, popped.getTopVisibleFrame());
+        Assert.assertTrue(popped.popToNextVisibleFrame().isEmpty());
+    }
+
+    @Test
+    public void remove_middleFrame_shouldKeepVisibleViewConsistent()
+    {
+        StateStackFrame frame1 = new StateStackTest.TestUIStackFrame1();
+        StateStackFrame frame2 = new StateStackTest.TestUIStackFrame2();
+        StateStackFrame frame3 = new StateStackTest.TestUIStackFrame3();
+        StateStackSnapshot snapshot = StateStackSnapshot.empty().push(frame1).push(frame2).push(frame3);
+
+        StateStackSnapshot removed = snapshot.remove(frame2);
+
+        Assert.assertEquals(2, removed.getVisibleFrameCount());
+        Assert.assertSame(frame3, removed.getVisibleFrameFromTopDown(1));
+        Assert.assertSame(frame1, removed.getVisibleFrameFromTopDown(2));
+        Assert.assertEquals(-1, removed.indexOf(frame2));
+        Assert.assertEquals(3, snapshot.getSize());
+    }
+
+    @Test
+    public void popAtFrameType_exclusive_shouldKeepFrameOfType()
+    {
+        StateStackSnapshot snapshot = StateStackSnapshot.empty()
+                .push(new StateStackTest.TestUIStackFrame1())
+                .push(new StateStackTest.TestUIStackFrame2())
+                .push(new StateStackTest.TestUIStackFrame3());
+
+        StateStackSnapshot popped = snapshot.popAtFrameType(StateStackTest.TestUIStackFrame2.class, StateStack.PopType.EXCLUSIVE);
+
+        Assert.assertEquals(2, popped.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame2.class, popped.getTopFrame().getClass());
+    }
+
+    @Test
+    public void apply_operation_shouldReturnOperationResult()
+    {
+        final StateStackFrame frame = new StateStackTest.TestUIStackFrame1();
+        StateStackSnapshot.Operation openFrame = new StateStackSnapshot.Operation()
+        {
+            @Override
+            public StateStackSnapshot applyTo(StateStackSnapshot snapshot)
+            {
+                return snapshot.push(frame);
+            }
+        };
+
+        StateStackSnapshot result = StateStackSnapshot.empty().apply(openFrame);
+
+        Assert.assertSame(frame, result.getTopVisibleFrame());
+    }
+
+    @Test
+    public void getSnapshot_noMutation_shouldReturnSameInstance()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Assert.assertSame(stateStack.getSnapshot(), stateStack.getSnapshot());
+    }
+
+    @Test
+    public void getSnapshot_afterMutations_shouldMatchStackAndPreviousSnapshotsUnchanged()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.registerIndexedType(StateStackTypeIndexTest.TestScope.class);
+        StateStackFrame session = new StateStackTypeIndexTest.TestSessionFrame();
+        stateStack.pushFrame(session);
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        StateStackSnapshot before = stateStack.getSnapshot();
+
+        StateStackFrame frame1 = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(frame1);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.popToNextVisibleFrame();
+        StateStackSnapshot after = stateStack.getSnapshot();
+
+        Assert.assertEquals(2, before.getSize());
+        Assert.assertEquals(3, after.getSize());
+        Assert.assertSame(frame1, after.getTopVisibleFrame());
+        Assert.assertSame(session, after.getTopFrameOfType(StateStackTypeIndexTest.TestScope.class));
+        Assert.assertTrue(after.hasSameVisibleFramesAs(after.pop().push(frame1)));
+        Assert.assertFalse(after.hasSameVisibleFramesAs(before));
+    }
+
+    @Test
+    public void randomOperations_manyIterations_positionalReadsShouldMatchStack()
+    {
+        Random random = new Random(9);
+        StateStack stateStack = new StateStack();
+        StateStackSnapshot previous = stateStack.getSnapshot();
+        StateStackFrame[] previousFrames = previous.toArray();
+
+        for(int i = 0; i < 3000; i++)
+        {
+            int op = random.nextInt(8);
+            if(op < 4 || stateStack.isEmpty())
+                stateStack.pushFrame(random.nextBoolean() ? new StateStackTest.TestUIStackFrame1() : new StateStackTest.TestHiddenDataStackFrame());
+            else if(op == 4)
+                stateStack.popToNextVisibleFrame();
+            else if(op == 5)
+                stateStack.removeFrame(stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize())));
+            else
+                stateStack.popAtFrameInstance(stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize())), StateStack.PopType.EXCLUSIVE, true);
+
+            StateStackSnapshot snapshot = stateStack.getSnapshot();
+            Assert.assertEquals(stateStack.getSize(), snapshot.getSize());
+            for(int index = 0; index < stateStack.getSize(); index++)
+            {
+                StateStackFrame frame = stateStack.getFrameAtIndex(index);
+                Assert.assertSame(frame, snapshot.getFrameAtIndex(index));
+                Assert.assertEquals(index, snapshot.indexOf(frame));
+            }
+
+            //earlier snapshots are unaffected
+            Assert.assertArrayEquals(previousFrames, previous.toArray());
+            for(int index = 0; index < previousFrames.length; index++)
+                Assert.assertSame(previousFrames[index], previous.getFrameAtIndex(index));
+            previous = snapshot;
+            previousFrames = snapshot.toArray();
+        }
+    }
+
+    @Test
+    public void getSnapshot_afterRollback_shouldMatchStartOfTransaction()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        StateStackSnapshot start = stateStack.getSnapshot();
+
+        stateStack.beginTransaction();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.rollbackTransaction();
+
+        Assert.assertEquals(1, stateStack.getSnapshot().getSize());
+        Assert.assertTrue(stateStack.getSnapshot().hasSameVisibleFramesAs(start));
+    }
+}
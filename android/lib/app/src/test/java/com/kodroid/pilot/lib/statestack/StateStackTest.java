@@ -10,6 +10,10 @@ import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @RunWith(JUnit4.class)
 public class StateStackTest extends TestCase
 {
@@ -422,6 +426,104 @@ public class StateStackTest extends TestCase
         Assert.assertEquals(1, stateStack.getSize());
     }
 
+    //==================================================================//
+    // forEachVisibleFrameFromTopDown()
+    //==================================================================//
+
+    @Test
+    public void forEachVisibleFrameFromTopDown_stackAndSnapshot_shouldVisitVisibleFramesTopDownUntilStopped()
+    {
+        StateStack stateStack = new StateStack();
+        final StateStackFrame bottom = new TestUIStackFrame1();
+        StateStackFrame middle = new TestUIStackFrame2();
+        StateStackFrame top = new TestUIStackFrame3();
+        stateStack.pushFrame(bottom);
+        stateStack.pushFrame(middle);
+        stateStack.pushFrame(new TestHiddenDataStackFrame());
+        stateStack.pushFrame(top);
+
+        final List<StateStackFrame> visited = new ArrayList<>();
+        StateStack.VisibleFrameVisitor visitor = new StateStack.VisibleFrameVisitor()
+        {
+            @Override
+            public boolean visitFrame(StateStackFrame frame)
+            {
+                visited.add(frame);
+                return frame != bottom;
+            }
+        };
+        stateStack.forEachVisibleFrameFromTopDown(visitor);
+        stateStack.getSnapshot().forEachVisibleFrameFromTopDown(visitor);
+
+        Assert.assertEquals(Arrays.asList(top, middle, bottom, top, middle, bottom), visited);
+    }
+
+    //==================================================================//
+    // setStarted()
+    //==================================================================//
+
+    @Test
+    public void setStarted_repeatedState_listenerShouldOnlyBeCalledOnChange()
+    {
+        StateStack stateStack = new StateStack();
+        StateStack.StartedStateListener listener = Mockito.mock(StateStack.StartedStateListener.class);
+        stateStack.addStartedStateListener(listener);
+
+        stateStack.setStarted(true);
+        stateStack.setStarted(true);
+        stateStack.setStarted(false);
+        stateStack.setStarted(false);
+
+        Mockito.verify(listener, Mockito.times(1)).stackStartedStateChanged(true);
+        Mockito.verify(listener, Mockito.times(1)).stackStartedStateChanged(false);
+        Assert.assertFalse(stateStack.isStarted());
+    }
+
+    @Test
+    public void setStarted_listenerPushesFrame_pushShouldBeDeferredUntilAllListenersCalled()
+    {
+        final StateStack stateStack = new StateStack();
+        final List<Integer> stackSizes = new ArrayList<>();
+        stateStack.addStartedStateListener(new StateStack.StartedStateListener()
+        {
+            @Override
+            public void stackStartedStateChanged(boolean started)
+            {
+                stateStack.pushFrame(new TestUIStackFrame1());
+            }
+        });
+        stateStack.addStartedStateListener(new StateStack.StartedStateListener()
+        {
+            @Override
+            public void stackStartedStateChanged(boolean started)
+            {
+                stackSizes.add(stateStack.getSize());
+            }
+        });
+
+        stateStack.setStarted(true);
+
+        Assert.assertEquals(Arrays.asList(0), stackSizes);
+        Assert.assertEquals(1, stateStack.getSize());
+    }
+
+    @Test
+    public void notifyFrameViewVisible_repeatedAndPopped_shouldOnlyCallbackOnChange()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackFrame frame = Mockito.spy(new TestUIStackFrame1());
+        stateStack.pushFrame(frame);
+
+        frame.notifyFrameViewVisible(true);
+        frame.notifyFrameViewVisible(true);
+        Assert.assertTrue(frame.isFrameViewVisible());
+        stateStack.popTopFrameInstance(frame);
+
+        Mockito.verify(frame, Mockito.times(1)).frameViewVisible(true);
+        Mockito.verify(frame, Mockito.never()).frameViewVisible(false);
+        Assert.assertFalse(frame.isFrameViewVisible());
+    }
+
     //==================================================================//
     // Push chains and listener callback order
     //==================================================================//
@@ -475,7 +577,7 @@ public class StateStackTest extends TestCase
     //todo spy instead with frame factory
     public static class TestUIStackFrameLifecycleStub extends StateStackFrame
     {
-        private boolean popped;
+        boolean popped;
 
         @Override
         public void popped() {
@@ -0,0 +1,274 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+@RunWith(JUnit4.class)
+public class StateStackTombstoneTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void resetCounters()
+    {
+        LinkedItemFrame.recreateCount = 0;
+    }
+
+    @Test
+    public void pushFrame_overMaxVisibleDepth_shouldTombstoneOldestVisibleFrames()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack().setMaxVisibleDepth(3), 10);
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        for(int i = 0; i < frames.length; i++)
+            Assert.assertEquals(i < 7, isTombstone(frames[i]));
+        Assert.assertEquals(10, stateStack.getSize());
+        Assert.assertEquals(10, stateStack.getVisibleFrameCount());
+        Assert.assertEquals(0, LinkedItemFrame.recreateCount);
+    }
+
+    @Test
+    public void pushFrame_deepBoundedStack_shouldOnlyRebuildSnapshotFromNewlyTombstonedFrame()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack().setMaxVisibleDepth(3), 300);
+        StateStackSnapshot before = stateStack.getSnapshot();
+
+        stateStack.pushFrame(new LinkedItemFrame(300));
+
+        Assert.assertEquals(300 - 3, stateStack.getSnapshot().getSharedBaseSize(before));
+        Assert.assertTrue(isTombstone(stateStack.getSnapshot().toArray()[300 - 3]));
+    }
+
+    @Test
+    public void pushFrame_afterNavigatingBackIntoTombstones_shouldTombstoneRecreatedFramesAgain()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack().setMaxVisibleDepth(2), 10);
+        for(int i = 0; i < 4; i++)
+            stateStack.popToNextVisibleFrame();
+        Assert.assertTrue(isRecreated(stateStack.getSnapshot().toArray()[5]));
+
+        for(int itemId = 6; itemId < 10; itemId++)
+            stateStack.pushFrame(new LinkedItemFrame(itemId));
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        for(int i = 0; i < frames.length; i++)
+            Assert.assertEquals(i < 8, isTombstone(frames[i]) && !isRecreated(frames[i]));
+    }
+
+    @Test
+    public void pushFrame_noMaxVisibleDepth_shouldNotTombstone()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack(), 10);
+
+        for(StateStackFrame frame : stateStack.getSnapshot().toArray())
+            Assert.assertFalse(isTombstone(frame));
+    }
+
+    @Test
+    public void popToNextVisibleFrame_intoTombstone_shouldRecreateFrameFromArguments()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack().setMaxVisibleDepth(2), 5);
+        LinkedItemFrame original = (LinkedItemFrame) stateStack.getSnapshot().toArray()[4];
+        Assert.assertNotNull(original.loadedContent);
+
+        for(int itemId = 3; itemId >= 0; itemId--)
+        {
+            stateStack.popToNextVisibleFrame();
+            LinkedItemFrame topFrame = (LinkedItemFrame) stateStack.getTopVisibleFrame();
+            Assert.assertEquals(itemId, topFrame.itemId);
+            Assert.assertSame(stateStack, topFrame.getParentStack());
+        }
+        Assert.assertEquals(3, LinkedItemFrame.recreateCount);
+        Assert.assertNull(((LinkedItemFrame) stateStack.getTopVisibleFrame()).loadedContent);
+    }
+
+    @Test
+    public void popToNextVisibleFrame_withTombstonesAndHiddenFrames_shouldMatchUnboundedStack()
+    {
+        StateStack bounded = new StateStack().setMaxVisibleDepth(2);
+        StateStack unbounded = new StateStack();
+        for(int i = 0; i < 12; i++)
+        {
+            bounded.pushFrame(i % 3 == 0 ? new HiddenLinkedItemFrame(i) : new LinkedItemFrame(i));
+            unbounded.pushFrame(i % 3 == 0 ? new HiddenLinkedItemFrame(i) : new LinkedItemFrame(i));
+        }
+
+        while(unbounded.doesContainVisibleFrame())
+        {
+            Assert.assertEquals(unbounded.getSize(), bounded.getSize());
+            Assert.assertEquals(unbounded.getVisibleFrameCount(), bounded.getVisibleFrameCount());
+            Assert.assertEquals(((LinkedItemFrame) unbounded.getTopVisibleFrame()).itemId, ((LinkedItemFrame) bounded.getTopVisibleFrame()).itemId);
+            unbounded.popToNextVisibleFrame();
+            bounded.popToNextVisibleFrame();
+        }
+        Assert.assertEquals(unbounded.getSize(), bounded.getSize());
+    }
+
+    @Test
+    public void pushFrame_hiddenOrNotTombstonableFrames_shouldNeverTombstone()
+    {
+        StateStack stateStack = new StateStack().setMaxVisibleDepth(1);
+        StateStackFrame hiddenFrame = new HiddenLinkedItemFrame(0);
+        StateStackFrame plainFrame = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(hiddenFrame);
+        stateStack.pushFrame(plainFrame);
+        stateStack.pushFrame(new LinkedItemFrame(2));
+        stateStack.pushFrame(new LinkedItemFrame(3));
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        Assert.assertSame(hiddenFrame, frames[0]);
+        Assert.assertSame(plainFrame, frames[1]);
+        Assert.assertTrue(isTombstone(frames[2]));
+        Assert.assertFalse(isTombstone(frames[3]));
+    }
+
+    @Test
+    public void getFrameOfType_hiddenScopeFrameBelowTombstones_shouldReturnOriginalInstance()
+    {
+        StateStack stateStack = new StateStack().setMaxVisibleDepth(1);
+        HiddenLinkedItemFrame scopeFrame = new HiddenLinkedItemFrame(0);
+        stateStack.pushFrame(scopeFrame);
+        createLinkedItemStack(stateStack, 5);
+
+        Assert.assertSame(scopeFrame, stateStack.getFrameOfType(HiddenLinkedItemFrame.class));
+    }
+
+    @Test
+    public void setMaxVisibleDepth_existingDeepStack_shouldTombstoneStraightAway()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack(), 6);
+
+        stateStack.setMaxVisibleDepth(4);
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        Assert.assertTrue(isTombstone(frames[1]));
+        Assert.assertFalse(isTombstone(frames[2]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxVisibleDepth_negative_shouldThrow()
+    {
+        new StateStack().setMaxVisibleDepth(-1);
+    }
+
+    @Test
+    public void encode_tombstones_shouldRestoreAsTombstones()
+    {
+        StateStack stateStack = createLinkedItemStack(new StateStack().setMaxVisibleDepth(2), 5);
+        byte[] encoded = new StateStackCodec().encode(stateStack);
+
+        StateStack restored = new StateStackCodec().decode(encoded, new StateStack());
+
+        StateStackFrame[] frames = restored.getSnapshot().toArray();
+        for(int i = 0; i < frames.length; i++)
+            Assert.assertEquals(i < 3, isTombstone(frames[i]));
+        Assert.assertEquals(1, ((LinkedItemFrame) restored.getVisibleFrameFromTopDown(4)).itemId);
+    }
+
+    @Test
+    public void pushFrame_concurrentStateStack_shouldPublishTombstones()
+    {
+        ConcurrentStateStack stateStack = new ConcurrentStateStack();
+        stateStack.setMaxVisibleDepth(1);
+        createLinkedItemStack(stateStack, 3);
+
+        StateStackFrame[] frames = stateStack.getSnapshot().toArray();
+        Assert.assertTrue(isTombstone(frames[0]));
+        Assert.assertTrue(isTombstone(frames[1]));
+        Assert.assertEquals(0, ((LinkedItemFrame) stateStack.getSnapshot().getFrameAtIndex(0)).itemId);
+    }
+
+    @Test
+    public void pushFrame_journaledBoundedStack_shouldRecoverAllFrames() throws IOException
+    {
+        StateStackJournal journal = StateStackJournal.open(temporaryFolder.getRoot(), new StateStackCodec());
+        StateStack stateStack = journal.attachTo(new StateStack().setMaxVisibleDepth(2));
+        createLinkedItemStack(stateStack, 6);
+        stateStack.popToNextVisibleFrame();
+        journal.close();
+
+        journal = StateStackJournal.open(temporaryFolder.getRoot(), new StateStackCodec());
+        StateStack recovered = journal.attachTo(new StateStack());
+        journal.close();
+
+        Assert.assertEquals(5, recovered.getSize());
+        for(int i = 0; i < 5; i++)
+            Assert.assertEquals(i, ((LinkedItemFrame) recovered.getFrameAtIndex(i)).itemId);
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static StateStack createLinkedItemStack(StateStack stateStack, int size)
+    {
+        for(int i = 0; i < size; i++)
+            stateStack.pushFrame(new LinkedItemFrame(i));
+        return stateStack;
+    }
+
+    private static boolean isTombstone(StateStackFrame frame)
+    {
+        return frame instanceof UndecodedStateStackFrame && ((UndecodedStateStackFrame) frame).isTombstone();
+    }
+
+    private static boolean isRecreated(StateStackFrame frame)
+    {
+        return UndecodedStateStackFrame.resolveIfDecoded(frame) != frame;
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class LinkedItemFrame extends StateStackFrame implements TombstonableStateStackFrame, Serializable
+    {
+        static int recreateCount;
+
+        long itemId;
+        transient String loadedContent;
+
+        LinkedItemFrame() {}
+
+        LinkedItemFrame(long itemId)
+        {
+            this.itemId = itemId;
+            this.loadedContent = "Content of "+itemId;
+        }
+
+        @Override
+        public void saveArguments(FrameStateWriter out)
+        {
+            out.putLong("itemId", itemId);
+        }
+
+        @Override
+        public void recreate(FrameStateReader arguments)
+        {
+            recreateCount++;
+            itemId = arguments.getLong("itemId", -1);
+        }
+    }
+
+    @HiddenStateStackFrame
+    static class HiddenLinkedItemFrame extends LinkedItemFrame
+    {
+        HiddenLinkedItemFrame() {}
+
+        HiddenLinkedItemFrame(long itemId)
+        {
+            super(itemId);
+        }
+    }
+}
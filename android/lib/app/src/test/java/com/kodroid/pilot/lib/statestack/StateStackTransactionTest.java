@@ -0,0 +1,274 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public class StateStackTransactionTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    //==========================================================//
+    // Commit
+    //==========================================================//
+
+    @Test
+    public void edit_popToRootThenPushTwo_listenerCalledOnceWithFinalTop()
+    {
+        final StateStack stateStack = new StateStack();
+        final StateStackFrame root = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(root);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.popAtFrameInstance(root, StateStack.PopType.EXCLUSIVE, true);
+                stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+                stateStack.pushFrame(new StateStackTest.TestUIStackFrame3());
+            }
+        });
+
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.isA(StateStackTest.TestUIStackFrame3.class),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.FORWARD));
+        Mockito.verifyNoMoreInteractions(mockedListener);
+        Assert.assertEquals(3, stateStack.getSize());
+    }
+
+    @Test
+    public void edit_popTwoFrames_listenerCalledOnceWithBack()
+    {
+        final StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame3());
+
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.popToNextVisibleFrame();
+                stateStack.popToNextVisibleFrame();
+            }
+        });
+
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.isA(StateStackTest.TestUIStackFrame1.class),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.BACK));
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    @Test
+    public void edit_pushThenPopSameFrame_listenerNotCalled()
+    {
+        final StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+                stateStack.popToNextVisibleFrame();
+            }
+        });
+
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    @Test
+    public void edit_clearStack_emptyListenerCalledOnce()
+    {
+        final StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+
+        StateStack.StackEmptyListener mockedListener = Mockito.mock(StateStack.StackEmptyListener.class);
+        stateStack.setStackEmptyListener(mockedListener);
+
+        stateStack.edit(new StateStack.Edit()
+        {
+            @Override
+            public void apply(StateStack stateStack)
+            {
+                stateStack.popToNextVisibleFrame();
+                stateStack.popToNextVisibleFrame();
+            }
+        });
+
+        Mockito.verify(mockedListener).noVisibleFramesLeft();
+        Mockito.verifyNoMoreInteractions(mockedListener);
+    }
+
+    @Test
+    public void commitTransaction_nested_onlyOuterCommitNotifies()
+    {
+        StateStack stateStack = new StateStack();
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+
+        stateStack.beginTransaction();
+        stateStack.beginTransaction();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.commitTransaction();
+        Mockito.verifyZeroInteractions(mockedListener);
+        stateStack.commitTransaction();
+
+        Mockito.verify(mockedListener).topVisibleFrameUpdated(
+                Matchers.isA(StateStackTest.TestUIStackFrame1.class),
+                Matchers.eq(StateStack.TopFrameChangedListener.Direction.FORWARD));
+    }
+
+    @Test
+    public void commitTransaction_framePopped_poppedCalledOnCommit()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackTest.TestUIStackFrameLifecycleStub frame = new StateStackTest.TestUIStackFrameLifecycleStub();
+        stateStack.pushFrame(frame);
+
+        stateStack.beginTransaction();
+        stateStack.popTopFrameInstance(frame);
+        Assert.assertFalse(frame.popped);
+        stateStack.commitTransaction();
+
+        Assert.assertTrue(frame.popped);
+        Assert.assertNull(frame.getParentStack());
+    }
+
+    @Test
+    public void commitTransaction_framePoppedThenRepushed_poppedNotCalled()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackTest.TestUIStackFrameLifecycleStub frame = new StateStackTest.TestUIStackFrameLifecycleStub();
+        StateStackTest.TestUIStackFrameLifecycleStub poppedFrame = new StateStackTest.TestUIStackFrameLifecycleStub();
+        stateStack.pushFrame(frame);
+        stateStack.pushFrame(poppedFrame);
+
+        stateStack.beginTransaction();
+        stateStack.popTopFrameInstance(poppedFrame);
+        stateStack.popTopFrameInstance(frame);
+        stateStack.pushFrame(frame);
+        stateStack.commitTransaction();
+
+        Assert.assertFalse(frame.popped);
+        Assert.assertSame(stateStack, frame.getParentStack());
+        Assert.assertTrue(poppedFrame.popped);
+        Assert.assertNull(poppedFrame.getParentStack());
+    }
+
+    @Test
+    public void commitTransaction_framePoppedThenRepushed_pushedCalledOnce()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackFrame frame = Mockito.spy(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(frame);
+
+        stateStack.beginTransaction();
+        stateStack.popTopFrameInstance(frame);
+        stateStack.pushFrame(frame);
+        stateStack.commitTransaction();
+
+        Mockito.verify(frame, Mockito.times(1)).pushed();
+        Mockito.verify(frame, Mockito.never()).popped();
+        Assert.assertTrue(frame.isOnStack());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void commitTransaction_noTransaction_shouldThrow()
+    {
+        new StateStack().commitTransaction();
+    }
+
+    //==========================================================//
+    // Rollback
+    //==========================================================//
+
+    @Test
+    public void edit_pushedThrows_shouldRestoreStackAndNotNotify()
+    {
+        final StateStack stateStack = new StateStack();
+        final StateStackFrame bottom = new StateStackTest.TestUIStackFrame1();
+        final StateStackTest.TestUIStackFrameLifecycleStub middle = new StateStackTest.TestUIStackFrameLifecycleStub();
+        stateStack.pushFrame(bottom);
+        stateStack.pushFrame(middle);
+
+        StateStack.TopFrameChangedListener mockedListener = Mockito.mock(StateStack.TopFrameChangedListener.class);
+        stateStack.addTopFrameChangedListener(mockedListener);
+        final StateStackTest.TestUIStackFrameLifecycleStub pushedInTransaction = new StateStackTest.TestUIStackFrameLifecycleStub();
+
+        try
+        {
+            stateStack.edit(new StateStack.Edit()
+            {
+                @Override
+                public void apply(StateStack stateStack)
+                {
+                    stateStack.popAtFrameInstance(bottom, StateStack.PopType.EXCLUSIVE, true);
+                    stateStack.pushFrame(pushedInTransaction);
+                    stateStack.pushFrame(new ThrowingFrame());
+                }
+            });
+            Assert.fail();
+        }
+        catch(IllegalArgumentException expected) {}
+
+        Assert.assertFalse(stateStack.isInTransaction());
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertSame(middle, stateStack.getTopVisibleFrame());
+        Assert.assertSame(stateStack, middle.getParentStack());
+        Assert.assertFalse(middle.popped);
+        Assert.assertTrue(pushedInTransaction.popped);
+        Assert.assertNull(pushedInTransaction.getParentStack());
+        Assert.assertSame(middle, stateStack.getFrameOfType(StateStackTest.TestUIStackFrameLifecycleStub.class));
+        Mockito.verifyZeroInteractions(mockedListener);
+    }
+
+    @Test
+    public void rollbackTransaction_afterAutomaticRollback_shouldBeNoOp()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.beginTransaction();
+        try
+        {
+            stateStack.pushFrame(new ThrowingFrame());
+            Assert.fail();
+        }
+        catch(IllegalArgumentException expected) {}
+
+        stateStack.rollbackTransaction();
+        Assert.assertTrue(stateStack.isEmpty());
+        Assert.assertFalse(stateStack.isInTransaction());
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    static class ThrowingFrame extends StateStackFrame
+    {
+        @Override
+        public void pushed()
+        {
+            throw new IllegalArgumentException("boom");
+        }
+    }
+}
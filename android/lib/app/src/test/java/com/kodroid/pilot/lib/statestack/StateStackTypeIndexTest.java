@@ -0,0 +1,219 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the type lookups of {@link StateStack} which are served by its type index.
+ */
+@RunWith(JUnit4.class)
+public class StateStackTypeIndexTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    //==========================================================//
+    // getFrameOfType() contract
+    //==========================================================//
+
+    @Test
+    public void getFrameOfType_twoFramesSameType_shouldReturnBottomMost()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackFrame bottom = new StateStackTest.TestHiddenDataStackFrame();
+        StateStackFrame top = new StateStackTest.TestHiddenDataStackFrame();
+        stateStack.pushFrame(bottom);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(top);
+
+        Assert.assertSame(bottom, stateStack.getFrameOfType(StateStackTest.TestHiddenDataStackFrame.class));
+        Assert.assertSame(bottom, stateStack.getBottomFrameOfType(StateStackTest.TestHiddenDataStackFrame.class));
+        Assert.assertSame(top, stateStack.getTopFrameOfType(StateStackTest.TestHiddenDataStackFrame.class));
+        Assert.assertEquals(2, stateStack.getFrameCountOfType(StateStackTest.TestHiddenDataStackFrame.class));
+    }
+
+    @Test
+    public void getFrameOfType_subclassNotRegistered_shouldOnlyMatchExactClass()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new TestSessionFrame());
+
+        Assert.assertNull(stateStack.getFrameOfType(TestBaseScopeFrame.class));
+    }
+
+    @Test
+    public void getFrameOfType_classNeverPushed_shouldNotCreateTypeDescriptor()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new TestSessionFrame());
+        int typeCount = FrameTypeDescriptor.getRegisteredTypeCount();
+
+        Assert.assertNull(stateStack.getFrameOfType(TestNeverPushedFrame.class));
+        Assert.assertEquals(0, stateStack.getFrameCountOfType(TestNeverPushedFrame.class));
+        Assert.assertNull(FrameTypeDescriptor.peek(TestNeverPushedFrame.class));
+        Assert.assertEquals(typeCount, FrameTypeDescriptor.getRegisteredTypeCount());
+    }
+
+    @Test
+    public void getTopFrameOfType_registeredInterface_shouldMatchImplementors()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.registerIndexedType(TestScope.class);
+        TestSessionFrame sessionFrame = new TestSessionFrame();
+        TestOtherScopeFrame otherScopeFrame = new TestOtherScopeFrame();
+        stateStack.pushFrame(sessionFrame);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(otherScopeFrame);
+
+        Assert.assertSame(otherScopeFrame, stateStack.getTopFrameOfType(TestScope.class));
+        Assert.assertSame(sessionFrame, stateStack.getBottomFrameOfType(TestScope.class));
+
+        List<TestScope> scopes = stateStack.getFramesOfType(TestScope.class);
+        Assert.assertEquals(2, scopes.size());
+        Assert.assertSame(sessionFrame, scopes.get(0));
+        Assert.assertSame(otherScopeFrame, scopes.get(1));
+    }
+
+    @Test
+    public void registerIndexedType_afterFramesPushed_shouldIndexExistingFrames()
+    {
+        StateStack stateStack = new StateStack();
+        TestSessionFrame sessionFrame = new TestSessionFrame();
+        stateStack.pushFrame(sessionFrame);
+
+        stateStack.registerIndexedType(TestBaseScopeFrame.class);
+
+        Assert.assertSame(sessionFrame, stateStack.getFrameOfType(TestBaseScopeFrame.class));
+    }
+
+    //==========================================================//
+    // popAtFrameType()
+    //==========================================================//
+
+    @Test
+    public void popAtFrameType_twoFramesSameType_shouldPopAtTopMost()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame3());
+
+        stateStack.popAtFrameType(StateStackTest.TestUIStackFrame1.class, StateStack.PopType.INCLUSIVE, true);
+
+        Assert.assertEquals(2, stateStack.getSize());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame2.class, stateStack.getTopVisibleFrame().getClass());
+    }
+
+    @Test
+    public void popAtFrameType_registeredBaseClass_shouldPopAtTopMostSubclass()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.registerIndexedType(TestBaseScopeFrame.class);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new TestSessionFrame());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+
+        stateStack.popAtFrameType(TestBaseScopeFrame.class, StateStack.PopType.INCLUSIVE, true);
+
+        Assert.assertEquals(1, stateStack.getSize());
+    }
+
+    //==========================================================//
+    // Index consistency
+    //==========================================================//
+
+    @Test
+    public void randomOperations_manyIterations_indexShouldAlwaysMatchScan()
+    {
+        Random random = new Random(4);
+        StateStack stateStack = new StateStack();
+        stateStack.registerIndexedType(TestScope.class);
+
+        for(int i = 0; i < 5000; i++)
+        {
+            int op = random.nextInt(10);
+            if(op < 5 || stateStack.isEmpty())
+                stateStack.pushFrame(newRandomFrame(random));
+            else if(op == 5)
+                stateStack.popToNextVisibleFrame();
+            else if(op == 6)
+                stateStack.removeFrame(stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize())));
+            else if(op == 7)
+                stateStack.popTopFrameInstance(stateStack.getFrameAtIndex(stateStack.getSize() - 1));
+            else
+            {
+                Class<? extends StateStackFrame> type = stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize())).getClass();
+                stateStack.popAtFrameType(type, random.nextBoolean() ? StateStack.PopType.INCLUSIVE : StateStack.PopType.EXCLUSIVE, true);
+            }
+
+            assertIndexMatchesScan(stateStack, StateStackTest.TestUIStackFrame1.class);
+            assertIndexMatchesScan(stateStack, StateStackTest.TestHiddenDataStackFrame.class);
+            assertIndexMatchesScan(stateStack, TestSessionFrame.class);
+            assertIndexMatchesScan(stateStack, TestScope.class);
+        }
+    }
+
+    private static StateStackFrame newRandomFrame(Random random)
+    {
+        switch(random.nextInt(4))
+        {
+            case 0: return new StateStackTest.TestUIStackFrame1();
+            case 1: return new StateStackTest.TestHiddenDataStackFrame();
+            case 2: return new TestSessionFrame();
+            default: return new TestOtherScopeFrame();
+        }
+    }
+
+    private static void assertIndexMatchesScan(StateStack stateStack, Class<?> type)
+    {
+        boolean exactMatchOnly = type != TestScope.class;
+        List<Object> scanned = new ArrayList<>();
+        for(int i = 0; i < stateStack.getSize(); i++)
+        {
+            StateStackFrame frame = stateStack.getFrameAtIndex(i);
+            if(exactMatchOnly ? frame.getClass() == type : type.isInstance(frame))
+                scanned.add(frame);
+        }
+
+        List<?> indexed = stateStack.getFramesOfType(type);
+        Assert.assertEquals(scanned.size(), indexed.size());
+        for(int i = 0; i < scanned.size(); i++)
+            Assert.assertSame(scanned.get(i), indexed.get(i));
+        Assert.assertSame(scanned.isEmpty() ? null : scanned.get(scanned.size() - 1), stateStack.getTopFrameOfType(type));
+        Assert.assertSame(scanned.isEmpty() ? null : scanned.get(0), stateStack.getBottomFrameOfType(type));
+
+        //snapshots publish the same lookups, see ConcurrentStateStack
+        StateStackSnapshot snapshot = stateStack.getSnapshot();
+        Assert.assertEquals(indexed, snapshot.getFramesOfType(type));
+        Assert.assertEquals(scanned.size(), snapshot.getFrameCountOfType(type));
+        Assert.assertSame(stateStack.getTopFrameOfType(type), snapshot.getTopFrameOfType(type));
+        Assert.assertSame(stateStack.getBottomFrameOfType(type), snapshot.getBottomFrameOfType(type));
+    }
+
+    //==================================================================//
+    // Test Frames
+    //==================================================================//
+
+    public interface TestScope
+    {}
+
+    @HiddenStateStackFrame
+    public static abstract class TestBaseScopeFrame extends StateStackFrame implements TestScope
+    {}
+
+    public static abstract class TestNeverPushedFrame extends StateStackFrame
+    {}
+
+    public static class TestSessionFrame extends TestBaseScopeFrame
+    {}
+
+    @HiddenStateStackFrame
+    public static class TestOtherScopeFrame extends StateStackFrame implements TestScope
+    {}
+}
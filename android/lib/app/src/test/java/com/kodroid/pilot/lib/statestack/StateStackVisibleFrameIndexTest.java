@@ -0,0 +1,113 @@
+package com.kodroid.pilot.lib.statestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the visible frame index maintained inside {@link StateStack} always agrees with a brute
+ * force top-down scan of the stack.
+ */
+@RunWith(JUnit4.class)
+public class StateStackVisibleFrameIndexTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    @Test
+    public void getVisibleFrameFromTopDown_mixedStack_shouldMatchScan()
+    {
+        StateStack stateStack = new StateStack();
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(new StateStackTest.TestHiddenDataStackFrame());
+
+        assertIndexMatchesScan(stateStack);
+        Assert.assertEquals(2, stateStack.getVisibleFrameCount());
+        Assert.assertNull(stateStack.getVisibleFrameFromTopDown(0));
+        Assert.assertNull(stateStack.getVisibleFrameFromTopDown(3));
+    }
+
+    @Test
+    public void removeFrame_hiddenFrameBelowVisibleFrames_shouldShiftIndexes()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackFrame hiddenFrame = new StateStackTest.TestHiddenDataStackFrame();
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(hiddenFrame);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame3());
+
+        stateStack.removeFrame(hiddenFrame);
+
+        assertIndexMatchesScan(stateStack);
+        Assert.assertEquals(StateStackTest.TestUIStackFrame3.class, stateStack.getTopVisibleFrame().getClass());
+        Assert.assertEquals(StateStackTest.TestUIStackFrame2.class, stateStack.getVisibleFrameFromTopDown(2).getClass());
+    }
+
+    @Test
+    public void randomOperations_manyIterations_indexShouldAlwaysMatchScan()
+    {
+        Random random = new Random(40);
+        StateStack stateStack = new StateStack();
+
+        for(int i = 0; i < 5000; i++)
+        {
+            int op = random.nextInt(10);
+            if(op < 5 || stateStack.isEmpty())
+            {
+                stateStack.pushFrame(random.nextBoolean()
+                        ? new StateStackTest.TestHiddenDataStackFrame()
+                        : new StateStackTest.TestUIStackFrame1());
+            }
+            else if(op == 5)
+            {
+                stateStack.popToNextVisibleFrame();
+            }
+            else if(op == 6)
+            {
+                stateStack.popTopFrameInstance(stateStack.getFrameAtIndex(stateStack.getSize() - 1));
+            }
+            else if(op == 7)
+            {
+                stateStack.removeFrame(stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize())));
+            }
+            else
+            {
+                StateStackFrame frame = stateStack.getFrameAtIndex(random.nextInt(stateStack.getSize()));
+                StateStack.PopType popType = random.nextBoolean() ? StateStack.PopType.INCLUSIVE : StateStack.PopType.EXCLUSIVE;
+                stateStack.popAtFrameInstance(frame, popType, true);
+            }
+
+            assertIndexMatchesScan(stateStack);
+        }
+    }
+
+    //==================================================================//
+    // Brute force
+    //==================================================================//
+
+    private static void assertIndexMatchesScan(StateStack stateStack)
+    {
+        List<StateStackFrame> scannedVisibleFrames = new ArrayList<>();
+        for(int i = stateStack.getSize() - 1; i >= 0; i--)
+        {
+            StateStackFrame frame = stateStack.getFrameAtIndex(i);
+            if(!frame.getClass().isAnnotationPresent(HiddenStateStackFrame.class))
+                scannedVisibleFrames.add(frame);
+        }
+
+        Assert.assertEquals(scannedVisibleFrames.size(), stateStack.getVisibleFrameCount());
+        Assert.assertEquals(!scannedVisibleFrames.isEmpty(), stateStack.doesContainVisibleFrame());
+        for(int i = 0; i < scannedVisibleFrames.size(); i++)
+            Assert.assertSame(scannedVisibleFrames.get(i), stateStack.getVisibleFrameFromTopDown(i + 1));
+        Assert.assertNull(stateStack.getVisibleFrameFromTopDown(scannedVisibleFrames.size() + 1));
+    }
+}
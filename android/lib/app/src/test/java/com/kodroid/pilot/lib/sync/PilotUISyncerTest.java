@@ -6,6 +6,7 @@ import com.kodroid.pilot.lib.statestack.StateStackFrame;
 import com.kodroid.pilot.lib.statestack.StateStack;
 import com.kodroid.pilot.lib.statestack.StateStackTest;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -25,7 +26,7 @@ public class PilotUISyncerTest
         StateStackFrameSetRenderer stubHandler = new StateStackFrameSetRenderer() {
             @Override
             public boolean isFrameSupported(Class<? extends StateStackFrame> frameClass) {
-                return false;
+                return frameClass == StateStackTest.TestUIStackFrame2.class;
             }
 
             @Override
@@ -59,13 +60,175 @@ public class PilotUISyncerTest
         };
 
         StateStackFrameSetRenderer spyHandler = Mockito.spy(stubHandler);
-        StateStackRenderer stateStackRenderer = new StateStackRenderer(new StateStack(), spyHandler,
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack, spyHandler,
                                                                        opaqueStateStackFrameSetRenderer);
-        stateStackRenderer.topVisibleFrameUpdated(new StateStackTest.TestUIStackFrame1(), StateStack.TopFrameChangedListener.Direction.FORWARD);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame2()); //shown by 1st handler
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
 
         Mockito.verify(spyHandler).clearAllUI();
     }
 
+    @Test
+    public void pilotSyncer_newOpaqueFrame_shouldNotClearTypeHandlerShowingNothing()
+    {
+        StateStackFrameSetRenderer idleHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame2.class, true));
+        StateStackFrameSetRenderer screenHandler = new TestRenderer(StateStackTest.TestUIStackFrame1.class, true);
+
+        StateStack stateStack = new StateStack();
+        stateStack.addTopFrameChangedListener(new StateStackRenderer(stateStack, idleHandler, screenHandler));
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Mockito.verify(idleHandler, Mockito.never()).clearAllUI();
+    }
+
+    //==================================================================//
+    // Incremental reconciliation tests
+    //==================================================================//
+
+    @Test
+    public void pilotSyncer_dialogPushedAndPoppedOverScreen_shouldOnlyRenderAndClearDialog()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        StateStackFrameSetRenderer dialogHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack, screenHandler, dialogHandler);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        StateStackFrame screen = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(screen);
+        StateStackFrame dialog = new StateStackTest.TestUIStackFrame2();
+        stateStack.pushFrame(dialog);
+        stateStack.popTopFrameInstance(dialog);
+
+        Mockito.verify(screenHandler, Mockito.times(1)).renderFrame(screen);
+        Mockito.verify(screenHandler, Mockito.never()).clearAllUI();
+        Mockito.verify(dialogHandler, Mockito.times(1)).renderFrame(dialog);
+        Mockito.verify(dialogHandler, Mockito.times(1)).clearAllUI();
+    }
+
+    @Test
+    public void pilotSyncer_twoSeeThroughFramesOnOneRenderer_shouldOnlyRenderAgainWhenRevealed()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        StateStackFrameSetRenderer dialogHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+        StateStackFrameSetRenderer overlayHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame3.class, false));
+
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack, screenHandler, dialogHandler, overlayHandler);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        StateStackFrame lowerDialog = new StateStackTest.TestUIStackFrame2();
+        stateStack.pushFrame(lowerDialog);
+        StateStackFrame upperDialog = new StateStackTest.TestUIStackFrame2();
+        stateStack.pushFrame(upperDialog);
+        StateStackFrame overlay = new StateStackTest.TestUIStackFrame3();
+        stateStack.pushFrame(overlay);
+        stateStack.popTopFrameInstance(overlay);
+
+        Mockito.verify(dialogHandler, Mockito.times(1)).renderFrame(lowerDialog); //when it was the top dialog
+        Mockito.verify(dialogHandler, Mockito.times(1)).renderFrame(upperDialog);
+        Mockito.verify(dialogHandler, Mockito.never()).clearAllUI();
+        Mockito.verify(overlayHandler, Mockito.times(1)).renderFrame(overlay);
+
+        stateStack.popTopFrameInstance(upperDialog);
+        Mockito.verify(dialogHandler, Mockito.times(2)).renderFrame(lowerDialog);
+        Mockito.verify(dialogHandler, Mockito.never()).clearAllUI();
+    }
+
+    @Test
+    public void pilotSyncer_dialogPushedAndPoppedWhileStarted_shouldOnlyNotifyVisibilityDelta()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack,
+                new TestRenderer(StateStackTest.TestUIStackFrame1.class, true),
+                new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+        StateStackFrame screen = Mockito.spy(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(screen);
+        stateStackRenderer.renderAllCurrentlyVisibleFrames(stateStack);
+        stateStack.addStartedStateListener(stateStackRenderer);
+        stateStack.setStarted(true);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+
+        StateStackFrame dialog = Mockito.spy(new StateStackTest.TestUIStackFrame2());
+        stateStack.pushFrame(dialog);
+        stateStack.popTopFrameInstance(dialog);
+
+        Mockito.verify(screen, Mockito.times(1)).frameViewVisible(true); //from setStarted() only
+        Mockito.verify(screen, Mockito.never()).frameViewVisible(false);
+        Mockito.verify(dialog, Mockito.times(1)).frameViewVisible(true);
+        Mockito.verify(dialog, Mockito.never()).frameViewVisible(false); //popped, so not notified
+    }
+
+    @Test
+    public void pilotSyncer_opaqueFramePushedAndPoppedWhileStarted_shouldNotifyScreenOfEachTransitionOnce()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack,
+                new TestRenderer(StateStackTest.TestUIStackFrame1.class, true),
+                new TestRenderer(StateStackTest.TestUIStackFrame3.class, true));
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.addStartedStateListener(stateStackRenderer);
+        StateStackFrame screen = Mockito.spy(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(screen);
+        stateStack.setStarted(true);
+
+        StateStackFrame nextScreen = new StateStackTest.TestUIStackFrame3();
+        stateStack.pushFrame(nextScreen);
+        Assert.assertFalse(screen.isFrameViewVisible());
+        stateStack.popTopFrameInstance(nextScreen);
+
+        InOrder inOrder = Mockito.inOrder(screen);
+        inOrder.verify(screen).frameViewVisible(true);
+        inOrder.verify(screen).frameViewVisible(false);
+        inOrder.verify(screen).frameViewVisible(true);
+        Mockito.verify(screen, Mockito.times(2)).frameViewVisible(true);
+        Mockito.verify(screen, Mockito.times(1)).frameViewVisible(false);
+        Assert.assertTrue(screen.isFrameViewVisible());
+    }
+
+    @Test
+    public void pilotSyncer_renderAllAndRestartedWhileVisible_shouldNotRenotifyVisible()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack,
+                new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        stateStack.addStartedStateListener(stateStackRenderer);
+        StateStackFrame screen = Mockito.spy(new StateStackTest.TestUIStackFrame1());
+        stateStack.pushFrame(screen);
+        stateStack.setStarted(true);
+
+        stateStackRenderer.renderAllCurrentlyVisibleFrames(stateStack); //i.e. config change
+        stateStack.setStarted(true); //already started, i.e. host onStart() after the config change
+
+        Mockito.verify(screen, Mockito.times(1)).frameViewVisible(true);
+    }
+
+    @Test
+    public void setStarted_stoppedWithDialogOverScreen_shouldNotifyWindowNotVisibleOnce()
+    {
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack,
+                new TestRenderer(StateStackTest.TestUIStackFrame1.class, true),
+                new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.addStartedStateListener(stateStackRenderer);
+        StateStackFrame screen = Mockito.spy(new StateStackTest.TestUIStackFrame1());
+        StateStackFrame dialog = Mockito.spy(new StateStackTest.TestUIStackFrame2());
+        stateStack.setStarted(true);
+        stateStack.pushFrame(screen);
+        stateStack.pushFrame(dialog);
+
+        stateStack.setStarted(false);
+        stateStack.setStarted(false);
+
+        Mockito.verify(screen, Mockito.times(1)).frameViewVisible(false);
+        Mockito.verify(dialog, Mockito.times(1)).frameViewVisible(false);
+        Assert.assertFalse(screen.isFrameViewVisible());
+        Assert.assertFalse(dialog.isFrameViewVisible());
+    }
+
     //==================================================================//
     // Rendering all currently visible frames
     //==================================================================//
@@ -118,4 +281,127 @@ public class PilotUISyncerTest
         inOrder.verify(spy, Mockito.times(1)).renderFrame(Mockito.isA(StateStackTest.TestUIStackFrame3.class));
         inOrder.verify(spy, Mockito.never()).renderFrame(Mockito.isA(StateStackTest.TestUIStackFrame1.class));
     }
+
+    //==================================================================//
+    // Renderer dispatch tests
+    //==================================================================//
+
+    @Test
+    public void pilotSyncer_framesOfSameClassPushed_shouldResolveRendererOnce()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        StateStackFrameSetRenderer dialogHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+
+        StateStack stateStack = new StateStack();
+        stateStack.addTopFrameChangedListener(new StateStackRenderer(stateStack, screenHandler, dialogHandler));
+        for(int i = 0; i < 3; i++)
+        {
+            stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+            stateStack.pushFrame(new StateStackTest.TestUIStackFrame2());
+        }
+
+        Mockito.verify(screenHandler, Mockito.times(1)).isFrameSupported(StateStackTest.TestUIStackFrame1.class);
+        Mockito.verify(screenHandler, Mockito.times(1)).isFrameSupported(StateStackTest.TestUIStackFrame2.class);
+        Mockito.verify(dialogHandler, Mockito.times(1)).isFrameSupported(StateStackTest.TestUIStackFrame2.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void registerFrameClasses_frameClassWithoutRenderer_shouldThrow()
+    {
+        StateStack stateStack = new StateStack();
+        new StateStackRenderer(stateStack, new TestRenderer(StateStackTest.TestUIStackFrame1.class, true))
+                .registerFrameClasses(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestUIStackFrame2.class);
+    }
+
+    @Test
+    public void registerFrameClasses_hiddenFrameClass_shouldSkip()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack, screenHandler)
+                .registerFrameClasses(StateStackTest.TestUIStackFrame1.class, StateStackTest.TestHiddenDataStackFrame.class);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+
+        Mockito.verify(screenHandler, Mockito.times(1)).isFrameSupported(Mockito.<Class<? extends StateStackFrame>>any());
+    }
+
+    //==================================================================//
+    // Opacity memo tests
+    //==================================================================//
+
+    @Test
+    public void pilotSyncer_framesPushedOverSameFrame_shouldQueryOpacityOncePerFrame()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        StateStackFrameSetRenderer dialogHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame2.class, false));
+
+        StateStack stateStack = new StateStack();
+        stateStack.addTopFrameChangedListener(new StateStackRenderer(stateStack, screenHandler, dialogHandler));
+        StateStackFrame screen = new StateStackTest.TestUIStackFrame1();
+        stateStack.pushFrame(screen);
+        for(int i = 0; i < 3; i++)
+        {
+            StateStackFrame dialog = new StateStackTest.TestUIStackFrame2();
+            stateStack.pushFrame(dialog);
+            stateStack.popTopFrameInstance(dialog);
+        }
+
+        Mockito.verify(screenHandler, Mockito.times(1)).isFrameOpaque(screen);
+        Mockito.verify(dialogHandler, Mockito.times(3)).isFrameOpaque(Mockito.any(StateStackFrame.class));
+    }
+
+    @Test
+    public void invalidateFrameOpacity_dialogBecameOpaque_shouldClearScreenBehind()
+    {
+        StateStackFrameSetRenderer screenHandler = Mockito.spy(new TestRenderer(StateStackTest.TestUIStackFrame1.class, true));
+        TestRenderer dialogHandler = new TestRenderer(StateStackTest.TestUIStackFrame2.class, false);
+
+        StateStack stateStack = new StateStack();
+        StateStackRenderer stateStackRenderer = new StateStackRenderer(stateStack, screenHandler, dialogHandler);
+        stateStack.addTopFrameChangedListener(stateStackRenderer);
+        stateStack.pushFrame(new StateStackTest.TestUIStackFrame1());
+        StateStackFrame dialog = new StateStackTest.TestUIStackFrame2();
+        stateStack.pushFrame(dialog);
+        dialogHandler.opaque = true;
+
+        Mockito.verify(screenHandler, Mockito.never()).clearAllUI();
+        stateStackRenderer.invalidateFrameOpacity(dialog);
+        Mockito.verify(screenHandler, Mockito.times(1)).clearAllUI();
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    static class TestRenderer implements StateStackFrameSetRenderer
+    {
+        private final Class<? extends StateStackFrame> supportedFrameClass;
+        boolean opaque;
+
+        TestRenderer(Class<? extends StateStackFrame> supportedFrameClass, boolean opaque)
+        {
+            this.supportedFrameClass = supportedFrameClass;
+            this.opaque = opaque;
+        }
+
+        @Override
+        public boolean isFrameSupported(Class<? extends StateStackFrame> frameClass)
+        {
+            return supportedFrameClass.isAssignableFrom(frameClass); //allows spied frames
+        }
+
+        @Override
+        public void renderFrame(StateStackFrame frame) {}
+
+        @Override
+        public boolean isFrameOpaque(StateStackFrame frame)
+        {
+            return opaque;
+        }
+
+        @Override
+        public void clearAllUI() {}
+    }
 }
\ No newline at end of file
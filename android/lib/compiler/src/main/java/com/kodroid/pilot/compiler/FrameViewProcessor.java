@@ -0,0 +1,406 @@
+package com.kodroid.pilot.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a <code>PilotFrameViewRegistry</code> (an implementation of the lib
+ * <code>FrameViewRegistry</code>) from all <code>@ViewForFrame</code> and <code>@FrameView</code>
+ * bindings, plus all <code>@HiddenStateStackFrame</code> frames, in the compiled sources.
+ *
+ * Type ids are assigned in frame class name order so are stable between builds of the same sources.
+ * The registry package can be set with the <code>pilot.registryPackage</code> processor option.
+ *
+ * Annotations are referenced by name so this module does not depend on the (Android) lib.
+ */
+public class FrameViewProcessor extends AbstractProcessor
+{
+    static final String OPTION_REGISTRY_PACKAGE = "pilot.registryPackage";
+    static final String DEFAULT_REGISTRY_PACKAGE = "com.kodroid.pilot.generated";
+    static final String REGISTRY_NAME = "PilotFrameViewRegistry";
+
+    private static final String VIEW_FOR_FRAME = "com.kodroid.pilot.lib.android.uiTypeHandler.ViewForFrame";
+    private static final String FRAME_VIEW = "com.kodroid.pilot.lib.android.uiTypeHandler.FrameView";
+    private static final String FRAME_VIEW_REGISTRY = "com.kodroid.pilot.lib.android.uiTypeHandler.FrameViewRegistry";
+    private static final String HIDDEN_FRAME = "com.kodroid.pilot.lib.statestack.HiddenStateStackFrame";
+    private static final String STATE_STACK_FRAME = "com.kodroid.pilot.lib.statestack.StateStackFrame";
+    private static final String VIEW = "android.view.View";
+    private static final String CONTEXT = "android.content.Context";
+
+    /**
+     * By frame class name, sorted for stable type ids
+     */
+    private final Map<String, Binding> bindings = new TreeMap<>();
+    private final List<Element> originatingElements = new ArrayList<>();
+    private boolean registryWritten;
+
+    //==================================================================//
+    // Processor
+    //==================================================================//
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes()
+    {
+        Set<String> types = new HashSet<>();
+        types.add(VIEW_FOR_FRAME);
+        types.add(FRAME_VIEW);
+        types.add(HIDDEN_FRAME);
+        return types;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions()
+    {
+        return Collections.singleton(OPTION_REGISTRY_PACKAGE);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        int bindingCount = bindings.size();
+        for(TypeElement annotation : annotations)
+        {
+            String annotationName = annotation.getQualifiedName().toString();
+            for(Element element : roundEnv.getElementsAnnotatedWith(annotation))
+            {
+                if(!(element instanceof TypeElement))
+                    continue;
+                TypeElement type = (TypeElement) element;
+                switch(annotationName)
+                {
+                    case VIEW_FOR_FRAME:
+                        addBinding(asTypeElement(getAnnotationValue(type, VIEW_FOR_FRAME, "value")), type, type, VIEW_FOR_FRAME);
+                        break;
+                    case FRAME_VIEW:
+                        addBinding(type, asTypeElement(getAnnotationValue(type, FRAME_VIEW, "value")), type, FRAME_VIEW);
+                        break;
+                    case HIDDEN_FRAME:
+                        addHiddenFrame(type);
+                        break;
+                }
+            }
+        }
+
+        //written in the first round with bindings (all hand written sources), so it is compiled as normal
+        if(!registryWritten && !bindings.isEmpty())
+        {
+            registryWritten = true;
+            writeRegistry();
+        }
+        else if(registryWritten && bindings.size() != bindingCount)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Frame bindings in generated sources are not supported, "+REGISTRY_NAME+" has already been written");
+        }
+        return false;
+    }
+
+    //==================================================================//
+    // Bindings
+    //==================================================================//
+
+    private void addBinding(TypeElement frame, TypeElement view, TypeElement declaredOn, String annotationName)
+    {
+        if(frame == null || view == null)
+            return; //unresolved class, javac reports this itself
+        if(!checkFrame(frame, declaredOn) || !checkView(view, declaredOn))
+            return;
+        if(isHidden(frame))
+        {
+            error(declaredOn, frame.getQualifiedName()+" is a hidden frame so is never rendered");
+            return;
+        }
+
+        String frameName = frame.getQualifiedName().toString();
+        Binding existing = bindings.get(frameName);
+        if(existing != null && existing.view != null && !existing.view.equals(view))
+        {
+            error(declaredOn, frameName+" is already bound to "+existing.view.getQualifiedName());
+            return;
+        }
+        boolean opaque = (Boolean) getAnnotationValue(declaredOn, annotationName, "opaque");
+        bindings.put(frameName, new Binding(frame, view, false, opaque));
+        originatingElements.add(declaredOn);
+    }
+
+    /**
+     * Hidden frames the registry can not reference are left out rather than failing the build
+     */
+    private void addHiddenFrame(TypeElement frame)
+    {
+        TypeElement frameBase = processingEnv.getElementUtils().getTypeElement(STATE_STACK_FRAME);
+        if(frame.getKind() != ElementKind.CLASS || frameBase == null || !isSubtype(frame, frameBase) || !isPublic(frame))
+            return;
+        String frameName = frame.getQualifiedName().toString();
+        if(!bindings.containsKey(frameName))
+            bindings.put(frameName, new Binding(frame, null, true, false));
+        originatingElements.add(frame);
+    }
+
+    private boolean checkFrame(TypeElement frame, Element declaredOn)
+    {
+        TypeElement frameBase = processingEnv.getElementUtils().getTypeElement(STATE_STACK_FRAME);
+        if(frameBase == null || !isSubtype(frame, frameBase))
+        {
+            error(declaredOn, frame.getQualifiedName()+" is not a "+STATE_STACK_FRAME);
+            return false;
+        }
+        if(!isPublic(frame))
+        {
+            error(declaredOn, frame.getQualifiedName()+" must be public (as must any enclosing class) and, if nested, static");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkView(TypeElement view, Element declaredOn)
+    {
+        TypeElement viewBase = processingEnv.getElementUtils().getTypeElement(VIEW);
+        if(viewBase == null || !isSubtype(view, viewBase))
+        {
+            error(declaredOn, view.getQualifiedName()+" is not a "+VIEW);
+            return false;
+        }
+        if(!isPublic(view) || view.getModifiers().contains(Modifier.ABSTRACT) || !hasContextConstructor(view))
+        {
+            error(declaredOn, view.getQualifiedName()+" must be a public, non-abstract (and if nested, static) class with a public constructor taking only a Context");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasContextConstructor(TypeElement view)
+    {
+        TypeMirror context = processingEnv.getElementUtils().getTypeElement(CONTEXT).asType();
+        for(ExecutableElement constructor : ElementFilter.constructorsIn(view.getEnclosedElements()))
+        {
+            if(constructor.getModifiers().contains(Modifier.PUBLIC)
+                    && constructor.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(constructor.getParameters().get(0).asType(), context))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * As FrameTypeDescriptor at runtime: annotated, or annotated with an annotation that is itself
+     * annotated, on this class or a superclass
+     */
+    private boolean isHidden(TypeElement frame)
+    {
+        for(TypeElement type = frame; type != null; type = superclassOf(type))
+        {
+            for(AnnotationMirror annotation : type.getAnnotationMirrors())
+            {
+                TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+                if(annotationType.getQualifiedName().contentEquals(HIDDEN_FRAME) || findAnnotation(annotationType, HIDDEN_FRAME) != null)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    //==================================================================//
+    // Generation
+    //==================================================================//
+
+    private void writeRegistry()
+    {
+        String packageName = processingEnv.getOptions().get(OPTION_REGISTRY_PACKAGE);
+        if(packageName == null)
+            packageName = DEFAULT_REGISTRY_PACKAGE;
+        List<Binding> types = new ArrayList<>(bindings.values());
+
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(packageName).append(";\n\n")
+                .append("import android.content.Context;\n")
+                .append("import android.view.View;\n\n")
+                .append("import ").append(FRAME_VIEW_REGISTRY).append(";\n")
+                .append("import ").append(STATE_STACK_FRAME).append(";\n\n")
+                .append("import java.util.HashMap;\n")
+                .append("import java.util.Map;\n\n")
+                .append("/**\n * Generated by ").append(FrameViewProcessor.class.getName()).append(", do not edit\n */\n")
+                .append("public final class ").append(REGISTRY_NAME).append(" implements FrameViewRegistry\n{\n");
+
+        source.append("    private static final Map<Class<? extends StateStackFrame>, Integer> TYPE_IDS = new HashMap<>();\n")
+                .append("    static\n    {\n");
+        for(int i = 0; i < types.size(); i++)
+            source.append("        TYPE_IDS.put(").append(types.get(i).frame.getQualifiedName()).append(".class, ").append(i).append(");\n");
+        source.append("    }\n\n");
+
+        source.append("    private static final Class<?>[] VIEW_CLASSES = {\n");
+        for(Binding binding : types)
+            source.append("            ").append(binding.view == null ? "null" : binding.view.getQualifiedName()+".class").append(",\n");
+        source.append("    };\n\n");
+        appendBooleans(source, "HIDDEN", types, true);
+        appendBooleans(source, "OPAQUE", types, false);
+
+        source.append("    @Override\n    public int getTypeId(Class<? extends StateStackFrame> frameClass)\n    {\n")
+                .append("        Integer typeId = TYPE_IDS.get(frameClass);\n")
+                .append("        return typeId == null ? -1 : typeId;\n    }\n\n");
+        source.append("    @Override\n    public int getTypeCount()\n    {\n")
+                .append("        return ").append(types.size()).append(";\n    }\n\n");
+        source.append("    @SuppressWarnings(\"unchecked\")\n")
+                .append("    @Override\n    public Class<? extends View> getViewClass(int typeId)\n    {\n")
+                .append("        return (Class<? extends View>) VIEW_CLASSES[typeId];\n    }\n\n");
+
+        source.append("    @Override\n    public View createView(int typeId, Context context)\n    {\n")
+                .append("        switch(typeId)\n        {\n");
+        for(int i = 0; i < types.size(); i++)
+        {
+            if(types.get(i).view != null)
+                source.append("            case ").append(i).append(": return new ").append(types.get(i).view.getQualifiedName()).append("(context);\n");
+        }
+        source.append("            default: throw new IllegalArgumentException(\"No View bound for type id \"+typeId);\n")
+                .append("        }\n    }\n\n");
+
+        source.append("    @Override\n    public boolean isHidden(int typeId)\n    {\n")
+                .append("        return HIDDEN[typeId];\n    }\n\n");
+        source.append("    @Override\n    public boolean isOpaque(int typeId)\n    {\n")
+                .append("        return OPAQUE[typeId];\n    }\n");
+        source.append("}\n");
+
+        try
+        {
+            Writer writer = processingEnv.getFiler()
+                    .createSourceFile(packageName+"."+REGISTRY_NAME, originatingElements.toArray(new Element[originatingElements.size()]))
+                    .openWriter();
+            try
+            {
+                writer.write(source.toString());
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch(IOException e)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write "+REGISTRY_NAME+": "+e.getMessage());
+        }
+    }
+
+    private static void appendBooleans(StringBuilder source, String name, List<Binding> types, boolean hidden)
+    {
+        source.append("    private static final boolean[] ").append(name).append(" = {");
+        for(int i = 0; i < types.size(); i++)
+            source.append(i == 0 ? "" : ", ").append(hidden ? types.get(i).hidden : types.get(i).opaque);
+        source.append("};\n\n");
+    }
+
+    //==================================================================//
+    // Element helpers
+    //==================================================================//
+
+    private Object getAnnotationValue(Element element, String annotationName, String key)
+    {
+        AnnotationMirror annotation = findAnnotation(element, annotationName);
+        if(annotation == null)
+            return null;
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv.getElementUtils().getElementValuesWithDefaults(annotation).entrySet())
+        {
+            if(entry.getKey().getSimpleName().contentEquals(key))
+                return entry.getValue().getValue();
+        }
+        return null;
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String annotationName)
+    {
+        for(AnnotationMirror annotation : element.getAnnotationMirrors())
+        {
+            if(((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName))
+                return annotation;
+        }
+        return null;
+    }
+
+    private static TypeElement asTypeElement(Object classValue)
+    {
+        if(!(classValue instanceof DeclaredType) || ((DeclaredType) classValue).getKind() == TypeKind.ERROR)
+            return null;
+        return (TypeElement) ((DeclaredType) classValue).asElement();
+    }
+
+    private boolean isSubtype(TypeElement type, TypeElement base)
+    {
+        return processingEnv.getTypeUtils().isSubtype(
+                processingEnv.getTypeUtils().erasure(type.asType()),
+                processingEnv.getTypeUtils().erasure(base.asType()));
+    }
+
+    /**
+     * @return true if the type can be referenced from the generated package
+     */
+    private static boolean isPublic(TypeElement type)
+    {
+        for(Element element = type; element instanceof TypeElement; element = element.getEnclosingElement())
+        {
+            if(!element.getModifiers().contains(Modifier.PUBLIC))
+                return false;
+            if(element.getEnclosingElement() instanceof TypeElement && !element.getModifiers().contains(Modifier.STATIC))
+                return false; //inner classes can not be created without an outer instance
+        }
+        return true;
+    }
+
+    private static TypeElement superclassOf(TypeElement type)
+    {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+
+    private void error(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    //==================================================================//
+    // Binding
+    //==================================================================//
+
+    private static final class Binding
+    {
+        final TypeElement frame;
+        final TypeElement view;
+        final boolean hidden;
+        final boolean opaque;
+
+        Binding(TypeElement frame, TypeElement view, boolean hidden, boolean opaque)
+        {
+            this.frame = frame;
+            this.view = view;
+            this.hidden = hidden;
+            this.opaque = opaque;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.kodroid.pilot.compiler;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+@RunWith(JUnit4.class)
+public class FrameViewProcessorTest
+{
+    //[UnitOfWork_StateUnderTest_ExpectedBehavior]
+
+    private static final String HEADER = "package com.example;\n"
+            + "import android.content.Context;\n"
+            + "import android.widget.FrameLayout;\n"
+            + "import com.kodroid.pilot.lib.android.uiTypeHandler.*;\n"
+            + "import com.kodroid.pilot.lib.statestack.*;\n";
+
+    @ClassRule
+    public static TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static File libClasses;
+
+    /**
+     * The lib sources are compiled once, as the classpath the processed sources are compiled against
+     */
+    @BeforeClass
+    public static void compileLib() throws IOException
+    {
+        libClasses = temporaryFolder.newFolder("lib");
+        List<File> libSources = new ArrayList<>();
+        collectSources(new File("../app/src/main/java"), libSources);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        boolean compiled = compiler.getTask(null, fileManager, null,
+                Arrays.asList("-proc:none", "-nowarn", "-d", libClasses.getPath()), null,
+                fileManager.getJavaFileObjectsFromFiles(libSources)).call();
+        Assert.assertTrue("lib sources failed to compile", compiled);
+    }
+
+    @Test
+    public void process_bindingsOnFramesAndViews_shouldGenerateRegistry() throws IOException
+    {
+        Result result = compile(null, HEADER + "public class Frames {\n"
+                + "  @FrameView(ArticleView.class) public static class ArticleFrame extends StateStackFrame {}\n"
+                + "  public static class DialogFrame extends StateStackFrame {}\n"
+                + "  @HiddenStateStackFrame public static class SessionFrame extends StateStackFrame {}\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c){ super(c); } }\n"
+                + "  @ViewForFrame(value = DialogFrame.class, opaque = false)\n"
+                + "  public static class DialogView extends FrameLayout { public DialogView(Context c){ super(c); } }\n"
+                + "}\n");
+
+        Assert.assertTrue(result.errors.toString(), result.success);
+        String registry = result.readGenerated("com/kodroid/pilot/generated/PilotFrameViewRegistry.java");
+        Assert.assertTrue(registry.contains("TYPE_IDS.put(com.example.Frames.ArticleFrame.class, 0);"));
+        Assert.assertTrue(registry.contains("TYPE_IDS.put(com.example.Frames.SessionFrame.class, 2);"));
+        Assert.assertTrue(registry.contains("case 1: return new com.example.Frames.DialogView(context);"));
+        Assert.assertTrue(registry.contains("HIDDEN = {false, false, true};"));
+        Assert.assertTrue(registry.contains("OPAQUE = {true, false, false};"));
+        Assert.assertFalse(registry.contains("getConstructor"));
+    }
+
+    @Test
+    public void process_registryPackageOption_shouldGenerateInPackage() throws IOException
+    {
+        Result result = compile("-Apilot.registryPackage=com.example.nav", HEADER + "public class Frames {\n"
+                + "  @FrameView(ArticleView.class) public static class ArticleFrame extends StateStackFrame {}\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c){ super(c); } }\n"
+                + "}\n");
+
+        Assert.assertTrue(result.errors.toString(), result.success);
+        Assert.assertTrue(result.readGenerated("com/example/nav/PilotFrameViewRegistry.java").startsWith("package com.example.nav;"));
+    }
+
+    @Test
+    public void process_viewWithoutContextConstructor_shouldFail() throws IOException
+    {
+        Result result = compile(null, HEADER + "public class Frames {\n"
+                + "  @FrameView(ArticleView.class) public static class ArticleFrame extends StateStackFrame {}\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c, int i){ super(c); } }\n"
+                + "}\n");
+
+        assertFailedWith(result, "public constructor taking only a Context");
+    }
+
+    @Test
+    public void process_hiddenFrameBound_shouldFail() throws IOException
+    {
+        Result result = compile(null, HEADER + "public class Frames {\n"
+                + "  @HiddenStateStackFrame public static class ScopeFrame extends StateStackFrame {}\n"
+                + "  public static class SubScopeFrame extends ScopeFrame {}\n"
+                + "  @ViewForFrame(SubScopeFrame.class)\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c){ super(c); } }\n"
+                + "}\n");
+
+        assertFailedWith(result, "is a hidden frame");
+    }
+
+    @Test
+    public void process_frameBoundToTwoViews_shouldFail() throws IOException
+    {
+        Result result = compile(null, HEADER + "public class Frames {\n"
+                + "  @FrameView(ArticleView.class) public static class ArticleFrame extends StateStackFrame {}\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c){ super(c); } }\n"
+                + "  @ViewForFrame(ArticleFrame.class)\n"
+                + "  public static class OtherView extends FrameLayout { public OtherView(Context c){ super(c); } }\n"
+                + "}\n");
+
+        assertFailedWith(result, "is already bound to");
+    }
+
+    @Test
+    public void process_nonPublicFrame_shouldFail() throws IOException
+    {
+        Result result = compile(null, HEADER + "public class Frames {\n"
+                + "  @FrameView(ArticleView.class) static class ArticleFrame extends StateStackFrame {}\n"
+                + "  public static class ArticleView extends FrameLayout { public ArticleView(Context c){ super(c); } }\n"
+                + "}\n");
+
+        assertFailedWith(result, "must be public");
+    }
+
+    //==================================================================//
+    // Helpers
+    //==================================================================//
+
+    private static void assertFailedWith(Result result, String message)
+    {
+        Assert.assertFalse(result.success);
+        Assert.assertTrue(result.errors.toString(), result.errors.toString().contains(message));
+    }
+
+    private static Result compile(String option, String source) throws IOException
+    {
+        File output = temporaryFolder.newFolder();
+        List<String> options = new ArrayList<>(Arrays.asList(
+                "-nowarn",
+                "-classpath", libClasses.getPath() + File.pathSeparator + System.getProperty("java.class.path"),
+                "-s", output.getPath(),
+                "-d", output.getPath()));
+        if(option != null)
+            options.add(option);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.err), null, diagnostics, options, null,
+                Collections.singletonList(new SourceFile("com/example/Frames.java", source)));
+        task.setProcessors(Collections.singletonList(new FrameViewProcessor()));
+        boolean success = task.call();
+
+        StringBuilder errors = new StringBuilder();
+        for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+        {
+            if(diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                errors.append(diagnostic.getMessage(Locale.ENGLISH)).append('\n');
+        }
+        return new Result(success, errors, output);
+    }
+
+    private static void collectSources(File directory, List<File> sources)
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            throw new IllegalStateException("Lib sources not found at "+directory.getAbsolutePath());
+        for(File file : files)
+        {
+            if(file.isDirectory())
+                collectSources(file, sources);
+            else if(file.getName().endsWith(".java"))
+                sources.add(file);
+        }
+    }
+
+    private static class Result
+    {
+        final boolean success;
+        final StringBuilder errors;
+        final File output;
+
+        Result(boolean success, StringBuilder errors, File output)
+        {
+            this.success = success;
+            this.errors = errors;
+            this.output = output;
+        }
+
+        String readGenerated(String path) throws IOException
+        {
+            return new String(Files.readAllBytes(new File(output, path).toPath()), Charset.forName("UTF-8"));
+        }
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject
+    {
+        private final String source;
+
+        SourceFile(String path, String source)
+        {
+            super(URI.create("string:///" + path), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return source;
+        }
+    }
+}